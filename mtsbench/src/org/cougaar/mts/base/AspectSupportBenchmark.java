@@ -0,0 +1,121 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building aspect delegate chains with {@link AspectSupportImpl}: over every
+ * aspect, as the factories do for stations, and over a list of aspect names,
+ * as {@link MessageStreamsFactory} does for each serialized message. Each
+ * aspect attaches a trivial {@link MessageWriter} delegate; the
+ * <code>reusable</code> parameter says whether they let the streams factory
+ * share the chain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AspectSupportBenchmark {
+    @Param({"1", "4"})
+    public int aspects;
+
+    @Param({"false", "true"})
+    public boolean reusable;
+
+    private StubServiceBroker sb;
+    private AspectSupport aspectSupport;
+    private MessageStreamsFactory streamsFactory;
+    private List<String> names;
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        streamsFactory = sb.loadStreamsFactory();
+        aspectSupport = sb.getAspectSupport();
+        // Aspects are found by class name, so each needs its own class
+        WriterAspect[] all = {new WriterAspect1(), new WriterAspect2(),
+                              new WriterAspect3(), new WriterAspect4()};
+        names = new ArrayList<String>();
+        for (int i = 0; i < aspects; i++) {
+            all[i].reusable = reusable;
+            sb.bind(all[i]);
+            names.add(all[i].getClass().getName());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.shutdown();
+    }
+
+    @Benchmark
+    public MessageWriter attachAll() {
+        return aspectSupport.attachAspects(new MessageWriterImpl(), MessageWriter.class);
+    }
+
+    @Benchmark
+    public MessageWriter attachNamed() {
+        return aspectSupport.attachAspects(new MessageWriterImpl(), MessageWriter.class, names);
+    }
+
+    @Benchmark
+    public MessageWriter getMessageWriter() {
+        return streamsFactory.getMessageWriter(names);
+    }
+
+    private static class WriterAspect
+            extends StandardAspect
+            implements ReusableDelegates {
+        boolean reusable;
+
+        public boolean isReusableDelegate(Class<?> type) {
+            return reusable;
+        }
+
+        @Override
+      public Object getDelegate(Object delegatee, Class<?> type) {
+            if (type == MessageWriter.class) {
+                return new MessageWriterDelegateImplBase((MessageWriter) delegatee);
+            }
+            return null;
+        }
+    }
+
+    private static class WriterAspect1
+            extends WriterAspect {
+    }
+
+    private static class WriterAspect2
+            extends WriterAspect {
+    }
+
+    private static class WriterAspect3
+            extends WriterAspect {
+    }
+
+    private static class WriterAspect4
+            extends WriterAspect {
+    }
+}
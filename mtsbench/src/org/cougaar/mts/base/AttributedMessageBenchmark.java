@@ -0,0 +1,138 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.cougaar.core.mts.AttributeConstants;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing and deserializing an {@link AttributedMessage} the way the
+ * serializing link protocols do, with the plain and the compact header
+ * formats.
+ * <p>
+ * Besides the time per operation, each benchmark reports
+ * <code>headerBytes</code> and <code>totalBytes</code>. Those are rates, like
+ * the primary score, so dividing either by the primary throughput gives the
+ * size per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributedMessageBenchmark {
+    @Param({"plain", "compact"})
+    public String header;
+
+    @Param({"0", "1024", "65536"})
+    public int payloadSize;
+
+    private StubServiceBroker sb;
+    private AttributedMessage message;
+    private byte[] serialized;
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long headerBytes;
+        public long totalBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            headerBytes = 0;
+            totalBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup()
+            throws IOException {
+        sb = new StubServiceBroker();
+        sb.loadStreamsFactory();
+        message = BenchMessage.makeAttributed(payloadSize);
+        if (header.equals("compact")) {
+            message.setLocalAttribute(CompactHeaderCodec.HEADER_FORMAT_ATTRIBUTE,
+                                      CompactHeaderCodec.FORMAT);
+        }
+        serialized = serialize(message);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.shutdown();
+    }
+
+    @Benchmark
+    public byte[] write(Sizes sizes)
+            throws IOException {
+        byte[] bytes = serialize(message);
+        count(sizes, bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public AttributedMessage read()
+            throws IOException, ClassNotFoundException {
+        return deserialize(serialized);
+    }
+
+    @Benchmark
+    public AttributedMessage roundTrip(Sizes sizes)
+            throws IOException, ClassNotFoundException {
+        byte[] bytes = serialize(message);
+        count(sizes, bytes);
+        return deserialize(bytes);
+    }
+
+    private void count(Sizes sizes, byte[] bytes) {
+        Object headerBytes = message.getAttribute(AttributeConstants.HEADER_BYTES_ATTRIBUTE);
+        if (headerBytes instanceof Integer) {
+            sizes.headerBytes += ((Integer) headerBytes).intValue();
+        }
+        sizes.totalBytes += bytes.length;
+    }
+
+    private static byte[] serialize(AttributedMessage message)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static AttributedMessage deserialize(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (AttributedMessage) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+import org.cougaar.core.mts.AttributeConstants;
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+
+/**
+ * A message with an opaque payload of a given size, for benchmarks.
+ */
+public class BenchMessage
+        extends Message {
+    private static final long serialVersionUID = 1L;
+
+    static final MessageAddress SOURCE = MessageAddress.getMessageAddress("BenchSource");
+    static final MessageAddress TARGET = MessageAddress.getMessageAddress("BenchTarget");
+
+    private byte[] payload;
+
+    // For deserialization
+    public BenchMessage() {
+    }
+
+    BenchMessage(MessageAddress source, MessageAddress target, int size) {
+        super(source, target);
+        payload = new byte[size];
+        Arrays.fill(payload, (byte) 'x');
+    }
+
+    /**
+     * Make a message from {@link #SOURCE} to {@link #TARGET} with the
+     * attributes a typical message has when it's serialized by a link
+     * protocol.
+     */
+    public static AttributedMessage makeAttributed(int size) {
+        AttributedMessage message = new AttributedMessage(new BenchMessage(SOURCE, TARGET, size));
+        long now = System.currentTimeMillis();
+        message.setAttribute(AttributeConstants.MESSAGE_SEND_DEADLINE_ATTRIBUTE, new Long(now + 60000));
+        message.setAttribute(AttributeConstants.SEND_WALL_TIME, new Long(now));
+        message.setAttribute(AttributeConstants.INCARNATION_ATTRIBUTE, new Long(now));
+        message.setAttribute(AttributeConstants.SEQ_NUMBER, new Integer(1));
+        return message;
+    }
+
+    @Override
+   public void writeExternal(ObjectOutput out)
+            throws IOException {
+        super.writeExternal(out);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    @Override
+   public void readExternal(ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        payload = new byte[in.readInt()];
+        in.readFully(payload);
+    }
+}
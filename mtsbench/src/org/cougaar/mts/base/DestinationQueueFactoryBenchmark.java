@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding existing queues with
+ * {@link DestinationQueueFactory#getDestinationQueue}, as the Router does for
+ * every message, from several threads at once. The queues are made in setup,
+ * so only the lookup is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class DestinationQueueFactoryBenchmark {
+    @Param({"16", "1024"})
+    public int destinations;
+
+    private StubServiceBroker sb;
+    private DestinationQueueFactory factory;
+    private MessageAddress[] addresses;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup() {
+            // Start each thread somewhere different
+            next = System.identityHashCode(this);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        factory = sb.loadDestinationQueueFactory();
+        addresses = new MessageAddress[destinations];
+        for (int i = 0; i < destinations; i++) {
+            addresses[i] = MessageAddress.getMessageAddress("BenchAgent" + i);
+            factory.getDestinationQueue(addresses[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.shutdown();
+    }
+
+    @Benchmark
+    public DestinationQueue getDestinationQueue(Cursor cursor) {
+        int index = (cursor.next++ & Integer.MAX_VALUE) % destinations;
+        return factory.getDestinationQueue(addresses[index]);
+    }
+}
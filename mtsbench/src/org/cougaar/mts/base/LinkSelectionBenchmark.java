@@ -0,0 +1,101 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Choosing a link with {@link MinCostLinkSelectionPolicy#selectLink}. The
+ * links report fixed costs, cheapest last, so that every link is asked; one
+ * in four reports that it can't be used at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkSelectionBenchmark {
+    @Param({"2", "8"})
+    public int links;
+
+    private LinkSelectionPolicy policy;
+    private List<DestinationLink> candidates;
+    private AttributedMessage message;
+
+    @Setup
+    public void setup() {
+        policy = new MinCostLinkSelectionPolicy();
+        candidates = new ArrayList<DestinationLink>();
+        for (int i = 0; i < links; i++) {
+            int cost = i % 4 == 3 ? Integer.MAX_VALUE : 1000 - i;
+            candidates.add(new CostLink(cost));
+        }
+        message = BenchMessage.makeAttributed(0);
+    }
+
+    @Benchmark
+    public DestinationLink selectLink() {
+        return policy.selectLink(candidates.iterator(), message, null, 0, null);
+    }
+
+    private static class CostLink
+            implements DestinationLink {
+        private final int cost;
+
+        CostLink(int cost) {
+            this.cost = cost;
+        }
+
+        public int cost(AttributedMessage message) {
+            return cost;
+        }
+
+        public MessageAttributes forwardMessage(AttributedMessage message) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Class<? extends LinkProtocol> getProtocolClass() {
+            return LinkProtocol.class;
+        }
+
+        public boolean isValid(AttributedMessage message) {
+            return true;
+        }
+
+        public boolean retryFailedMessage(AttributedMessage message, int retryCount) {
+            return true;
+        }
+
+        public MessageAddress getDestination() {
+            return BenchMessage.TARGET;
+        }
+
+        public Object getRemoteReference() {
+            return null;
+        }
+
+        public void addMessageAttributes(MessageAttributes attrs) {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageTransportClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending messages between two agents in the same Node, from the
+ * {@link SendQueue} through the Router, a {@link DestinationQueue}, the
+ * {@link LoopbackLinkProtocol}, the deliverer and the {@link ReceiveLink} to
+ * the receiving client. There are no aspects.
+ * <p>
+ * Each invocation sends a batch of messages and waits for all of them to be
+ * received.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int BATCH = 1000;
+
+    private StubServiceBroker sb;
+    private SendQueue sendQueue;
+    private Message message;
+    private final AtomicLong sent = new AtomicLong();
+    private final Receiver receiver = new Receiver(BenchMessage.TARGET);
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        sb.loadLoopback();
+        sb.loadDestinationQueueFactory();
+        sendQueue = sb.loadSendQueue();
+        sb.getRegistry().registerClient(receiver);
+        message = new BenchMessage(BenchMessage.SOURCE, BenchMessage.TARGET, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.getRegistry().unregisterClient(receiver);
+        sb.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendAndReceive() {
+        for (int i = 0; i < BATCH; i++) {
+            // A new AttributedMessage per send, as SendLinkImpl makes
+            sendQueue.sendMessage(new AttributedMessage(message));
+        }
+        long target = sent.addAndGet(BATCH);
+        while (receiver.received.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    private static class Receiver
+            implements MessageTransportClient {
+        private final MessageAddress address;
+        private final AtomicLong received = new AtomicLong();
+
+        Receiver(MessageAddress address) {
+            this.address = address;
+        }
+
+        public void receiveMessage(Message message) {
+            received.incrementAndGet();
+        }
+
+        public MessageAddress getMessageAddress() {
+            return address;
+        }
+
+        public long getIncarnationNumber() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding messages to a {@link MessageQueue} and handing them to its thread
+ * for dispatch, with each queue engine. Dispatch itself does nothing but
+ * count.
+ * <p>
+ * Each invocation adds a batch of messages and waits for all of them to be
+ * dispatched. The queue is shared, so running with more than one thread
+ * (<code>-t</code>) measures contention between senders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageQueueBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({MessageQueue.SYNCHRONIZED_ENGINE, MessageQueue.MPSC_ENGINE})
+    public String engine;
+
+    private StubServiceBroker sb;
+    private CountingQueue queue;
+    private AttributedMessage message;
+    private final AtomicLong added = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        CountingQueue.engineChoice.set(engine);
+        queue = sb.bind(new CountingQueue());
+        CountingQueue.engineChoice.remove();
+        message = BenchMessage.makeAttributed(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addAndDispatch() {
+        for (int i = 0; i < BATCH; i++) {
+            queue.add(message);
+        }
+        // Wait for our batch, and everything added before it
+        long target = added.addAndGet(BATCH);
+        while (queue.dispatched.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    private static class CountingQueue
+            extends MessageQueue {
+        // makeEngine is called by the MessageQueue constructor, before any
+        // field of ours could be set, so it takes its argument this way.
+        static final ThreadLocal<String> engineChoice = new ThreadLocal<String>();
+
+        private final AtomicLong dispatched = new AtomicLong();
+
+        CountingQueue() {
+            super("BenchQueue");
+        }
+
+        @Override
+      MessageQueueEngine makeEngine() {
+            if (MPSC_ENGINE.equals(engineChoice.get())) {
+                return new MpscMessageQueueEngine();
+            } else {
+                return new SynchronizedMessageQueueEngine();
+            }
+        }
+
+        @Override
+      boolean dispatch(AttributedMessage m) {
+            dispatched.incrementAndGet();
+            return true;
+        }
+    }
+}
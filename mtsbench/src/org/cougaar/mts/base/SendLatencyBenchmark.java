@@ -0,0 +1,100 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageTransportClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time from handing one message to the {@link SendQueue} to its arrival at
+ * the receiving client, over the same loopback path as
+ * {@link LoopbackBenchmark}, with the SendQueue either queuing the message for
+ * its own thread or routing it in the sender's thread. There are no aspects.
+ * <p>
+ * Each invocation sends one message and waits for it to be received, so the
+ * queues are always empty and the time is all handoffs and dispatch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendLatencyBenchmark {
+    @Param({"queued", "direct"})
+    public String routing;
+
+    private StubServiceBroker sb;
+    private SendQueue sendQueue;
+    private Message message;
+    private long sent;
+    private final Receiver receiver = new Receiver(BenchMessage.TARGET);
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        sb.loadLoopback();
+        sb.loadDestinationQueueFactory();
+        sendQueue = sb.loadSendQueue("direct".equals(routing));
+        sb.getRegistry().registerClient(receiver);
+        message = new BenchMessage(BenchMessage.SOURCE, BenchMessage.TARGET, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sb.getRegistry().unregisterClient(receiver);
+        sb.shutdown();
+    }
+
+    @Benchmark
+    public void sendOne() {
+        sendQueue.sendMessage(new AttributedMessage(message));
+        long target = ++sent;
+        while (receiver.received.get() < target) {
+            Thread.yield();
+        }
+    }
+
+    private static class Receiver
+            implements MessageTransportClient {
+        private final MessageAddress address;
+        private final AtomicLong received = new AtomicLong();
+
+        Receiver(MessageAddress address) {
+            this.address = address;
+        }
+
+        public void receiveMessage(Message message) {
+            received.incrementAndGet();
+        }
+
+        public MessageAddress getMessageAddress() {
+            return address;
+        }
+
+        public long getIncarnationNumber() {
+            return 1;
+        }
+    }
+}
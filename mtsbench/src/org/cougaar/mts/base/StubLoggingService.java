@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * A {@link LoggingService} for benchmarks, which passes every call through to
+ * a plain {@link Logger}. LoggingService adds nothing to Logger, so a dynamic
+ * proxy saves us from tracking every Logger method here.
+ */
+final class StubLoggingService
+        implements InvocationHandler {
+    private final Logger logger;
+
+    private StubLoggingService(Logger logger) {
+        this.logger = logger;
+    }
+
+    static LoggingService make(String name) {
+        InvocationHandler handler = new StubLoggingService(Logging.getLogger(name));
+        return (LoggingService) Proxy.newProxyInstance(LoggingService.class.getClassLoader(),
+                                                       new Class<?>[] {LoggingService.class},
+                                                       handler);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return StubThreadService.objectMethod(proxy, method, args, "LoggingService");
+        }
+        try {
+            return method.invoke(logger, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
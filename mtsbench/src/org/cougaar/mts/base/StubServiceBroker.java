@@ -0,0 +1,149 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import org.cougaar.core.component.Component;
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.component.ServiceBrokerSupport;
+import org.cougaar.core.component.ServiceProvider;
+import org.cougaar.core.service.LoggingService;
+import org.cougaar.core.service.ThreadService;
+
+/**
+ * A {@link ServiceBroker} for benchmarks, which offers the services the MTS
+ * stations need without a Node: logging, threads, aspect support and the
+ * registry. The load methods add the rest of the stations, from the send
+ * queue to the loopback link protocol, as needed.
+ * <p>
+ * MTS components are bound to this broker with {@link #bind}, in place of the
+ * MessageTransportServiceProvider container.
+ */
+public final class StubServiceBroker
+        extends ServiceBrokerSupport {
+    static final String NODE_NAME = "BenchNode";
+
+    private final LoggingService loggingService;
+    private final ThreadService threadService;
+    private final AspectSupportImpl aspectSupportImpl;
+    private final MessageTransportRegistry registry;
+
+    public StubServiceBroker() {
+        loggingService = StubLoggingService.make(NODE_NAME);
+        threadService = StubThreadService.make(NODE_NAME);
+        provide(LoggingService.class, loggingService);
+        provide(ThreadService.class, threadService);
+
+        aspectSupportImpl = new AspectSupportImpl(null, loggingService);
+        addService(AspectSupport.class, aspectSupportImpl);
+
+        registry = new MessageTransportRegistry(NODE_NAME, this);
+        addService(MessageTransportRegistryService.class, registry);
+    }
+
+    AspectSupport getAspectSupport() {
+        return getService(this, AspectSupport.class, null);
+    }
+
+    MessageTransportRegistryService getRegistry() {
+        return registry.service;
+    }
+
+    /**
+     * Give the component this broker and load it.
+     */
+    <T extends BoundComponent> T bind(T component) {
+        component.setServiceBroker(this);
+        component.load();
+        return component;
+    }
+
+    /**
+     * Make the {@link MessageStreamsFactory} that {@link AttributedMessage}
+     * serialization depends on.
+     */
+    public MessageStreamsFactory loadStreamsFactory() {
+        return bind(MessageStreamsFactory.makeFactory());
+    }
+
+    /**
+     * Load the receive link factory, the deliverer, the default link selection
+     * policy and the loopback link protocol, in that order, as the
+     * MessageTransportServiceProvider would.
+     */
+    void loadLoopback() {
+        ReceiveLinkFactory receiveLinkFactory = bind(new ReceiveLinkFactory());
+        addService(ReceiveLinkProviderService.class, receiveLinkFactory);
+
+        MessageDelivererFactory delivererFactory = bind(new MessageDelivererFactory(NODE_NAME));
+        addService(MessageDeliverer.class, delivererFactory);
+
+        // The policy registers itself with a service we don't need, so it
+        // isn't loaded.
+        provide(LinkSelectionPolicy.class, new MinCostLinkSelectionPolicy());
+
+        bind(new LoopbackLinkProtocol());
+    }
+
+    /**
+     * Make the {@link DestinationQueueFactory} and offer it as the
+     * {@link DestinationQueueProviderService}. Queues it makes are loaded as
+     * soon as they're made, so to reach the loopback link they must be made
+     * after {@link #loadLoopback}.
+     */
+    DestinationQueueFactory loadDestinationQueueFactory() {
+        DestinationQueueFactory factory = new DestinationQueueFactory(null) {
+            @Override
+         protected void addComponent(Component component) {
+                bind((BoundComponent) component);
+            }
+        };
+        bind(factory);
+        addService(DestinationQueueProviderService.class, factory);
+        return factory;
+    }
+
+    /**
+     * Make the router and the send queue in front of the destination queues.
+     * This must follow {@link #loadDestinationQueueFactory}.
+     */
+    SendQueue loadSendQueue() {
+        return loadSendQueue(false);
+    }
+
+    /**
+     * Like {@link #loadSendQueue()}, but if <code>direct</code> is true the
+     * queue routes each message in the sender's thread.
+     */
+    SendQueue loadSendQueue(boolean direct) {
+        provide(Router.class, new RouterImpl(this));
+        SendQueueImpl impl = bind(new SendQueueImpl(NODE_NAME + "/OutQ", direct));
+        return getAspectSupport().attachAspects(impl, SendQueue.class);
+    }
+
+    public void shutdown() {
+        StubThreadService.shutdown(threadService);
+        aspectSupportImpl.unload();
+        MessageStreamsFactory factory = MessageStreamsFactory.getFactory();
+        if (factory != null) {
+            factory.releaseFactory();
+        }
+    }
+
+    private void provide(Class<?> serviceClass, final Object service) {
+        addService(serviceClass, new ServiceProvider() {
+            public Object getService(ServiceBroker sb, Object requestor, Class<?> serviceClass) {
+                return service;
+            }
+
+            public void releaseService(ServiceBroker sb,
+                                       Object requestor,
+                                       Class<?> serviceClass,
+                                       Object service) {
+            }
+        });
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * A {@link ThreadService} for benchmarks, backed by a plain thread pool and a
+ * timer thread instead of the Cougaar thread scheduler, so the MTS stations
+ * can run without a Node. There are no lanes and no limit on the number of
+ * running threads.
+ * <p>
+ * The service and its {@link Schedulable}s are dynamic proxies, so that only
+ * the methods the MTS uses need real implementations here. Each Schedulable
+ * behaves like the real thing in the way the MTS depends on: calling
+ * <code>start</code> while it's running makes it run once more afterwards,
+ * and it never runs in two threads at once.
+ */
+final class StubThreadService
+        implements InvocationHandler {
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+    private final Logger log;
+
+    private StubThreadService(final String name) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        log = Logging.getLogger(getClass().getName());
+        pool = Executors.newCachedThreadPool(factory);
+        timer = Executors.newSingleThreadScheduledExecutor(factory);
+    }
+
+    static ThreadService make(String name) {
+        InvocationHandler handler = new StubThreadService(name);
+        return (ThreadService) Proxy.newProxyInstance(ThreadService.class.getClassLoader(),
+                                                      new Class<?>[] {ThreadService.class},
+                                                      handler);
+    }
+
+    /**
+     * Stop every thread made by the given service. Schedulables that are
+     * already running finish normally.
+     */
+    static void shutdown(ThreadService service) {
+        StubThreadService stub = (StubThreadService) Proxy.getInvocationHandler(service);
+        stub.timer.shutdownNow();
+        stub.pool.shutdown();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return objectMethod(proxy, method, args, "ThreadService");
+        }
+        if (method.getName().equals("getThread")) {
+            Object consumer = args[0];
+            Runnable runnable = (Runnable) args[1];
+            String name = args.length > 2 ? (String) args[2] : runnable.toString();
+            int lane = args.length > 3 ? ((Integer) args[3]).intValue() : ThreadService.BEST_EFFORT_LANE;
+            Task task = new Task(consumer, runnable, name, lane);
+            return Proxy.newProxyInstance(Schedulable.class.getClassLoader(),
+                                          new Class<?>[] {Schedulable.class},
+                                          task);
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    // equals, hashCode and toString for proxies
+    static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        String methodName = method.getName();
+        if (methodName.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if (methodName.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        } else {
+            return "Stub " + name;
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return Integer.valueOf(0);
+        } else if (type == Long.TYPE) {
+            return Long.valueOf(0);
+        } else {
+            return null;
+        }
+    }
+
+    private class Task
+            implements InvocationHandler, Runnable {
+        private final Object consumer;
+        private final Runnable runnable;
+        private final String name;
+        private final int lane;
+
+        // Guarded by this
+        private boolean running, restart, cancelled;
+        private ScheduledFuture<?> timerTask;
+
+        Task(Object consumer, Runnable runnable, String name, int lane) {
+            this.consumer = consumer;
+            this.runnable = runnable;
+            this.name = name;
+            this.lane = lane;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args, name);
+            }
+            String methodName = method.getName();
+            if (methodName.equals("start")) {
+                start();
+            } else if (methodName.equals("schedule") && args.length == 1) {
+                schedule(((Long) args[0]).longValue(), 0, false);
+            } else if (methodName.equals("schedule")) {
+                schedule(((Long) args[0]).longValue(), ((Long) args[1]).longValue(), false);
+            } else if (methodName.equals("scheduleAtFixedRate")) {
+                schedule(((Long) args[0]).longValue(), ((Long) args[1]).longValue(), true);
+            } else if (methodName.equals("cancelTimer")) {
+                cancelTimer();
+            } else if (methodName.equals("cancel")) {
+                return Boolean.valueOf(cancel());
+            } else if (methodName.equals("getName")) {
+                return name;
+            } else if (methodName.equals("getConsumer")) {
+                return consumer;
+            } else if (methodName.equals("getLane")) {
+                return Integer.valueOf(lane);
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        void start() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (running) {
+                    restart = true;
+                    return;
+                }
+                running = true;
+            }
+            pool.execute(this);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    if (log.isErrorEnabled()) {
+                        log.error(name + " threw an exception", e);
+                    }
+                }
+                synchronized (this) {
+                    if (!restart || cancelled) {
+                        running = false;
+                        return;
+                    }
+                    restart = false;
+                }
+            }
+        }
+
+        synchronized void schedule(long delay, long interval, boolean fixedRate) {
+            cancelTimer();
+            Runnable starter = new Runnable() {
+                public void run() {
+                    start();
+                }
+            };
+            if (interval <= 0) {
+                timerTask = timer.schedule(starter, delay, TimeUnit.MILLISECONDS);
+            } else if (fixedRate) {
+                timerTask = timer.scheduleAtFixedRate(starter, delay, interval, TimeUnit.MILLISECONDS);
+            } else {
+                timerTask = timer.scheduleWithFixedDelay(starter, delay, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void cancelTimer() {
+            if (timerTask != null) {
+                timerTask.cancel(false);
+                timerTask = null;
+            }
+        }
+
+        synchronized boolean cancel() {
+            cancelTimer();
+            cancelled = true;
+            restart = false;
+            return !running;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.jms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.BenchMessage;
+import org.cougaar.mts.base.StubServiceBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending messages the way {@link JMSLinkProtocol#send} does: each message is
+ * made and sent on one session borrowed from a {@link SessionPool}, or, when
+ * <code>transacted</code>, committed together with the messages queued
+ * alongside it by a {@link TransactedSender}.
+ * <p>
+ * There's no JMS server. The connection is an in-memory stand-in, made of
+ * dynamic proxies, that serializes each message body when the message is
+ * made, as providers do, and spends <code>sendMicros</code> in each send and
+ * commit, standing in for the trip to the server. Run with several threads
+ * (<code>-t</code>) to see the pool shared. The numbers of sessions made
+ * and transactions committed are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmsSendBenchmark {
+    private static final int MAX_SESSIONS = 8;
+    private static final int MAX_PRODUCERS = 64;
+    private static final int TRANSACTION_BATCH_SIZE = 64;
+
+    @Param({"false", "true"})
+    public boolean transacted;
+
+    @Param({"0", "50"})
+    public int sendMicros;
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    private final AtomicLong sessionsMade = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private StubServiceBroker sb;
+    private SessionPool pool;
+    private TransactedSender transactedSender;
+    private Destination destination;
+    private AttributedMessage message;
+    private MessageSetup setup;
+
+    @Setup
+    public void setup() {
+        sb = new StubServiceBroker();
+        sb.loadStreamsFactory();
+        Connection connection = fake(Connection.class, new ConnectionHandler());
+        pool = new SessionPool(connection, transacted, MAX_SESSIONS, MAX_PRODUCERS);
+        if (transacted) {
+            transactedSender = new TransactedSender(pool, TRANSACTION_BATCH_SIZE);
+        }
+        destination = fake(Destination.class, new Inert());
+        message = BenchMessage.makeAttributed(payloadSize);
+        setup = new MessageSetup() {
+            public void setUp(ObjectMessage jmsMessage)
+                    throws JMSException {
+                jmsMessage.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                jmsMessage.setIntProperty("MTS_MSG_ID", 1);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+        sb.shutdown();
+        System.out.println("Sessions made: " + sessionsMade.get() + ", transactions committed: "
+                + commits.get());
+    }
+
+    @Benchmark
+    public void send()
+            throws JMSException {
+        if (transactedSender != null) {
+            transactedSender.send(destination, message, setup);
+        } else {
+            pool.send(destination, message, setup);
+        }
+    }
+
+    private void spend() {
+        if (sendMicros > 0) {
+            long end = System.nanoTime() + sendMicros * 1000L;
+            while (System.nanoTime() < end) {
+                // Busy, like a thread waiting on a socket without yielding
+            }
+        }
+    }
+
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        Object proxy =
+                Proxy.newProxyInstance(JmsSendBenchmark.class.getClassLoader(),
+                                       new Class<?>[] {type}, handler);
+        return type.cast(proxy);
+    }
+
+    /**
+     * Does nothing, returning zero, false or null.
+     */
+    private static class Inert
+            implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args);
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if (name.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        } else {
+            return "fake " + proxy.getClass().getInterfaces()[0].getSimpleName();
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return Integer.valueOf(0);
+        } else if (type == Long.TYPE) {
+            return Long.valueOf(0);
+        } else if (type == Short.TYPE) {
+            return Short.valueOf((short) 0);
+        } else if (type == Byte.TYPE) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == Float.TYPE) {
+            return Float.valueOf(0);
+        } else if (type == Double.TYPE) {
+            return Double.valueOf(0);
+        } else if (type == Character.TYPE) {
+            return Character.valueOf((char) 0);
+        }
+        return null;
+    }
+
+    private class ConnectionHandler
+            extends Inert {
+        @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("createSession")) {
+                sessionsMade.incrementAndGet();
+                return fake(Session.class, new SessionHandler());
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private class SessionHandler
+            extends Inert {
+        @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("createObjectMessage")) {
+                if (args != null && args.length == 1) {
+                    serialize((Serializable) args[0]);
+                }
+                return fake(ObjectMessage.class, new Inert());
+            } else if (name.equals("createProducer")) {
+                return fake(MessageProducer.class, new ProducerHandler());
+            } else if (name.equals("commit")) {
+                spend();
+                commits.incrementAndGet();
+                return null;
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private class ProducerHandler
+            extends Inert {
+        @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("send")) {
+                if (!transacted) {
+                    spend();
+                }
+                return null;
+            }
+            return super.invoke(proxy, method, args);
+        }
+    }
+
+    private static void serialize(Serializable body) {
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream(1024));
+            out.writeObject(body);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.BenchMessage;
+import org.cougaar.mts.base.StubServiceBroker;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receiving serialized messages over UDP on the loopback interface with a
+ * {@link DatagramSelector}, the way the UDP link protocols do: the handler
+ * deserializes each {@link AttributedMessage} straight out of the receive
+ * buffer.
+ * <p>
+ * Each invocation sends a batch of datagrams from the benchmark thread and
+ * waits for the selector thread to read them all. UDP may drop datagrams even
+ * on loopback, so the wait gives up after a while; the number of datagrams
+ * that never arrived is reported as <code>lost</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatagramSelectorBenchmark {
+    private static final int BATCH = 256;
+    private static final long WAIT_MILLIS = 100;
+    private static final int RECEIVE_BUFFER = 8 * 1024 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    @Param({"0", "1024", "8192"})
+    public int payloadSize;
+
+    @Param({"1", "32"})
+    public int receiveBatch;
+
+    private StubServiceBroker sb;
+    private DatagramSelector selector;
+    private Thread selectorThread;
+    private DatagramChannel sender;
+    private ByteBuffer datagram;
+    private long sent;
+    private final AtomicLong received = new AtomicLong();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Losses {
+        public long lost;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lost = 0;
+        }
+    }
+
+    @Setup
+    public void setup()
+            throws IOException {
+        sb = new StubServiceBroker();
+        sb.loadStreamsFactory();
+
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().setReceiveBufferSize(RECEIVE_BUFFER);
+        receiver.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        selector = new DatagramSelector(new Handler(), receiveBatch, MAX_PAYLOAD_SIZE);
+        selector.register(receiver, null);
+        selectorThread = new Thread(selector, "UDP Selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        sender = DatagramChannel.open();
+        sender.connect(receiver.socket().getLocalSocketAddress());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(BenchMessage.makeAttributed(payloadSize));
+        oos.close();
+        datagram = ByteBuffer.allocateDirect(bos.size());
+        datagram.put(bos.toByteArray());
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException, InterruptedException {
+        sender.close();
+        selector.close();
+        selectorThread.join();
+        sb.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendAndReceive(Losses losses)
+            throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            datagram.rewind();
+            sender.write(datagram);
+        }
+        sent += BATCH;
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (received.get() < sent) {
+            if (System.currentTimeMillis() > deadline) {
+                // Don't count the lost ones against the next invocation
+                long missing = sent - received.get();
+                losses.lost += missing;
+                sent -= missing;
+                break;
+            }
+            Thread.yield();
+        }
+    }
+
+    private class Handler
+            implements DatagramSelector.Handler {
+        public void datagramReceived(ByteBuffer datagram, SocketAddress from, Object attachment) {
+            try {
+                ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(datagram));
+                if (ois.readObject() instanceof AttributedMessage) {
+                    received.incrementAndGet();
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
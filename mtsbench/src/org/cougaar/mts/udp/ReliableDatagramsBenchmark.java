@@ -0,0 +1,199 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reliable UDP between two endpoints on the loopback interface, wired up the
+ * way {@link UdpSocketLinkProtocol} does in reliable mode, with loss injected
+ * on both directions: each datagram, data or ack, is dropped with probability
+ * <code>lossRate</code>. The drops come from a seeded random number
+ * generator, so a given loss rate drops the same share of datagrams on every
+ * run.
+ * <p>
+ * Each invocation starts a batch of messages at once, so they share the
+ * congestion window, and waits until all of them have been acknowledged. It
+ * fails if any isn't acknowledged within {@link #TIMEOUT} milliseconds. The
+ * retransmissions and messages received are reported as well; received can
+ * exceed sent only if the reliable layer delivers duplicates, which it
+ * shouldn't.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReliableDatagramsBenchmark {
+    private static final int BATCH = 32;
+    private static final long TIMEOUT = 30000;
+    private static final long TICK = 10;
+    private static final int MAX_DATAGRAM_SIZE = 1472;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+    private static final long SEED = 42;
+
+    @Param({"0", "0.01", "0.1"})
+    public double lossRate;
+
+    @Param({"1024", "65536"})
+    public int payloadSize;
+
+    private Endpoint sender;
+    private Endpoint receiver;
+    private ScheduledExecutorService ticker;
+    private DatagramFragmenter fragmenter;
+    private byte[] payload;
+    private final AtomicLong received = new AtomicLong();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counts {
+        public long retransmissions;
+        public long messagesReceived;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retransmissions = 0;
+            messagesReceived = 0;
+        }
+    }
+
+    @Setup
+    public void setup()
+            throws IOException {
+        Random random = new Random(SEED);
+        sender = new Endpoint(random);
+        receiver = new Endpoint(random);
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sender.reliability.tick();
+                receiver.reliability.tick();
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        fragmenter = new DatagramFragmenter(MAX_DATAGRAM_SIZE - ReliableDatagrams.DATA_HEADER_SIZE,
+                                            new FragmentStatistics());
+        // Looks like a serialized object, so it passes the reassembler
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        ByteBuffer.wrap(payload).putShort(ObjectStreamConstants.STREAM_MAGIC);
+    }
+
+    @TearDown
+    public void tearDown()
+            throws InterruptedException {
+        ticker.shutdownNow();
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatch(Counts counts)
+            throws IOException, InterruptedException {
+        long retransmissionsBefore = sender.statistics.getRetransmissions();
+        long receivedBefore = received.get();
+        List<ReliableDatagrams.Transfer> transfers = new ArrayList<ReliableDatagrams.Transfer>();
+        for (int i = 0; i < BATCH; i++) {
+            transfers.add(sender.reliability.send(receiver.address, fragmenter.fragment(payload)));
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (ReliableDatagrams.Transfer transfer : transfers) {
+            if (!transfer.await(deadline)) {
+                throw new IllegalStateException("Transfer not acknowledged in " + TIMEOUT + "ms");
+            }
+        }
+        counts.retransmissions += sender.statistics.getRetransmissions() - retransmissionsBefore;
+        counts.messagesReceived += received.get() - receivedBefore;
+    }
+
+    /**
+     * One end, with its own channel, selector thread and reliable layer,
+     * sending through a lossy transmitter.
+     */
+    private class Endpoint
+            implements DatagramSelector.Handler {
+        private final DatagramChannel channel;
+        private final SocketAddress address;
+        private final DatagramSelector selector;
+        private final Thread selectorThread;
+        private final ReliableStatistics statistics = new ReliableStatistics();
+        private final ReliableDatagrams reliability;
+        private final DatagramReassembler reassembler =
+                new DatagramReassembler(64 * 1024 * 1024, TIMEOUT, new FragmentStatistics());
+
+        Endpoint(final Random random)
+                throws IOException {
+            channel = DatagramChannel.open();
+            channel.socket().setReceiveBufferSize(4 * 1024 * 1024);
+            channel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            address = channel.socket().getLocalSocketAddress();
+            ReliableDatagrams.Transmitter transmitter = new ReliableDatagrams.Transmitter() {
+                public void transmit(ByteBuffer datagram, SocketAddress destination)
+                        throws IOException {
+                    boolean drop;
+                    synchronized (random) {
+                        drop = random.nextDouble() < lossRate;
+                    }
+                    if (!drop) {
+                        channel.send(datagram, destination);
+                    }
+                }
+            };
+            reliability = new ReliableDatagrams(transmitter, 4, 256, 20, 60000, statistics);
+            selector = new DatagramSelector(this, 32, MAX_PAYLOAD_SIZE);
+            selector.register(channel, null);
+            selectorThread = new Thread(selector, "UDP Selector " + address);
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+        }
+
+        public void datagramReceived(ByteBuffer datagram, SocketAddress from, Object attachment) {
+            ByteBuffer data = reliability.receive(datagram, from);
+            if (data != null && reassembler.accept(data, from) != null) {
+                received.incrementAndGet();
+            }
+        }
+
+        void close()
+                throws InterruptedException {
+            selector.close();
+            selectorThread.join();
+        }
+    }
+}
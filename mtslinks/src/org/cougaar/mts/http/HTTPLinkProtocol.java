@@ -26,14 +26,17 @@
 package org.cougaar.mts.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Method;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.Servlet;
 
@@ -46,17 +49,43 @@ import org.cougaar.core.node.NodeIdentificationService;
 import org.cougaar.core.service.BlackboardService;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.ServletService;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.BatchCombiner;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.DestinationLink;
 import org.cougaar.mts.base.MisdeliveredMessageException;
 import org.cougaar.mts.base.NameLookupException;
 import org.cougaar.mts.base.RPCLinkProtocol;
 import org.cougaar.mts.base.UnregisteredNameException;
+import org.cougaar.util.annotations.Cougaar;
 
 /**
  * This {@link LinkProtocol} uses the Cougaar's {@link ServletService} (Tomcat)
  * for communication via http.
+ * <p>
+ * Messages are sent over persistent HTTP/1.1 connections kept in a pool
+ * shared by all of the node's links, at most <tt>maxConnections</tt> of them
+ * and at most <tt>maxIdlePerHost</tt> idle ones per remote host. Idle
+ * connections are closed after <tt>idleTimeout</tt> milliseconds. Each post
+ * is serialized straight to the connection as a chunked request body.
+ * <p>
+ * Messages to the same node that are sent while earlier ones are still in
+ * flight are batched, up to <tt>maxBatchSize</tt> messages per post and at
+ * most <tt>maxPostsPerNode</tt> posts in flight to a node. Servlets that read
+ * batches say so in the replies to single-message posts, so messages are
+ * posted one at a time to a node until such a reply comes back, and always
+ * to nodes running older versions. After a batch post fails, the link goes
+ * back to single posts until the servlet says so again.
+ * <p>
+ * Delivery is at least once. A post that fails after the server may have
+ * read it is failed back to the destination queue, which sends it again, so
+ * a message whose reply was lost can arrive twice. Only a post the server
+ * can't have seen is retried here.
+ * <p>
+ * The connection statistics are available from
+ * {@link #getConnectionStatistics} and are logged at info level every
+ * <tt>statisticsInterval</tt> milliseconds.
  */
 public class HTTPLinkProtocol
         extends RPCLinkProtocol {
@@ -71,14 +100,111 @@ public class HTTPLinkProtocol
     private static final String ROOT_SERVLET_SERVICE_CLASS =
             "org.cougaar.lib.web.service.RootServletService";
 
+    static final String CONTENT_TYPE = "application/x-java-serialized-object";
+
+    static final String BATCH_CONTENT_TYPE = "application/x-cougaar-message-batch";
+
+    /**
+     * Set by the servlet on its replies to single-message posts, to say it
+     * reads batches.
+     */
+    static final String BATCH_POSTS_ATTRIBUTE = "HttpBatchPosts";
+
+    /**
+     * Most connections open at once, to all hosts.
+     */
+    @Cougaar.Arg(name = "maxConnections", defaultValue = "128")
+    private int maxConnections;
+
+    /**
+     * Most idle connections to keep for each remote host.
+     */
+    @Cougaar.Arg(name = "maxIdlePerHost", defaultValue = "8")
+    private int maxIdlePerHost;
+
+    /**
+     * Milliseconds after which an idle connection is closed. This should be
+     * less than the servers' keep-alive timeout.
+     */
+    @Cougaar.Arg(name = "idleTimeout", defaultValue = "15000")
+    private int idleTimeout;
+
+    /**
+     * Milliseconds to wait for a connection to be made, or for one to be
+     * released when the pool is full.
+     */
+    @Cougaar.Arg(name = "connectTimeout", defaultValue = "30000")
+    private int connectTimeout;
+
+    /**
+     * Milliseconds to wait for a response, or 0 to wait indefinitely.
+     */
+    @Cougaar.Arg(name = "readTimeout", defaultValue = "0")
+    private int readTimeout;
+
+    /**
+     * Bytes of request body sent per chunk.
+     */
+    @Cougaar.Arg(name = "chunkSize", defaultValue = "8192")
+    private int chunkSize;
+
+    /**
+     * Milliseconds between logs of the connection statistics, or 0 for none.
+     */
+    @Cougaar.Arg(name = "statisticsInterval", defaultValue = "60000")
+    private int statisticsInterval;
+
+    /**
+     * Most messages to send to a node in one post, once it says it reads
+     * batches. With 1, each message is posted by itself.
+     */
+    @Cougaar.Arg(name = "maxBatchSize", defaultValue = "64")
+    private int maxBatchSize;
+
+    /**
+     * Most batches in flight to a node at once.
+     */
+    @Cougaar.Arg(name = "maxPostsPerNode", defaultValue = "2")
+    private int maxPostsPerNode;
+
     private LoggingService logger;
     private ServletService _servletService;
     private boolean servant_made = false;
+    private HttpConnectionPool connectionPool;
+    private Schedulable idleEvictor;
+    private Schedulable statisticsLogger;
+    // Servlets known to read batches
+    private final ConcurrentMap<String, HttpPostBatcher> batchers =
+            new ConcurrentHashMap<String, HttpPostBatcher>();
 
     @Override
    public void load() {
         super.load();
         logger = getLoggingService(); // from BoundComponent
+        connectionPool =
+                new HttpConnectionPool(maxConnections,
+                                       maxIdlePerHost,
+                                       idleTimeout,
+                                       connectTimeout,
+                                       readTimeout,
+                                       chunkSize);
+        idleEvictor = threadService.getThread(this, new Runnable() {
+            public void run() {
+                connectionPool.evictIdle();
+            }
+        }, "HTTP Idle Connections");
+        long evictionInterval = Math.max(idleTimeout / 2, 1000);
+        idleEvictor.schedule(evictionInterval, evictionInterval);
+        if (statisticsInterval > 0) {
+            statisticsLogger = threadService.getThread(this, new Runnable() {
+                public void run() {
+                    if (logger.isInfoEnabled()) {
+                        logger.info(getProtocol() + " connections: " + getConnectionStatistics());
+                    }
+                }
+            }, "HTTP Statistics");
+            statisticsLogger.schedule(statisticsInterval, statisticsInterval);
+        }
     }
 
     /**
@@ -87,6 +213,17 @@ public class HTTPLinkProtocol
      */
     @Override
    public void unload() {
+        if (statisticsLogger != null) {
+            statisticsLogger.cancelTimer();
+            statisticsLogger = null;
+        }
+        if (idleEvictor != null) {
+            idleEvictor.cancelTimer();
+            idleEvictor = null;
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
         ServiceBroker sb = getServiceBroker();
         sb.releaseService(this, ServletService.class, _servletService);
         super.unload();
@@ -127,6 +264,14 @@ public class HTTPLinkProtocol
         return SERVLET_URI;
     }
 
+    /**
+     * Counts of the connections opened, reused and closed, and of the
+     * requests sent over them.
+     */
+    public HttpConnectionStatistics getConnectionStatistics() {
+        return connectionPool.getStatistics();
+    }
+
     /**
      * Create servlet that handle java serialized messages over HTTP.
      */
@@ -335,65 +480,166 @@ public class HTTPLinkProtocol
 
         /**
          * This method streams serialized java objects over HTTP, and could be
-         * overridden if streaming format is different (e.g., SOAP)
+         * overridden if streaming format is different (e.g., SOAP). Returns
+         * the servlet's reply, or the exception if the post failed.
          */
-        protected Object postMessage(URL url, AttributedMessage message)
+        protected Object postMessage(URL url, final AttributedMessage message)
                 throws IOException, UnknownHostException {
-            ObjectInputStream ois = null;
-            ObjectOutputStream out = null;
+            if (logger.isDebugEnabled()) {
+                logger.debug("sending " + message.getRawMessage().getClass().getName() + "("
+                        + message.getOriginator() + "->" + message.getTarget() + ") to " + url);
+            }
+            if (maxBatchSize > 1) {
+                HttpPostBatcher batcher = batchers.get(url.toExternalForm());
+                if (batcher != null) {
+                    return batcher.send(message);
+                }
+            }
+            Object reply = post(url, new Exchange() {
+                public Object run(HttpConnection connection, String path)
+                        throws Exception {
+                    // Closing the stream ends the request body, not the
+                    // connection
+                    ObjectOutputStream out =
+                            new ObjectOutputStream(connection.startRequest(path, CONTENT_TYPE));
+                    out.writeObject(message);
+                    out.close();
+
+                    InputStream body = connection.readResponse();
+                    ObjectInputStream ois = new ObjectInputStream(body);
+                    Object reply = ois.readObject();
+                    connection.finishResponse(body);
+                    return reply;
+                }
+            });
+            if (maxBatchSize > 1 && reply instanceof MessageAttributes
+                    && ((MessageAttributes) reply).getAttribute(BATCH_POSTS_ATTRIBUTE) != null) {
+                getBatcher(url);
+            }
+            return reply;
+        }
+
+    }
+
+    /**
+     * A request and response on a pooled connection.
+     */
+    private interface Exchange {
+        Object run(HttpConnection connection, String path)
+                throws Exception;
+    }
+
+    /**
+     * Run the exchange on a pooled connection to the url. Returns the
+     * exchange's result, or the exception if it failed.
+     * <p>
+     * The exchange is tried once more, on a new connection, only if the
+     * server can't have seen it: the reused connection turned out to be
+     * closed by the server before anything was written, or sending the
+     * request head failed. Any other failure is returned, and the
+     * destination queue retries the message after its backoff, so a message
+     * whose reply is lost may be delivered twice.
+     */
+    private Object post(URL url, Exchange exchange) {
+        HttpConnectionPool.Key key = HttpConnectionPool.Key.forURL(url);
+        HttpConnectionStatistics statistics = connectionPool.getStatistics();
+        boolean fresh = false;
+        while (true) {
+            HttpConnection connection;
             try {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("sending " + message.getRawMessage().getClass().getName() + "("
-                            + message.getOriginator() + "->" + message.getTarget() + ") to " + url);
+                connection = connectionPool.acquire(key, fresh);
+            } catch (IOException e) {
+                statistics.failed();
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Exception in http Post Message: " + e.getMessage());
                 }
-                // NOTE: Performing a URL.openConnection() does not
-                // necessarily open a new socket. Specifically,
-                // HttpUrlConnection reuses a previously opened socket
-                // to the target, and there is no way to force the
-                // underlying socket to close. From the javadoc:
-                // "Calling the disconnect() method may close the
-                // underlying socket if a persistent connection is
-                // otherwise idle at that time."
-                //
-                // However, This could pose a resource consumption
-                // issue. If this is the case, we need to use a
-                // different HTTP Client implementation such as
-                // Jakarta's Common HTTP Client.
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                // Don't follow redirects automatically.
-                conn.setInstanceFollowRedirects(false);
-                // Let the system know that we want to do output
-                conn.setDoOutput(true);
-                // Let the system know that we want to do input
-                conn.setDoInput(true);
-                // No caching, we want the real thing
-                conn.setUseCaches(false);
-                // Specify the content type
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                conn.setRequestMethod("POST");
-                // write object to output stream
-                out = new ObjectOutputStream(conn.getOutputStream());
-                out.writeObject(message);
-                out.flush();
-
-                // get response
-                ois = new ObjectInputStream(conn.getInputStream());
-                return ois.readObject();
+                return e;
+            }
+            boolean reused = connection.isReused();
+            if (reused && !fresh && connection.isClosedByServer()) {
+                connection.close();
+                connectionPool.release(connection);
+                statistics.retried();
+                fresh = true;
+                continue;
+            }
+            try {
+                statistics.request();
+                Object result = exchange.run(connection, url.getFile());
+                connectionPool.release(connection);
+                return result;
             } catch (Exception e) {
+                connection.close();
+                connectionPool.release(connection);
+                if (reused && !fresh && !connection.isRequestSent()) {
+                    statistics.retried();
+                    fresh = true;
+                    continue;
+                }
+                statistics.failed();
                 if (logger.isWarnEnabled()) {
                     logger.warn("Exception in http Post Message: " + e.getMessage());
                 }
-            } finally {
-                if (out != null) {
-                    out.close();
-                }
-                if (ois != null) {
-                    ois.close();
+                return e;
+            }
+        }
+    }
+
+    private HttpPostBatcher getBatcher(final URL url) {
+        String servlet = url.toExternalForm();
+        HttpPostBatcher batcher = batchers.get(servlet);
+        if (batcher == null) {
+            HttpPostBatcher.Poster poster = new HttpPostBatcher.Poster() {
+                public void post(List<BatchCombiner.Entry<AttributedMessage>> batch) {
+                    postBatch(url, batch);
                 }
+            };
+            batcher = new HttpPostBatcher(poster, maxBatchSize, maxPostsPerNode);
+            HttpPostBatcher existing = batchers.putIfAbsent(servlet, batcher);
+            if (existing != null) {
+                batcher = existing;
             }
-            return null;
         }
+        return batcher;
+    }
+
+    /**
+     * Send a batch of messages in one post, in the format read by
+     * {@link HTTPLinkProtocolServlet}: the number of messages and then the
+     * messages, answered by the number of replies and then the replies. Each
+     * reply is handed over as soon as it's read.
+     */
+    private void postBatch(URL url, final List<BatchCombiner.Entry<AttributedMessage>> batch) {
+        Object failure = post(url, new Exchange() {
+            public Object run(HttpConnection connection, String path)
+                    throws Exception {
+                ObjectOutputStream out =
+                        new ObjectOutputStream(connection.startRequest(path, BATCH_CONTENT_TYPE));
+                out.writeInt(batch.size());
+                for (BatchCombiner.Entry<AttributedMessage> pending : batch) {
+                    out.writeObject(pending.getItem());
+                    // Messages share nothing
+                    out.reset();
+                }
+                out.close();
 
+                InputStream body = connection.readResponse();
+                ObjectInputStream ois = new ObjectInputStream(body);
+                int count = Math.min(ois.readInt(), batch.size());
+                for (int i = 0; i < count; i++) {
+                    batch.get(i).complete(ois.readObject());
+                }
+                connection.finishResponse(body);
+                return null;
+            }
+        });
+        if (failure != null) {
+            // Perhaps the node was replaced by an older version
+            batchers.remove(url.toExternalForm());
+            for (BatchCombiner.Entry<AttributedMessage> pending : batch) {
+                pending.complete(failure);
+            }
+        }
     }
 
     @Override
@@ -38,6 +38,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
@@ -81,33 +82,24 @@ class HTTPLinkProtocolServlet
     @Override
    public void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        Object result = null;
-
         if (logger.isDebugEnabled()) {
             debugHeaders(req);
         }
 
+        String contentType = req.getContentType();
+        if (contentType != null && contentType.startsWith(HTTPLinkProtocol.BATCH_CONTENT_TYPE)) {
+            deliverBatch(req, resp);
+            return;
+        }
+
+        Object result = null;
         try {
             Object obj = readMessage(req.getInputStream(), getContentLength(req));
-            if (!(obj instanceof AttributedMessage)) {
-                Exception e =
-                        new IllegalArgumentException("send message content of class: "
-                                + obj.getClass().getName());
-                result = new CommFailureException(e);
-                if (logger.isDebugEnabled()) {
-                    logger.debug("object not AttributedMessage but is a "
-                            + obj.getClass().getName(), e);
-                }
-            } else {
-                AttributedMessage message = (AttributedMessage) obj;
-                // deliver the message by obtaining the
-                // MessageDeliverer from the LinkProtocol
-                result = deliverer.deliverMessage(message, message.getTarget());
-                if (logger.isDebugEnabled()) {
-                    logger.debug("DELIVERED " + message.getRawMessage().getClass().getName() + "("
-                            + message.getOriginator() + "->" + message.getTarget()
-                            + ") with result=" + result);
-                }
+            result = deliver(obj);
+            if (result instanceof MessageAttributes) {
+                // Tell the sender it can post batches
+                ((MessageAttributes) result).setAttribute(HTTPLinkProtocol.BATCH_POSTS_ATTRIBUTE,
+                                                          Boolean.TRUE);
             }
         } catch (MisdeliveredMessageException e) {
             result = e;
@@ -115,13 +107,91 @@ class HTTPLinkProtocolServlet
             result = new CommFailureException(e);
         } finally {
             // return result
-            resp.setContentType("application/x-www-form-urlencoded");
+            resp.setContentType(HTTPLinkProtocol.CONTENT_TYPE);
             ObjectOutputStream oos = new ObjectOutputStream(resp.getOutputStream());
             oos.writeObject(result);
             oos.flush();
         }
     }
 
+    /**
+     * Deliver the messages of a batch in order, writing each one's result as
+     * soon as it's known. The body is the number of messages followed by the
+     * messages, and the reply is the number of results followed by the
+     * results. Once a message can't be read, the rest of the batch can't
+     * either, so each of them gets that failure as its result.
+     */
+    private void deliverBatch(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        resp.setContentType(HTTPLinkProtocol.BATCH_CONTENT_TYPE);
+        ObjectOutputStream oos = new ObjectOutputStream(resp.getOutputStream());
+        ObjectInputStream ois;
+        int count;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(req.getInputStream()));
+            count = ois.readInt();
+        } catch (IOException e) {
+            if (logger.isWarnEnabled()) {
+                logger.warn("Unreadable message batch: " + e.getMessage());
+            }
+            oos.writeInt(0);
+            oos.flush();
+            return;
+        }
+        oos.writeInt(count);
+        Exception unreadable = null;
+        for (int i = 0; i < count; i++) {
+            Object result;
+            Object obj = null;
+            if (unreadable == null) {
+                try {
+                    obj = ois.readObject();
+                } catch (Exception e) {
+                    unreadable = e;
+                }
+            }
+            if (unreadable != null) {
+                result = new CommFailureException(unreadable);
+            } else {
+                try {
+                    result = deliver(obj);
+                } catch (MisdeliveredMessageException e) {
+                    result = e;
+                } catch (Exception e) {
+                    result = new CommFailureException(e);
+                }
+            }
+            oos.writeObject(result);
+            // Results share nothing
+            oos.reset();
+        }
+        oos.flush();
+    }
+
+    private Object deliver(Object obj)
+            throws MisdeliveredMessageException {
+        if (!(obj instanceof AttributedMessage)) {
+            Exception e =
+                    new IllegalArgumentException("send message content of class: "
+                            + obj.getClass().getName());
+            if (logger.isDebugEnabled()) {
+                logger.debug("object not AttributedMessage but is a "
+                        + obj.getClass().getName(), e);
+            }
+            return new CommFailureException(e);
+        }
+        AttributedMessage message = (AttributedMessage) obj;
+        // deliver the message by obtaining the
+        // MessageDeliverer from the LinkProtocol
+        MessageAttributes result = deliverer.deliverMessage(message, message.getTarget());
+        if (logger.isDebugEnabled()) {
+            logger.debug("DELIVERED " + message.getRawMessage().getClass().getName() + "("
+                    + message.getOriginator() + "->" + message.getTarget()
+                    + ") with result=" + result);
+        }
+        return result;
+    }
+
     // this method reads a serialized java object from the HTTP input
     // stream, but can be overridden to read different message formats
     // (e.g., SOAP messages).
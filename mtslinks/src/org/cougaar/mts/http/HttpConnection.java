@@ -0,0 +1,496 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * One persistent HTTP/1.1 connection to a remote node's servlet, as kept by
+ * an {@link HttpConnectionPool}. A request is written with
+ * {@link #startRequest}, which returns a stream for the body; the body is
+ * sent in chunks as it's written, with no need to know its length first. The
+ * response body is then read from {@link #readResponse}. After that the
+ * connection can be used again if {@link #isReusable} says so.
+ * <p>
+ * A connection is used by one thread at a time.
+ */
+class HttpConnection {
+    private static final byte[] CRLF = {'\r', '\n'};
+    // Looking for a close by the server takes a millisecond, so it's only
+    // done on connections idle at least this long
+    private static final long CLOSE_CHECK_IDLE = 1000;
+
+    private final HttpConnectionPool.Key key;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final int chunkSize;
+    private final int readTimeout;
+    private long lastUsed;
+    private int requests;
+    private boolean requestSent;
+    private boolean reusable = true;
+    private boolean closed;
+
+    HttpConnection(HttpConnectionPool.Key key, int connectTimeout, int readTimeout, int chunkSize)
+            throws IOException {
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.readTimeout = readTimeout;
+        Socket plain = new Socket();
+        try {
+            plain.setTcpNoDelay(true);
+            plain.setKeepAlive(true);
+            plain.setSoTimeout(readTimeout);
+            plain.connect(new InetSocketAddress(key.getHost(), key.getPort()), connectTimeout);
+            if (key.isSecure()) {
+                SSLSocket secure =
+                        (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory()
+                                                      .createSocket(plain, key.getHost(),
+                                                                    key.getPort(), true);
+                // Check the server's name, as HttpsURLConnection would: by
+                // the standard rules unless another verifier has been set
+                HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+                boolean builtIn =
+                        verifier.getClass().getEnclosingClass() == HttpsURLConnection.class;
+                if (builtIn) {
+                    // The built-in verifier accepts nothing
+                    SSLParameters parameters = secure.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    secure.setSSLParameters(parameters);
+                }
+                secure.startHandshake();
+                if (!builtIn && !verifier.verify(key.getHost(), secure.getSession())) {
+                    secure.close();
+                    throw new SSLPeerUnverifiedException("Host name " + key.getHost()
+                            + " not accepted by " + verifier);
+                }
+                socket = secure;
+            } else {
+                socket = plain;
+            }
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream(), chunkSize + 16);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    HttpConnectionPool.Key getKey() {
+        return key;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Whether this connection has carried a request already.
+     */
+    boolean isReused() {
+        return requests > 0;
+    }
+
+    /**
+     * Whether any of the current request's body may have reached the server.
+     * If not, the server can't have acted on the request.
+     */
+    boolean isRequestSent() {
+        return requestSent;
+    }
+
+    /**
+     * Whether the server has closed this idle connection. Only a connection
+     * that has been idle for a while is looked at, since looking means
+     * waiting briefly for a read.
+     */
+    boolean isClosedByServer() {
+        if (closed) {
+            return true;
+        }
+        if (System.currentTimeMillis() - lastUsed < CLOSE_CHECK_IDLE) {
+            return false;
+        }
+        try {
+            socket.setSoTimeout(1);
+            try {
+                // The server sends nothing between responses, so anything
+                // but a timeout means the connection is no good
+                in.read();
+                return true;
+            } finally {
+                socket.setSoTimeout(readTimeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    boolean isReusable() {
+        return reusable && !closed;
+    }
+
+    /**
+     * Write the request line and headers of a POST, and return the stream to
+     * write the body to. Closing that stream ends the request; it doesn't
+     * close the connection.
+     * <p>
+     * On a reused connection the head is sent by itself first, so that a
+     * failure to send it is known to have come before any of the body.
+     */
+    OutputStream startRequest(String path, String contentType)
+            throws IOException {
+        boolean reused = requests > 0;
+        requests++;
+        requestSent = false;
+        lastUsed = System.currentTimeMillis();
+        StringBuilder head = new StringBuilder(200);
+        head.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(key.getHost()).append(':').append(key.getPort());
+        head.append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        head.append("Transfer-Encoding: chunked\r\n");
+        head.append("Connection: keep-alive\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+        if (reused) {
+            out.flush();
+        }
+        requestSent = true;
+        return new ChunkedOutputStream(out, chunkSize);
+    }
+
+    /**
+     * Read the status line and headers of the response, and return a stream
+     * of its body. The body must be read to its end, or the connection
+     * closed, before the connection is used again.
+     * 
+     * @throws IOException if the status isn't 200
+     */
+    InputStream readResponse()
+            throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            reusable = false;
+            throw new IOException("Bad HTTP status line: " + statusLine);
+        }
+        boolean keepAlive = !status[0].equals("HTTP/1.0");
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                if (value.equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                } else if (value.equalsIgnoreCase("keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed in the response headers");
+        }
+        InputStream body;
+        if (chunked) {
+            body = new ChunkedInputStream(in);
+        } else if (contentLength >= 0) {
+            body = new BoundedInputStream(in, contentLength);
+        } else {
+            // the body ends when the server closes the connection
+            body = in;
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            reusable = false;
+        }
+        if (!status[1].equals("200")) {
+            reusable = false;
+            throw new IOException("HTTP status " + statusLine.substring(status[0].length() + 1));
+        }
+        return body;
+    }
+
+    /**
+     * Read whatever is left of a response body, so the next response starts
+     * in the right place.
+     */
+    void finishResponse(InputStream body)
+            throws IOException {
+        byte[] buffer = new byte[512];
+        while (body.read(buffer) >= 0) {
+            // discard
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private String readLine()
+            throws IOException {
+        return readLine(in);
+    }
+
+    private static String readLine(InputStream in)
+            throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * Writes an HTTP chunked body, a chunk each time the buffer fills.
+     * Closing it writes the last chunk and flushes, but doesn't close the
+     * underlying stream.
+     */
+    private static class ChunkedOutputStream
+            extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count;
+        private boolean finished;
+
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            this.out = out;
+            this.buffer = new byte[chunkSize];
+        }
+
+        @Override
+      public void write(int b)
+                throws IOException {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+      public void write(byte[] bytes, int offset, int length)
+                throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    writeChunk();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Writing chunks as the serializer flushes would make lots of small
+         * ones, so a flush only sends whole chunks.
+         */
+        @Override
+      public void flush() {
+        }
+
+        @Override
+      public void close()
+                throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            writeChunk();
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+            out.flush();
+        }
+
+        private void writeChunk()
+                throws IOException {
+            if (count == 0) {
+                return;
+            }
+            out.write(Integer.toHexString(count).getBytes("US-ASCII"));
+            out.write(CRLF);
+            out.write(buffer, 0, count);
+            out.write(CRLF);
+            count = 0;
+        }
+    }
+
+    /**
+     * Reads an HTTP chunked body, ending at the last chunk. Trailers are
+     * skipped.
+     */
+    private static class ChunkedInputStream
+            extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean done;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+      public int read()
+                throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed in a chunk");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+      public int read(byte[] bytes, int offset, int length)
+                throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("Connection closed in a chunk");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private boolean nextChunk()
+                throws IOException {
+            if (done) {
+                return false;
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            String line = readLine(in);
+            if (line != null && line.length() == 0) {
+                // the CRLF that ends the previous chunk
+                line = readLine(in);
+            }
+            if (line == null) {
+                throw new EOFException("Connection closed before a chunk");
+            }
+            int extension = line.indexOf(';');
+            String size = extension < 0 ? line : line.substring(0, extension);
+            try {
+                remaining = Long.parseLong(size.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + line);
+            }
+            if (remaining == 0) {
+                done = true;
+                // trailers, up to an empty line
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    // skip
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads a body of known length.
+     */
+    private static class BoundedInputStream
+            extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+      public int read()
+                throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed in the body");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+      public int read(byte[] bytes, int offset, int length)
+                throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            int n = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("Connection closed in the body");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.thread.SchedulableStatus;
+
+/**
+ * The persistent connections of one node's {@link HTTPLinkProtocol} to the
+ * servlets of other nodes.
+ * <p>
+ * At most <code>maxConnections</code> are open at once, counting the ones in
+ * use. A request that needs a new connection when there are already that
+ * many closes the least recently used idle one, if there is one, and
+ * otherwise waits for one to be released. Released connections are kept for
+ * reuse, most recently used first, up to <code>maxIdlePerHost</code> per
+ * remote host; {@link #evictIdle} closes those that have been idle longer
+ * than <code>idleTimeout</code>, which should be shorter than the servers'
+ * keep-alive timeout.
+ */
+class HttpConnectionPool {
+    private final int maxConnections;
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int chunkSize;
+    private final HttpConnectionStatistics statistics = new HttpConnectionStatistics();
+
+    // All guarded by this
+    private final Map<Key, LinkedList<HttpConnection>> idle =
+            new HashMap<Key, LinkedList<HttpConnection>>();
+    private int openCount;
+    private int idleCount;
+    private boolean closed;
+
+    HttpConnectionPool(int maxConnections,
+                       int maxIdlePerHost,
+                       long idleTimeout,
+                       int connectTimeout,
+                       int readTimeout,
+                       int chunkSize) {
+        this.maxConnections = maxConnections;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.chunkSize = chunkSize;
+    }
+
+    HttpConnectionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get a connection to the given server, idle or new. If
+     * <code>fresh</code>, the idle connections to the server are closed
+     * rather than used, because one of them has just turned out to be closed
+     * at the other end.
+     * 
+     * @throws IOException if the connection can't be made, or none is
+     *         released within the connect timeout
+     */
+    HttpConnection acquire(Key key, boolean fresh)
+            throws IOException {
+        List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+        try {
+            synchronized (this) {
+                if (fresh) {
+                    LinkedList<HttpConnection> connections = idle.remove(key);
+                    if (connections != null) {
+                        for (HttpConnection connection : connections) {
+                            idleCount--;
+                            openCount--;
+                            toClose.add(connection);
+                        }
+                    }
+                }
+                long start = System.currentTimeMillis();
+                long deadline = start + connectTimeout;
+                boolean waited = false;
+                try {
+                    while (true) {
+                        if (closed) {
+                            throw new IOException("HTTP connection pool is closed");
+                        }
+                        HttpConnection connection = takeIdle(key, toClose);
+                        if (connection != null) {
+                            statistics.reused();
+                            return connection;
+                        }
+                        if (openCount < maxConnections) {
+                            openCount++;
+                            break;
+                        }
+                        if (closeLeastRecentlyUsed(toClose)) {
+                            continue;
+                        }
+                        long now = System.currentTimeMillis();
+                        if (now >= deadline) {
+                            throw new IOException("No HTTP connection available to " + key
+                                    + " within " + connectTimeout + "ms");
+                        }
+                        if (!waited) {
+                            waited = true;
+                            SchedulableStatus.beginWait("HTTP connection pool full");
+                        }
+                        try {
+                            wait(deadline - now);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for an HTTP connection");
+                        }
+                    }
+                } finally {
+                    if (waited) {
+                        SchedulableStatus.endBlocking();
+                        statistics.waited(System.currentTimeMillis() - start);
+                    }
+                    updateCounts();
+                }
+            }
+        } finally {
+            close(toClose);
+        }
+
+        // We've reserved a place for a new connection
+        try {
+            SchedulableStatus.beginNetIO("HTTP connect");
+            HttpConnection connection =
+                    new HttpConnection(key, connectTimeout, readTimeout, chunkSize);
+            statistics.opened();
+            return connection;
+        } catch (IOException e) {
+            synchronized (this) {
+                openCount--;
+                updateCounts();
+                notifyAll();
+            }
+            throw e;
+        } finally {
+            SchedulableStatus.endBlocking();
+        }
+    }
+
+    /**
+     * Give back a connection from {@link #acquire}. It's kept if it can be
+     * reused and there's room, and closed otherwise.
+     */
+    void release(HttpConnection connection) {
+        synchronized (this) {
+            if (!closed && connection.isReusable()) {
+                LinkedList<HttpConnection> connections = idle.get(connection.getKey());
+                if (connections == null) {
+                    connections = new LinkedList<HttpConnection>();
+                    idle.put(connection.getKey(), connections);
+                }
+                if (connections.size() < maxIdlePerHost) {
+                    connections.addFirst(connection);
+                    idleCount++;
+                    updateCounts();
+                    notifyAll();
+                    return;
+                }
+            }
+            openCount--;
+            updateCounts();
+            notifyAll();
+        }
+        connection.close();
+        statistics.closed();
+    }
+
+    /**
+     * Close the connections that have been idle too long.
+     */
+    void evictIdle() {
+        List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        synchronized (this) {
+            Iterator<LinkedList<HttpConnection>> lists = idle.values().iterator();
+            while (lists.hasNext()) {
+                LinkedList<HttpConnection> connections = lists.next();
+                // Oldest at the end
+                while (!connections.isEmpty() && connections.getLast().getLastUsed() < cutoff) {
+                    toClose.add(connections.removeLast());
+                    idleCount--;
+                    openCount--;
+                }
+                if (connections.isEmpty()) {
+                    lists.remove();
+                }
+            }
+            updateCounts();
+            if (!toClose.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (int i = 0; i < toClose.size(); i++) {
+            statistics.evictedIdle();
+        }
+        close(toClose);
+    }
+
+    /**
+     * Close the idle connections, and connections in use as they're released.
+     */
+    void close() {
+        List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+        synchronized (this) {
+            closed = true;
+            for (LinkedList<HttpConnection> connections : idle.values()) {
+                toClose.addAll(connections);
+            }
+            idle.clear();
+            openCount -= idleCount;
+            idleCount = 0;
+            updateCounts();
+            notifyAll();
+        }
+        close(toClose);
+    }
+
+    // Must hold the lock
+    private HttpConnection takeIdle(Key key, List<HttpConnection> toClose) {
+        LinkedList<HttpConnection> connections = idle.get(key);
+        if (connections == null) {
+            return null;
+        }
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        HttpConnection result = null;
+        while (result == null && !connections.isEmpty()) {
+            HttpConnection connection = connections.removeFirst();
+            idleCount--;
+            if (connection.getLastUsed() < cutoff) {
+                // Likely closed by the server by now
+                openCount--;
+                toClose.add(connection);
+                statistics.evictedIdle();
+            } else {
+                result = connection;
+            }
+        }
+        if (connections.isEmpty()) {
+            idle.remove(key);
+        }
+        return result;
+    }
+
+    // Must hold the lock
+    private boolean closeLeastRecentlyUsed(List<HttpConnection> toClose) {
+        Key oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<Key, LinkedList<HttpConnection>> entry : idle.entrySet()) {
+            long lastUsed = entry.getValue().getLast().getLastUsed();
+            if (lastUsed < oldest) {
+                oldest = lastUsed;
+                oldestKey = entry.getKey();
+            }
+        }
+        if (oldestKey == null) {
+            return false;
+        }
+        LinkedList<HttpConnection> connections = idle.get(oldestKey);
+        toClose.add(connections.removeLast());
+        if (connections.isEmpty()) {
+            idle.remove(oldestKey);
+        }
+        idleCount--;
+        openCount--;
+        return true;
+    }
+
+    // Must hold the lock
+    private void updateCounts() {
+        statistics.setCounts(openCount, idleCount);
+    }
+
+    private void close(List<HttpConnection> connections) {
+        for (HttpConnection connection : connections) {
+            connection.close();
+            statistics.closed();
+        }
+    }
+
+    /**
+     * Where a connection goes: host, port and whether it's https.
+     */
+    static final class Key {
+        private final String host;
+        private final int port;
+        private final boolean secure;
+
+        Key(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        static Key forURL(URL url) {
+            boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+            int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+            return new Key(url.getHost(), port, secure);
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        boolean isSecure() {
+            return secure;
+        }
+
+        @Override
+      public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return port == other.port && secure == other.secure && host.equals(other.host);
+        }
+
+        @Override
+      public int hashCode() {
+            return host.hashCode() * 31 + port + (secure ? 1 : 0);
+        }
+
+        @Override
+      public String toString() {
+            return (secure ? "https://" : "http://") + host + ':' + port;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the connection work of an {@link HttpConnectionPool}. The counts
+ * are cumulative; the open and idle numbers are current.
+ */
+public class HttpConnectionStatistics {
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evictedIdle = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong retriedRequests = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+    private volatile int open;
+    private volatile int idle;
+
+    void opened() {
+        opened.incrementAndGet();
+    }
+
+    void closed() {
+        closed.incrementAndGet();
+    }
+
+    void reused() {
+        reused.incrementAndGet();
+    }
+
+    void evictedIdle() {
+        evictedIdle.incrementAndGet();
+    }
+
+    void request() {
+        requests.incrementAndGet();
+    }
+
+    void failed() {
+        failedRequests.incrementAndGet();
+    }
+
+    void retried() {
+        retriedRequests.incrementAndGet();
+    }
+
+    void waited(long millis) {
+        waits.incrementAndGet();
+        waitMillis.addAndGet(millis);
+    }
+
+    void setCounts(int open, int idle) {
+        this.open = open;
+        this.idle = idle;
+    }
+
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    public long getConnectionsClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Requests sent on a connection left open by an earlier one.
+     */
+    public long getConnectionsReused() {
+        return reused.get();
+    }
+
+    /**
+     * Connections closed for being idle too long.
+     */
+    public long getIdleEvictions() {
+        return evictedIdle.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    /**
+     * Requests sent again on a new connection because a kept-alive one had
+     * been closed by the server.
+     */
+    public long getRetriedRequests() {
+        return retriedRequests.get();
+    }
+
+    /**
+     * Times a request had to wait for a connection because the pool was at
+     * its limit, and the total time spent waiting.
+     */
+    public long getPoolWaits() {
+        return waits.get();
+    }
+
+    public long getPoolWaitMillis() {
+        return waitMillis.get();
+    }
+
+    public int getOpenConnections() {
+        return open;
+    }
+
+    public int getIdleConnections() {
+        return idle;
+    }
+
+    @Override
+   public String toString() {
+        return "open=" + getOpenConnections()
+                + " idle=" + getIdleConnections()
+                + " opened=" + getConnectionsOpened()
+                + " closed=" + getConnectionsClosed()
+                + " reused=" + getConnectionsReused()
+                + " idleEvictions=" + getIdleEvictions()
+                + " requests=" + getRequests()
+                + " failed=" + getFailedRequests()
+                + " retried=" + getRetriedRequests()
+                + " poolWaits=" + getPoolWaits()
+                + " poolWaitMillis=" + getPoolWaitMillis();
+    }
+}
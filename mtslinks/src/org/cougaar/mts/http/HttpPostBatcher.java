@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.http;
+
+import java.util.List;
+
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.BatchCombiner;
+
+/**
+ * Gathers the messages sent to one remote node into batches, so that
+ * messages that are queued while earlier ones are in flight go together in
+ * the next post. Each sender gets back the reply to its own message.
+ * 
+ * @see BatchCombiner
+ */
+class HttpPostBatcher {
+    /**
+     * Sends one batch and completes each of its messages with its reply, or
+     * with the exception if it couldn't be sent.
+     */
+    interface Poster {
+        void post(List<BatchCombiner.Entry<AttributedMessage>> batch);
+    }
+
+    private final BatchCombiner<AttributedMessage> combiner;
+
+    HttpPostBatcher(final Poster poster, int maxBatchSize, int maxPosts) {
+        BatchCombiner.Flusher<AttributedMessage> flusher =
+                new BatchCombiner.Flusher<AttributedMessage>() {
+                    public void flush(List<BatchCombiner.Entry<AttributedMessage>> batch) {
+                        poster.post(batch);
+                    }
+                };
+        combiner = new BatchCombiner<AttributedMessage>(flusher, maxBatchSize, maxPosts);
+    }
+
+    /**
+     * Send the message in a batch, and return the remote node's reply to it,
+     * or the exception if it couldn't be sent.
+     */
+    Object send(AttributedMessage message) {
+        return combiner.submit(message);
+    }
+}
@@ -25,6 +25,7 @@
  */
 package org.cougaar.mts.jms;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Hashtable;
@@ -56,6 +57,7 @@ import org.cougaar.mts.base.MessageDeliverer;
 import org.cougaar.mts.base.MisdeliveredMessageException;
 import org.cougaar.mts.base.NameLookupException;
 import org.cougaar.mts.base.RPCLinkProtocol;
+import org.cougaar.mts.base.ReplyCorrelator;
 import org.cougaar.mts.base.UnregisteredNameException;
 
 /**
@@ -79,32 +81,59 @@ public class JMSLinkProtocol
     private static final String SOCIETY_UID =
             SystemProperties.getProperty("org.cougaar.name.server");
 
+    // Most sessions that sending threads can use at once
+    private static final int MAX_SESSIONS =
+            Integer.parseInt(SystemProperties.getProperty("org.cougaar.mts.jms.sessions", "8"));
+    // Producers each sending session keeps, one per destination
+    private static final int MAX_PRODUCERS =
+            Integer.parseInt(SystemProperties.getProperty("org.cougaar.mts.jms.producers", "64"));
+    // Send in transactions, committing messages queued together at once
+    private static final boolean TRANSACTED =
+            Boolean.valueOf(SystemProperties.getProperty("org.cougaar.mts.jms.transacted",
+                                                         "false")).booleanValue();
+    // Most messages committed in one transaction
+    private static final int TRANSACTION_BATCH_SIZE =
+            Integer.parseInt(SystemProperties.getProperty("org.cougaar.mts.jms.transaction.batch",
+                                                          "64"));
+
     // JNDI naming context to get JMS connection factory and destinations
     private Context context;
     // Connection factory for our JMS server
     private ConnectionFactory factory;
     // Connection to our JMS Server
     private Connection connection;
-    // Session to our JMS Server
+    // Session to our JMS Server, used for receiving messages
     private Session session;
+    // Sessions for sending messages and replies
+    private SessionPool sessionPool;
+    // Batches sends into transactions, if they're enabled
+    private TransactedSender transactedSender;
     // Our JMS destination queue/topic for receiving messages.
     private Destination servantDestination;
     // manager for receiving messages
     private MessageReceiver receiver;
     // manager for sending messages and waiting for replys
     private ReplySync sync;
+    // matches replies to outstanding messages
+    private ReplyCorrelator correlator;
     // JMS Callback object to receive jms messages
     private MessageConsumer consumer;
-    // JMS object for sending messages, not bound to a specific defination.
-    private MessageProducer genericProducer; // shared for all outgoing
-
-    // messages
 
     @Override
    public void load() {
         super.load();
     }
 
+    @Override
+   public void unload() {
+        synchronized (this) {
+            if (correlator != null) {
+                correlator.stop();
+            }
+        }
+        super.unload();
+    }
+
     @Override
    protected int computeCost(AttributedMessage message) {
         // TODO Better cost function for JMS transport
@@ -184,13 +213,20 @@ public class JMSLinkProtocol
         return new MessageReceiver(sync, deliverer);
     }
 
-    protected final ReplySync findOrMakeReplySync() {
+    protected final synchronized ReplySync findOrMakeReplySync() {
         if (sync == null) {
             sync = makeReplySync();
         }
         return sync;
     }
 
+    protected synchronized ReplyCorrelator getReplyCorrelator() {
+        if (correlator == null) {
+            correlator = new ReplyCorrelator(threadService, this);
+        }
+        return correlator;
+    }
+
     protected ReplySync makeReplySync() {
         return new ReplySync(this);
     }
@@ -215,7 +251,11 @@ public class JMSLinkProtocol
                 connection = makeConnection();
                 makeSessionExceptionListener();
                 session = makeSession();
-                genericProducer = makeProducer(null);
+                closeSessionPool();
+                sessionPool = makeSessionPool();
+                transactedSender =
+                        TRANSACTED ? new TransactedSender(sessionPool, TRANSACTION_BATCH_SIZE)
+                                : null;
             } catch (NamingException e) {
                 if (loggingService.isWarnEnabled()) {
                     loggingService.warn("Couldn't get JMS session: Naming Cause=" + e.getMessage());
@@ -273,6 +313,45 @@ public class JMSLinkProtocol
         return session;
     }
 
+    protected SessionPool makeSessionPool() {
+        return new SessionPool(connection, TRANSACTED, MAX_SESSIONS, MAX_PRODUCERS);
+    }
+
+    protected SessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    protected void closeSessionPool() {
+        SessionPool pool = sessionPool;
+        if (pool != null) {
+            pool.close();
+            sessionPool = null;
+            transactedSender = null;
+        }
+    }
+
+    /**
+     * Make a message with the given body and send it, both on one pooled
+     * session, using that session's producer for the destination. The setup,
+     * if any, sets the message's headers and properties in between. If
+     * transacted sends are enabled, the message is committed along with any
+     * others queued at the same time, and this returns once the transaction
+     * has been committed.
+     */
+    protected void send(Destination destination, Serializable body, MessageSetup setup)
+            throws JMSException {
+        SessionPool pool = sessionPool;
+        TransactedSender batcher = transactedSender;
+        if (pool == null) {
+            throw new JMSException("No JMS session");
+        }
+        if (batcher != null) {
+            batcher.send(destination, body, setup);
+        } else {
+            pool.send(destination, body, setup);
+        }
+    }
+
     protected Destination getServant() {
         return servantDestination;
     }
@@ -408,10 +487,6 @@ public class JMSLinkProtocol
         return producer;
     }
 
-    protected MessageProducer getGenericProducer() {
-        return genericProducer;
-    }
-
     protected void flushObsoleteMessages()
             throws JMSException {
         int flushCount = 0;
@@ -444,6 +519,7 @@ public class JMSLinkProtocol
         }
         // Closing connection closes session, producers, consummers, and
         // exception listener
+        closeSessionPool();
         try {
             closeConnection();
         } catch (JMSException e) {
@@ -74,10 +74,15 @@ public class MessageSender
                     }
                 }
             }
-            ObjectMessage jmsMessage = lp.getSession().createObjectMessage(mtsMessage);
-            jmsMessage.setJMSExpiration(ttl);
+            final long expiration = ttl;
             log.debug("TTL would be " + ttl);
-            MessageAttributes metadata = sync.sendMessage(jmsMessage, uri, destination);
+            MessageSetup setup = new MessageSetup() {
+                public void setUp(ObjectMessage jmsMessage)
+                        throws JMSException {
+                    jmsMessage.setJMSExpiration(expiration);
+                }
+            };
+            MessageAttributes metadata = sync.sendMessage(mtsMessage, setup, uri, destination);
             return metadata;
         } catch (JMSException e) {
             if (log.isWarnEnabled()) {
@@ -0,0 +1,20 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.jms;
+
+import javax.jms.JMSException;
+import javax.jms.ObjectMessage;
+
+/**
+ * Sets the headers and properties of a message that
+ * {@link JMSLinkProtocol#send} has made on the session it's about to be sent
+ * on.
+ */
+public interface MessageSetup {
+    void setUp(ObjectMessage message)
+            throws JMSException;
+}
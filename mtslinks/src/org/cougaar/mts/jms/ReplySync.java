@@ -27,21 +27,18 @@ package org.cougaar.mts.jms;
 
 import java.io.Serializable;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
-import javax.jms.Session;
 
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.MisdeliveredMessageException;
+import org.cougaar.mts.base.ReplyCorrelator;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.Logging;
 
@@ -50,17 +47,23 @@ import org.cougaar.util.log.Logging;
  * behave like a synchronous rpc. In particular it blocks the sending thread
  * until a reply for the outgoing message arrives, generates and sends replies
  * for incoming messages, and processes received replies by waking the
- * corresponding thread.
+ * corresponding thread. Requests are matched to replies, and timed out, by
+ * the protocol's {@link ReplyCorrelator}.
+ * <p>
+ * Messages and replies are made and sent with {@link JMSLinkProtocol#send},
+ * on the protocol's pooled sessions. There's no longer one session and
+ * producer shared by all senders, so the <code>getLinkProtocolSession</code>
+ * and <code>getLinkProtocolGenericProducer</code> hooks are gone; subclasses
+ * that used them should call {@link JMSLinkProtocol#send} instead, setting
+ * the message up with a {@link MessageSetup}.
  */
 public class ReplySync {
     public static final int DEFAULT_TIMEOUT = 5000;
     private static final String ID_PROP = "MTS_MSG_ID";
     private static final String IS_MTS_REPLY_PROP = "MTS_REPLY";
-    private static int ID = 0;
 
     protected final JMSLinkProtocol lp;
-    private final Map<Integer, Object> pending;
-    private final Map<Integer, Object> replyData;
+    private final ReplyCorrelator correlator;
     private final int timeout;
     protected final Logger log;
 
@@ -70,8 +73,7 @@ public class ReplySync {
 
     public ReplySync(JMSLinkProtocol lp, int timeout) {
         this.lp = lp;
-        this.pending = new HashMap<Integer, Object>();
-        this.replyData = new HashMap<Integer, Object>();
+        this.correlator = lp.getReplyCorrelator();
         this.log = Logging.getLogger(getClass().getName());
         this.timeout = timeout;
     }
@@ -85,39 +87,49 @@ public class ReplySync {
         message.setBooleanProperty(IS_MTS_REPLY_PROP, false);
     }
 
-    public MessageAttributes sendMessage(Message message, URI uri, Destination destination)
+    /**
+     * Send the body as a message, set up by the given setup if any, and wait
+     * for the reply.
+     */
+    public MessageAttributes sendMessage(Serializable body,
+                                         final MessageSetup setup,
+                                         final URI uri,
+                                         final Destination destination)
             throws JMSException, CommFailureException, MisdeliveredMessageException {
-        message.setJMSReplyTo(lp.getServant());
-        message.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        Integer id = new Integer(++ID);
-        setMessageProperties(message, id, uri, destination);
+        ReplyCorrelator.ReplyFuture future = correlator.register(timeout);
+        final Integer id = future.getId();
+        MessageSetup requestSetup = new MessageSetup() {
+            public void setUp(ObjectMessage message)
+                    throws JMSException {
+                message.setJMSReplyTo(lp.getServant());
+                message.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                setMessageProperties(message, id, uri, destination);
+                if (setup != null) {
+                    setup.setUp(message);
+                }
+            }
+        };
 
-        Object lock = new Object();
-        pending.put(id, lock);
         long startTime = System.currentTimeMillis();
+        boolean sent = false;
         SchedulableStatus.beginNetIO("JMS RPC");
-        synchronized (lock) {
-            lp.getGenericProducer().send(destination, message);
-            while (true) {
-                try {
-                    lock.wait(timeout); // TODO: timeout should be set
-                    // dynamically
-                    break;
-                } catch (InterruptedException ex) {
-
-                }
+        try {
+            lp.send(destination, body, requestSetup);
+            sent = true;
+        } finally {
+            SchedulableStatus.endBlocking();
+            if (!sent) {
+                correlator.cancel(future);
             }
         }
-        SchedulableStatus.endBlocking();
+        Object result = future.get();
         long sendTime = System.currentTimeMillis() - startTime;
-        Object result = replyData.remove(id);
-        pending.remove(id);
         if (result instanceof MessageAttributes) {
             return (MessageAttributes) result;
         } else if (result instanceof MisdeliveredMessageException) {
             MisdeliveredMessageException ex = (MisdeliveredMessageException) result;
             throw ex;
-        } else if (sendTime >= timeout) {
+        } else if (result == ReplyCorrelator.TIMED_OUT) {
             throw new CommFailureException(new RuntimeException("Timeout waiting for reply = "
                     + sendTime));
         } else {
@@ -131,22 +143,16 @@ public class ReplySync {
         replyMsg.setIntProperty(ID_PROP, omsg.getIntProperty(ID_PROP));
     }
 
-    protected Session getLinkProtocolSession() {
-        return lp.getSession();
-    }
-
-    protected MessageProducer getLinkProtocolGenericProducer() {
-        return lp.getGenericProducer();
-    }
-
-    public void replyToMessage(ObjectMessage omsg, Object replyData)
+    public void replyToMessage(final ObjectMessage omsg, Object replyData)
             throws JMSException {
-        ObjectMessage replyMsg =
-                getLinkProtocolSession().createObjectMessage((Serializable) replyData);
-        replyMsg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-        setReplyProperties(omsg, replyMsg);
         Destination dest = omsg.getJMSReplyTo();
-        getLinkProtocolGenericProducer().send(dest, replyMsg);
+        lp.send(dest, (Serializable) replyData, new MessageSetup() {
+            public void setUp(ObjectMessage replyMsg)
+                    throws JMSException {
+                replyMsg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                setReplyProperties(omsg, replyMsg);
+            }
+        });
     }
 
     public boolean isReply(ObjectMessage msg) {
@@ -162,13 +168,7 @@ public class ReplySync {
             if (log.isDebugEnabled()) {
                 log.debug("Value of " + ID_PROP + " property is " + id);
             }
-            replyData.put(id, msg.getObject());
-            Object lock = pending.get(id);
-            if (lock != null) {
-                synchronized (lock) {
-                    lock.notify();
-                }
-            } else {
+            if (!correlator.complete(id, msg.getObject())) {
                 if (log.isWarnEnabled()) {
                     log.warn("Got reply for message we timed out, id=" + id + " msg=" + msg);
                 }
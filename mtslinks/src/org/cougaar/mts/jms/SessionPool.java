@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.jms;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * A bounded pool of JMS sessions on one connection. A JMS session may only be
+ * used by one thread at a time, so each sending thread borrows a session for
+ * the length of a send and gives it back afterwards. Sessions are made as
+ * they're needed, up to <code>maxSessions</code>; beyond that, senders wait
+ * for one to be returned.
+ */
+public class SessionPool {
+    private final Connection connection;
+    private final boolean transacted;
+    private final int maxSessions;
+    private final int maxProducers;
+    private final Logger log;
+
+    // Guarded by this
+    private final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+    private int open;
+    private boolean closed;
+
+    /**
+     * @param maxProducers how many destinations each session keeps a
+     *        producer for
+     */
+    public SessionPool(Connection connection,
+                       boolean transacted,
+                       int maxSessions,
+                       int maxProducers) {
+        this.connection = connection;
+        this.transacted = transacted;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.maxProducers = Math.max(1, maxProducers);
+        this.log = Logging.getLogger(getClass().getName());
+    }
+
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Borrow a session, making a new one if none are idle and the pool isn't
+     * full. The caller must hand it back with {@link #release} or, if the
+     * session failed, {@link #discard}.
+     */
+    public PooledSession acquire()
+            throws JMSException {
+        boolean interrupted = false;
+        try {
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new JMSException("Session pool is closed");
+                    }
+                    if (!idle.isEmpty()) {
+                        return idle.removeFirst();
+                    }
+                    if (open < maxSessions) {
+                        open++;
+                        break;
+                    }
+                    SchedulableStatus.beginWait("JMS session");
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } finally {
+                        SchedulableStatus.endBlocking();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean made = false;
+        try {
+            Session session =
+                    connection.createSession(transacted,
+                                             transacted ? Session.SESSION_TRANSACTED
+                                                     : Session.AUTO_ACKNOWLEDGE);
+            made = true;
+            if (log.isDebugEnabled()) {
+                log.debug("Made " + (transacted ? "transacted " : "") + "session " + session);
+            }
+            return new PooledSession(session);
+        } finally {
+            if (!made) {
+                synchronized (this) {
+                    open--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a message and send it on one borrowed session.
+     */
+    public void send(Destination destination, Serializable body, MessageSetup setup)
+            throws JMSException {
+        PooledSession session = acquire();
+        try {
+            session.send(destination, body, setup);
+        } catch (JMSException e) {
+            discard(session);
+            throw e;
+        } catch (RuntimeException e) {
+            discard(session);
+            throw e;
+        }
+        release(session);
+    }
+
+    /**
+     * Return a borrowed session to the pool.
+     */
+    public void release(PooledSession session) {
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(session);
+                notifyAll();
+                return;
+            }
+            open--;
+        }
+        session.close();
+    }
+
+    /**
+     * Close a borrowed session that failed, rather than returning it, and
+     * make room for a new one.
+     */
+    public void discard(PooledSession session) {
+        synchronized (this) {
+            open--;
+            notifyAll();
+        }
+        session.close();
+    }
+
+    /**
+     * Close the idle sessions and refuse further requests. Sessions that are
+     * out on loan are closed when they're returned.
+     */
+    public void close() {
+        LinkedList<PooledSession> closing;
+        synchronized (this) {
+            closed = true;
+            closing = new LinkedList<PooledSession>(idle);
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledSession session : closing) {
+            session.close();
+        }
+    }
+
+    /**
+     * A session and the producers it has made, one per destination, with the
+     * least recently used producer closed once there are too many.
+     */
+    public final class PooledSession {
+        private final Session session;
+        private final Map<Destination, MessageProducer> producers;
+
+        private PooledSession(Session session) {
+            this.session = session;
+            this.producers = new LinkedHashMap<Destination, MessageProducer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Destination, MessageProducer> eldest) {
+                    if (size() <= maxProducers) {
+                        return false;
+                    }
+                    try {
+                        eldest.getValue().close();
+                    } catch (JMSException e) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Couldn't close producer for " + eldest.getKey() + ": "
+                                    + e.getMessage());
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Send a message with this session's producer for the destination.
+         */
+        public void send(Destination destination, Message message)
+                throws JMSException {
+            MessageProducer producer = producers.get(destination);
+            if (producer == null) {
+                producer = session.createProducer(destination);
+                producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                producers.put(destination, producer);
+            }
+            producer.send(message);
+        }
+
+        /**
+         * Make a message on this session, set it up, and send it.
+         */
+        public void send(Destination destination, Serializable body, MessageSetup setup)
+                throws JMSException {
+            ObjectMessage message = session.createObjectMessage(body);
+            if (setup != null) {
+                setup.setUp(message);
+            }
+            send(destination, message);
+        }
+
+        public void commit()
+                throws JMSException {
+            session.commit();
+        }
+
+        /**
+         * Roll back the current transaction, logging rather than throwing if
+         * that fails too.
+         */
+        public void rollback() {
+            try {
+                session.rollback();
+            } catch (JMSException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Couldn't roll back JMS transaction: " + e.getMessage());
+                }
+            }
+        }
+
+        private void close() {
+            producers.clear();
+            try {
+                // Closing the session closes its producers
+                session.close();
+            } catch (JMSException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Couldn't close session: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.jms;
+
+import java.io.Serializable;
+import java.util.List;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.mts.base.BatchCombiner;
+
+/**
+ * Sends messages on transacted sessions, committing the messages that were
+ * queued together in one transaction. A send returns once the transaction
+ * its message went in has been committed.
+ * 
+ * @see BatchCombiner
+ */
+class TransactedSender {
+    private final SessionPool pool;
+    private final BatchCombiner<Pending> combiner;
+
+    TransactedSender(SessionPool pool, int maxBatchSize) {
+        this.pool = pool;
+        BatchCombiner.Flusher<Pending> flusher = new BatchCombiner.Flusher<Pending>() {
+            public void flush(List<BatchCombiner.Entry<Pending>> batch) {
+                JMSException failure = commit(batch);
+                for (BatchCombiner.Entry<Pending> sent : batch) {
+                    sent.complete(failure);
+                }
+            }
+        };
+        combiner = new BatchCombiner<Pending>(flusher, maxBatchSize, pool.getMaxSessions());
+    }
+
+    /**
+     * Make and send the message on the batch's session, and return once the
+     * transaction it was sent in has been committed.
+     * 
+     * @throws JMSException if the message couldn't be sent, or its
+     *         transaction couldn't be committed
+     */
+    void send(Destination destination, Serializable body, MessageSetup setup)
+            throws JMSException {
+        Object outcome = combiner.submit(new Pending(destination, body, setup));
+        if (outcome instanceof JMSException) {
+            throw (JMSException) outcome;
+        } else if (outcome instanceof RuntimeException) {
+            throw wrap((RuntimeException) outcome);
+        }
+    }
+
+    /**
+     * Send and commit one batch on a pooled session.
+     * 
+     * @return null if the batch was committed, otherwise the exception that
+     *         stopped it
+     */
+    private JMSException commit(List<BatchCombiner.Entry<Pending>> batch) {
+        SessionPool.PooledSession session;
+        try {
+            session = pool.acquire();
+        } catch (JMSException e) {
+            return e;
+        } catch (RuntimeException e) {
+            return wrap(e);
+        }
+        SchedulableStatus.beginNetIO("JMS transaction");
+        try {
+            for (BatchCombiner.Entry<Pending> entry : batch) {
+                Pending pending = entry.getItem();
+                session.send(pending.destination, pending.body, pending.setup);
+            }
+            session.commit();
+        } catch (JMSException e) {
+            session.rollback();
+            pool.discard(session);
+            return e;
+        } catch (RuntimeException e) {
+            session.rollback();
+            pool.discard(session);
+            return wrap(e);
+        } finally {
+            SchedulableStatus.endBlocking();
+        }
+        pool.release(session);
+        return null;
+    }
+
+    private static JMSException wrap(RuntimeException e) {
+        JMSException jmsException = new JMSException(e.toString());
+        jmsException.setLinkedException(e);
+        return jmsException;
+    }
+
+    /**
+     * A queued message.
+     */
+    private static final class Pending {
+        private final Destination destination;
+        private final Serializable body;
+        private final MessageSetup setup;
+
+        private Pending(Destination destination, Serializable body, MessageSetup setup) {
+            this.destination = destination;
+            this.body = body;
+            this.setup = setup;
+        }
+    }
+}
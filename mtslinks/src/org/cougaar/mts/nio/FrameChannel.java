@@ -0,0 +1,402 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.thread.SchedulableStatus;
+
+/**
+ * One end of a long-lived, non-blocking socket connection that carries
+ * length-prefixed frames. Each frame is
+ *
+ * <pre>
+ *   int length   (of everything after this field)
+ *   byte kind    (REQUEST or REPLY)
+ *   long id      (correlation id chosen by the requester)
+ *   byte[] payload
+ * </pre>
+ *
+ * Any number of threads may have requests outstanding on the same channel;
+ * replies are matched to requests by id, so they can arrive in any order.
+ * Reading happens only in the {@link FrameSelector} thread. Writing is done
+ * directly by the sending thread when the socket can take the whole frame,
+ * and is otherwise finished by the selector thread.
+ */
+class FrameChannel {
+    static final byte REQUEST = 1;
+    static final byte REPLY = 2;
+
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * Receives incoming frames and close notifications. Called in the selector
+     * thread, so implementations must not block.
+     */
+    interface Handler {
+        void frameReceived(FrameChannel channel, byte kind, long id, byte[] payload);
+
+        void channelClosed(FrameChannel channel, IOException cause);
+    }
+
+    private final SocketChannel socket;
+    private final FrameSelector selector;
+    private final Handler handler;
+    private final int maxFrameSize;
+
+    // Only touched by the selector thread
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private ByteBuffer body;
+    private byte bodyKind;
+    private long bodyId;
+
+    // Guarded by itself
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    // Guarded by itself
+    private final Map<Long, PendingReply> pending = new HashMap<Long, PendingReply>();
+    private long nextId = 0;
+
+    private volatile IOException closedCause;
+
+    FrameChannel(SocketChannel socket, FrameSelector selector, Handler handler, int maxFrameSize) {
+        this.socket = socket;
+        this.selector = selector;
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    SocketChannel getSocket() {
+        return socket;
+    }
+
+    boolean isOpen() {
+        return closedCause == null;
+    }
+
+    /**
+     * Receives the reply to a request sent with {@link FrameChannel#callAsync}.
+     * Called in the selector thread, or whichever thread closes the channel,
+     * so implementations must not block.
+     */
+    interface ReplyListener {
+        void replyReceived(byte[] payload);
+
+        void replyFailed(IOException cause);
+    }
+
+    /**
+     * Send a request and block until its reply arrives, the channel closes or
+     * the timeout expires.
+     *
+     * @return the payload of the reply
+     */
+    byte[] call(byte[] payload, long timeoutMillis)
+            throws IOException {
+        PendingReply reply = new PendingReply(null, timeoutMillis);
+        long id = addPending(reply);
+        try {
+            send(REQUEST, id, payload);
+            return reply.await(timeoutMillis);
+        } finally {
+            removePending(id);
+        }
+    }
+
+    /**
+     * Send a request without waiting for its reply. Unless this throws, the
+     * listener will be told about the reply, or about a failure if the
+     * channel closes or the timeout expires first.
+     */
+    void callAsync(byte[] payload, long timeoutMillis, ReplyListener listener)
+            throws IOException {
+        PendingReply reply = new PendingReply(listener, timeoutMillis);
+        long id = addPending(reply);
+        try {
+            send(REQUEST, id, payload);
+        } catch (IOException e) {
+            removePending(id);
+            if (reply.cancel()) {
+                throw e;
+            }
+            // else closing the channel has already notified the listener
+        }
+    }
+
+    /**
+     * Fail asynchronous requests whose timeout has expired. Called
+     * periodically by the selector thread.
+     */
+    void expireReplies(long now) {
+        List<PendingReply> expired = null;
+        synchronized (pending) {
+            Iterator<PendingReply> itr = pending.values().iterator();
+            while (itr.hasNext()) {
+                PendingReply reply = itr.next();
+                if (reply.isExpired(now)) {
+                    if (expired == null) {
+                        expired = new ArrayList<PendingReply>();
+                    }
+                    expired.add(reply);
+                    itr.remove();
+                }
+            }
+        }
+        if (expired != null) {
+            for (PendingReply reply : expired) {
+                reply.complete(null, new SocketTimeoutException("No reply after "
+                        + reply.timeoutMillis + "ms"));
+            }
+        }
+    }
+
+    private long addPending(PendingReply reply) {
+        synchronized (pending) {
+            long id = ++nextId;
+            pending.put(id, reply);
+            return id;
+        }
+    }
+
+    private void removePending(long id) {
+        synchronized (pending) {
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Queue a frame for writing, and write as much of the queue as the socket
+     * will take right now. Whatever is left is written by the selector thread.
+     */
+    void send(byte kind, long id, byte[] payload)
+            throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(HEADER_SIZE - LENGTH_SIZE + payload.length);
+        frame.put(kind);
+        frame.putLong(id);
+        frame.put(payload);
+        frame.flip();
+        boolean needSelector;
+        try {
+            synchronized (writeQueue) {
+                checkOpen();
+                writeQueue.add(frame);
+                if (writeQueue.size() > 1) {
+                    // earlier frames are still waiting for the selector
+                    return;
+                }
+                needSelector = !flushWriteQueue();
+            }
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        }
+        if (needSelector) {
+            selector.requestWrite(this);
+        }
+    }
+
+    /**
+     * Called in the selector thread when the socket is writable. The selector
+     * closes the channel if this throws.
+     *
+     * @return true if the write queue is now empty
+     */
+    boolean writable()
+            throws IOException {
+        synchronized (writeQueue) {
+            return flushWriteQueue();
+        }
+    }
+
+    // Caller holds the writeQueue lock
+    private boolean flushWriteQueue()
+            throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer frame = writeQueue.getFirst();
+            socket.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            writeQueue.removeFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Called in the selector thread when the socket is readable. Reads
+     * everything available and hands each complete frame to the handler.
+     */
+    void readable()
+            throws IOException {
+        while (true) {
+            ByteBuffer buffer = body != null ? body : header;
+            int count = socket.read(buffer);
+            if (count < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            if (body == null) {
+                header.flip();
+                int length = header.getInt();
+                bodyKind = header.get();
+                bodyId = header.getLong();
+                header.clear();
+                int payloadSize = length - (HEADER_SIZE - LENGTH_SIZE);
+                if (payloadSize < 0 || payloadSize > maxFrameSize) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                body = ByteBuffer.allocate(payloadSize);
+            }
+            if (!body.hasRemaining()) {
+                byte[] payload = body.array();
+                body = null;
+                if (bodyKind == REPLY) {
+                    replyReceived(bodyId, payload);
+                } else {
+                    handler.frameReceived(this, bodyKind, bodyId, payload);
+                }
+            }
+        }
+    }
+
+    private void replyReceived(long id, byte[] payload) {
+        PendingReply reply;
+        synchronized (pending) {
+            reply = pending.remove(id);
+        }
+        if (reply != null) {
+            reply.complete(payload, null);
+        }
+        // else the requester has already timed out
+    }
+
+    /**
+     * Close the socket and fail all outstanding requests. Safe to call more
+     * than once, from any thread.
+     */
+    void close(IOException cause) {
+        synchronized (writeQueue) {
+            if (closedCause != null) {
+                return;
+            }
+            closedCause = cause != null ? cause : new EOFException("Connection closed");
+            writeQueue.clear();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        List<PendingReply> failed;
+        synchronized (pending) {
+            failed = new ArrayList<PendingReply>(pending.values());
+            pending.clear();
+        }
+        for (PendingReply reply : failed) {
+            reply.complete(null, closedCause);
+        }
+        handler.channelClosed(this, closedCause);
+    }
+
+    private void checkOpen()
+            throws IOException {
+        IOException cause = closedCause;
+        if (cause != null) {
+            IOException ex = new IOException("Connection is closed: " + cause.getMessage());
+            ex.initCause(cause);
+            throw ex;
+        }
+    }
+
+    private static class PendingReply {
+        private final ReplyListener listener; // null for blocking calls
+        private final long timeoutMillis;
+        private final long deadline;
+        private byte[] payload;
+        private IOException failure;
+        private boolean done;
+
+        PendingReply(ReplyListener listener, long timeoutMillis) {
+            this.listener = listener;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = System.currentTimeMillis() + timeoutMillis;
+        }
+
+        // Blocking calls time themselves out in await
+        boolean isExpired(long now) {
+            return listener != null && now >= deadline;
+        }
+
+        synchronized boolean cancel() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+
+        void complete(byte[] payload, IOException failure) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.payload = payload;
+                this.failure = failure;
+                this.done = true;
+                notifyAll();
+            }
+            if (listener != null) {
+                if (failure == null) {
+                    listener.replyReceived(payload);
+                } else {
+                    listener.replyFailed(failure);
+                }
+            }
+        }
+
+        synchronized byte[] await(long timeoutMillis)
+                throws IOException {
+            try {
+                SchedulableStatus.beginNetIO("NIO reply wait");
+                while (!done) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("No reply after " + timeoutMillis + "ms");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for reply");
+                    }
+                }
+            } finally {
+                SchedulableStatus.endBlocking();
+            }
+            if (failure != null) {
+                IOException ex = new IOException("Connection failed: " + failure.getMessage());
+                ex.initCause(failure);
+                throw ex;
+            }
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * The single reader thread of a {@link NioSocketLinkProtocol}. It accepts
+ * incoming connections on the server channel, reads frames from every open
+ * {@link FrameChannel}, inbound or outbound, and finishes writes that the
+ * sending threads couldn't complete.
+ * <p>
+ * Other threads never touch the {@link Selector} directly: they queue their
+ * requests here and wake the selector up.
+ */
+class FrameSelector
+        implements Runnable {
+    // How often to look for asynchronous requests that have timed out
+    private static final long EXPIRY_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final FrameChannel.Handler handler;
+    private final int maxFrameSize;
+    private final Logger log;
+
+    // Guarded by itself
+    private final List<FrameChannel> pendingRegistrations = new ArrayList<FrameChannel>();
+    // Guarded by pendingRegistrations
+    private final List<FrameChannel> pendingWrites = new ArrayList<FrameChannel>();
+
+    private volatile boolean closed;
+
+    FrameSelector(ServerSocketChannel server, FrameChannel.Handler handler, int maxFrameSize)
+            throws IOException {
+        this.server = server;
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+        this.log = Logging.getLogger(getClass().getName());
+        this.selector = Selector.open();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Open an outbound connection. The connect itself blocks the caller; after
+     * that the channel is non-blocking and read by this selector.
+     */
+    FrameChannel connect(InetSocketAddress address)
+            throws IOException {
+        SocketChannel socket = SocketChannel.open();
+        try {
+            SchedulableStatus.beginNetIO("NIO connect");
+            socket.connect(address);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } finally {
+            SchedulableStatus.endBlocking();
+        }
+        return register(socket);
+    }
+
+    /**
+     * Ask the selector thread to flush the given channel when it becomes
+     * writable.
+     */
+    void requestWrite(FrameChannel channel) {
+        synchronized (pendingRegistrations) {
+            pendingWrites.add(channel);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Stop the selector thread and close every channel it knows about,
+     * including the server channel.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        long nextExpiry = System.currentTimeMillis() + EXPIRY_INTERVAL;
+        try {
+            while (!closed) {
+                selector.select(EXPIRY_INTERVAL);
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiry) {
+                    expireReplies(now);
+                    nextExpiry = now + EXPIRY_INTERVAL;
+                }
+                processPendingRequests();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else {
+                        processChannel(key);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed under us
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("NIO selector failed: " + e.getMessage());
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private FrameChannel register(SocketChannel socket)
+            throws IOException {
+        socket.configureBlocking(false);
+        socket.socket().setTcpNoDelay(true);
+        FrameChannel channel = new FrameChannel(socket, this, handler, maxFrameSize);
+        synchronized (pendingRegistrations) {
+            if (closed) {
+                socket.close();
+                throw new IOException("Selector closed");
+            }
+            pendingRegistrations.add(channel);
+        }
+        selector.wakeup();
+        return channel;
+    }
+
+    private void accept() {
+        try {
+            SocketChannel socket = server.accept();
+            if (socket == null) {
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Accepted NIO connection from "
+                        + socket.socket().getRemoteSocketAddress());
+            }
+            register(socket);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Failed to accept NIO connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void expireReplies(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof FrameChannel) {
+                ((FrameChannel) attachment).expireReplies(now);
+            }
+        }
+    }
+
+    private void processPendingRequests() {
+        List<FrameChannel> registrations;
+        List<FrameChannel> writes;
+        synchronized (pendingRegistrations) {
+            registrations = new ArrayList<FrameChannel>(pendingRegistrations);
+            writes = new ArrayList<FrameChannel>(pendingWrites);
+            pendingRegistrations.clear();
+            pendingWrites.clear();
+        }
+        for (FrameChannel channel : registrations) {
+            try {
+                channel.getSocket().register(selector, SelectionKey.OP_READ, channel);
+            } catch (IOException e) {
+                channel.close(e);
+            }
+        }
+        for (FrameChannel channel : writes) {
+            SelectionKey key = channel.getSocket().keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void processChannel(SelectionKey key) {
+        FrameChannel channel = (FrameChannel) key.attachment();
+        try {
+            if (key.isReadable()) {
+                channel.readable();
+            }
+            if (key.isValid() && key.isWritable() && channel.writable()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (CancelledKeyException e) {
+            channel.close(null);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Closing NIO connection: " + e.getMessage());
+            }
+            channel.close(e);
+        }
+    }
+
+    private void shutdown() {
+        closed = true;
+        IOException cause = new IOException("Selector closed");
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            Object attachment = key.attachment();
+            if (attachment instanceof FrameChannel) {
+                ((FrameChannel) attachment).close(cause);
+            }
+        }
+        List<FrameChannel> unregistered;
+        synchronized (pendingRegistrations) {
+            unregistered = new ArrayList<FrameChannel>(pendingRegistrations);
+            pendingRegistrations.clear();
+            pendingWrites.clear();
+        }
+        for (FrameChannel channel : unregistered) {
+            channel.close(cause);
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
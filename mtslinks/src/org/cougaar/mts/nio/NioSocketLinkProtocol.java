@@ -0,0 +1,448 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.node.NodeIdentificationService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.mts.base.AsyncDestinationLink;
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.mts.base.CommFailureException;
+import org.cougaar.mts.base.DestinationLink;
+import org.cougaar.mts.base.ForwardCallback;
+import org.cougaar.mts.base.MisdeliveredMessageException;
+import org.cougaar.mts.base.NameLookupException;
+import org.cougaar.mts.base.RPCLinkProtocol;
+import org.cougaar.mts.base.UnregisteredNameException;
+import org.cougaar.util.annotations.Cougaar;
+
+/**
+ * RPC link protocol over persistent, multiplexed TCP connections using
+ * java.nio. Each node listens on one server socket and keeps at most one
+ * outgoing connection to each remote node, shared by all the destination
+ * queues sending to agents on that node. Messages and their replies travel as
+ * length-prefixed frames tagged with a correlation id (see
+ * {@link FrameChannel}), so many requests can be in flight on a connection at
+ * once. A single selector thread reads every connection; incoming messages are
+ * delivered in a pooled thread per connection, in the order they were sent, so
+ * a slow agent can't stall the socket.
+ * <p>
+ * Links support asynchronous forwarding (see
+ * {@link AsyncDestinationLink#forwardMessageAsync}), so a destination queue with a
+ * window greater than one, and the SequenceAspect loaded, can keep several
+ * messages in flight.
+ * <p>
+ * The node's address is registered in the WP as <tt>nio://host:port/</tt>
+ * under the type <tt>-NIO</tt>. To try it with two nodes on one host, load
+ * this component in both nodes, either with the default port of 0 or with
+ * distinct ports.
+ */
+public class NioSocketLinkProtocol
+        extends RPCLinkProtocol {
+
+    @Cougaar.Arg(name = "port", defaultValue = "0")
+    private int port;
+
+    /**
+     * Milliseconds to wait for the reply to a forwarded message before
+     * treating the send as a communication failure.
+     */
+    @Cougaar.Arg(name = "replyTimeout", defaultValue = "30000")
+    private int replyTimeout;
+
+    /**
+     * Largest frame payload, in bytes, that will be accepted from a peer.
+     */
+    @Cougaar.Arg(name = "maxFrameSize", defaultValue = "16777216")
+    private int maxFrameSize;
+
+    private ServerSocketChannel serverChannel;
+    private FrameSelector frameSelector;
+    private URI servantUri;
+    private final Map<URI, FrameChannel> connections = new HashMap<URI, FrameChannel>();
+    private final Map<FrameChannel, DeliveryLane> lanes =
+            new HashMap<FrameChannel, DeliveryLane>();
+    private final FrameChannel.Handler frameHandler = new FrameHandler();
+
+    /**
+     * Cheaper than HTTP, which makes a new request per message, and RMI.
+     */
+    @Override
+   protected int computeCost(AttributedMessage message) {
+        return 400;
+    }
+
+    @Override
+   protected DestinationLink createDestinationLink(MessageAddress address) {
+        return new NioLink(address);
+    }
+
+    @Override
+   protected String getProtocolType() {
+        return "-NIO";
+    }
+
+    @Override
+   protected Boolean usesEncryptedSocket() {
+        return false;
+    }
+
+    @Override
+   protected void ensureNodeServant() {
+        if (servantUri != null) {
+            return;
+        }
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            frameSelector = new FrameSelector(serverChannel, frameHandler, maxFrameSize);
+        } catch (IOException e) {
+            loggingService.warn("Couldn't create NIO server socket: " + e.getMessage());
+            releaseNodeServant();
+            return;
+        }
+
+        try {
+            servantUri = makeURI();
+        } catch (URISyntaxException e) {
+            loggingService.error("Failed to make URI for NIO servant", e);
+            releaseNodeServant();
+            return;
+        }
+
+        int lane = ThreadService.WILL_BLOCK_LANE;
+        Schedulable reader = threadService.getThread(this, frameSelector, "NIO Selector", lane);
+        reader.start();
+        setNodeURI(servantUri);
+    }
+
+    @Override
+   protected void releaseNodeServant() {
+        servantUri = null;
+        setNodeURI(null);
+        if (frameSelector != null) {
+            // closes the server channel and all connections
+            frameSelector.close();
+            frameSelector = null;
+        } else if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        serverChannel = null;
+        synchronized (connections) {
+            connections.clear();
+        }
+    }
+
+    @Override
+   protected void remakeNodeServant() {
+        if (isServantAlive()) {
+            releaseNodeServant();
+        }
+        ensureNodeServant();
+    }
+
+    /**
+     * We must have an open server socket and a non-null servant
+     */
+    @Override
+   protected boolean isServantAlive() {
+        return serverChannel != null && serverChannel.isOpen() && servantUri != null
+                && super.isServantAlive();
+    }
+
+    private URI makeURI()
+            throws URISyntaxException {
+        int localPort = serverChannel.socket().getLocalPort();
+        ServiceBroker sb = getServiceBroker();
+        NodeIdentificationService nis = sb.getService(this, NodeIdentificationService.class, null);
+        InetAddress localHost = nis.getInetAddress();
+        sb.releaseService(this, NodeIdentificationService.class, nis);
+        if (localHost == null) {
+            throw new URISyntaxException("Local ip address is unavailable", null);
+        }
+        return new URI("nio://" + localHost.getHostAddress() + ":" + localPort + "/");
+    }
+
+    /**
+     * Return the shared connection to the given node, opening it if necessary.
+     */
+    private FrameChannel getConnection(URI uri)
+            throws IOException {
+        synchronized (connections) {
+            FrameChannel connection = connections.get(uri);
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+            FrameSelector selector = frameSelector;
+            if (selector == null) {
+                throw new IOException("NIO servant is not available");
+            }
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort());
+            connection = selector.connect(address);
+            connections.put(uri, connection);
+            if (loggingService.isInfoEnabled()) {
+                loggingService.info("Opened NIO connection to " + uri);
+            }
+            return connection;
+        }
+    }
+
+    private static byte[] toBytes(Object object)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static Object fromBytes(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Deliver one incoming message and send the result back, as the HTTP
+     * servlet does: the reply is the delivery's MessageAttributes, or the
+     * exception that prevented delivery.
+     */
+    private void deliver(FrameChannel channel, long id, byte[] payload) {
+        Object result;
+        try {
+            Object object = fromBytes(payload);
+            if (object instanceof AttributedMessage) {
+                AttributedMessage message = (AttributedMessage) object;
+                if (loggingService.isDebugEnabled()) {
+                    loggingService.debug("Delivering from " + message.getOriginator() + " to "
+                            + message.getTarget());
+                }
+                result = getDeliverer().deliverMessage(message, message.getTarget());
+            } else {
+                Exception e =
+                        new IllegalArgumentException("send message content of class: "
+                                + object.getClass().getName());
+                result = new CommFailureException(e);
+            }
+        } catch (MisdeliveredMessageException e) {
+            result = e;
+        } catch (Exception e) {
+            result = new CommFailureException(e);
+        }
+        try {
+            channel.send(FrameChannel.REPLY, id, toBytes(result));
+        } catch (IOException e) {
+            if (loggingService.isWarnEnabled()) {
+                loggingService.warn("Couldn't send NIO reply: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delivers the requests arriving on one connection, one at a time and in
+     * order, in a pooled thread.
+     */
+    private class DeliveryLane
+            implements Runnable {
+        private final FrameChannel channel;
+        private final Schedulable thread;
+        // Guarded by itself
+        private final LinkedList<Request> requests = new LinkedList<Request>();
+
+        DeliveryLane(FrameChannel channel) {
+            this.channel = channel;
+            int lane = ThreadService.WILL_BLOCK_LANE;
+            this.thread = threadService.getThread(NioSocketLinkProtocol.this, this,
+                                                  "NIO Delivery", lane);
+        }
+
+        void add(long id, byte[] payload) {
+            synchronized (requests) {
+                requests.add(new Request(id, payload));
+            }
+            thread.start();
+        }
+
+        public void run() {
+            while (true) {
+                Request request;
+                synchronized (requests) {
+                    if (requests.isEmpty()) {
+                        return;
+                    }
+                    request = requests.removeFirst();
+                }
+                deliver(channel, request.id, request.payload);
+            }
+        }
+    }
+
+    private static class Request {
+        private final long id;
+        private final byte[] payload;
+
+        Request(long id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    private class FrameHandler
+            implements FrameChannel.Handler {
+        public void frameReceived(FrameChannel channel, byte kind, long id, byte[] payload) {
+            if (kind != FrameChannel.REQUEST) {
+                if (loggingService.isWarnEnabled()) {
+                    loggingService.warn("Ignoring NIO frame of unknown kind " + kind);
+                }
+                return;
+            }
+            DeliveryLane lane;
+            synchronized (lanes) {
+                lane = lanes.get(channel);
+                if (lane == null) {
+                    lane = new DeliveryLane(channel);
+                    lanes.put(channel, lane);
+                }
+            }
+            lane.add(id, payload);
+        }
+
+        public void channelClosed(FrameChannel channel, IOException cause) {
+            synchronized (connections) {
+                connections.values().remove(channel);
+            }
+            synchronized (lanes) {
+                lanes.remove(channel);
+            }
+            if (loggingService.isDebugEnabled()) {
+                loggingService.debug("NIO connection closed: " + cause.getMessage());
+            }
+        }
+    }
+
+    private class NioLink
+            extends Link {
+
+        private NioLink(MessageAddress destination) {
+            super(destination);
+        }
+
+        @Override
+      public boolean isValid(AttributedMessage message) {
+            return ensureNodeServantIsAlive() && super.isValid(message);
+        }
+
+        @Override
+      protected Object decodeRemoteRef(URI ref)
+                throws Exception {
+            if (loggingService.isInfoEnabled()) {
+                loggingService.info("Remote URI for " + getDestination() + " is " + ref);
+            }
+            return ref;
+        }
+
+        @Override
+      protected MessageAttributes forwardByProtocol(Object remote, AttributedMessage message)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            Object response;
+            try {
+                FrameChannel connection = getConnection((URI) remote);
+                byte[] reply = connection.call(toBytes(message), replyTimeout);
+                response = fromBytes(reply);
+            } catch (Exception e) {
+                decache();
+                throw new CommFailureException(e);
+            }
+            return decodeResponse(response);
+        }
+
+        @Override
+      public boolean supportsAsyncForwarding() {
+            return true;
+        }
+
+        @Override
+      protected void forwardAsyncByProtocol(Object remote,
+                                              final AttributedMessage message,
+                                              final ForwardCallback callback)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            FrameChannel.ReplyListener listener = new FrameChannel.ReplyListener() {
+                public void replyReceived(byte[] payload) {
+                    try {
+                        callback.forwarded(message, decodeResponse(fromBytes(payload)));
+                    } catch (MisdeliveredMessageException e) {
+                        callback.failed(message, e);
+                    } catch (CommFailureException e) {
+                        callback.failed(message, e);
+                    } catch (Exception e) {
+                        callback.failed(message, new CommFailureException(e));
+                    }
+                }
+
+                public void replyFailed(IOException cause) {
+                    decache();
+                    callback.failed(message, new CommFailureException(cause));
+                }
+            };
+            try {
+                FrameChannel connection = getConnection((URI) remote);
+                connection.callAsync(toBytes(message), replyTimeout, listener);
+            } catch (IOException e) {
+                decache();
+                throw new CommFailureException(e);
+            }
+        }
+
+        private MessageAttributes decodeResponse(Object response)
+                throws CommFailureException, MisdeliveredMessageException {
+            if (response instanceof MessageAttributes) {
+                return (MessageAttributes) response;
+            } else if (response instanceof MisdeliveredMessageException) {
+                decache();
+                throw (MisdeliveredMessageException) response;
+            } else if (response instanceof CommFailureException) {
+                throw (CommFailureException) response;
+            } else {
+                throw new CommFailureException(new IllegalStateException("Unexpected reply "
+                        + response));
+            }
+        }
+
+        public Class<NioSocketLinkProtocol> getProtocolClass() {
+            return NioSocketLinkProtocol.class;
+        }
+    }
+}
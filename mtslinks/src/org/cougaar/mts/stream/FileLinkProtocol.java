@@ -6,13 +6,30 @@
 
 package org.cougaar.mts.stream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.mts.base.AttributedMessage;
@@ -20,15 +37,69 @@ import org.cougaar.util.annotations.Cougaar;
 
 /**
  * Send messages via file-sharing.
+ * <p>
+ * Each message is written straight into the receiving node's inbox
+ * directory, in one write, behind a header that gives its length. The reader
+ * doesn't read past a file until all of it is there, so there's no need to
+ * write elsewhere and rename. File names start with the time they were
+ * written, and the receiver handles them in name order: roughly the order
+ * they were sent, and exactly that order for each sender.
+ * <p>
+ * Nodes running older versions of this protocol read every file in the
+ * <tt>msgs</tt> directory as soon as it appears, and write files there
+ * without a header, by way of a rename. For them, the receiver still reads
+ * <tt>msgs</tt> and accepts files without a header, and a sender that finds no
+ * inbox at the destination writes the old way.
+ * <p>
+ * The receiver learns of new files from a {@link WatchService}, reading up to
+ * <tt>batchSize</tt> files at a time and queueing their messages to be
+ * handled. Because watch events aren't delivered
+ * on every file system (remote writes on NFS, for instance), the directories
+ * are also listed every <tt>scanInterval</tt> milliseconds.
  */
 public class FileLinkProtocol
         extends PollingStreamLinkProtocol<File> {
+    private static final String INBOX_SUBDIRECTORY = "inbox";
+    // Where older versions read and write, and where they make files first
     private static final String DATA_SUBDIRECTORY = "msgs";
     private static final String TMP_SUBDIRECTORY = "temp";
+    private static final String MESSAGE_SUFFIX = ".msg";
+    private static final int MAGIC = 0xC0F11E01;
+    private static final int HEADER_SIZE = 8;
+    // How a file without a header starts: the serialization stream magic
+    private static final short STREAM_MAGIC = (short) 0xACED;
+
+    /**
+     * Incomplete files older than this are assumed to have been abandoned by
+     * their writers.
+     */
+    private static final long INCOMPLETE_TIMEOUT = 10000;
+
+    /**
+     * Milliseconds to wait before looking again at a file that's still being
+     * written.
+     */
+    private static final long INCOMPLETE_RETRY = 2;
 
     @Cougaar.Arg(name = "rootDirectory", defaultValue = "/tmp/cougaar")
     private String rootDirectory;
 
+    /**
+     * Milliseconds between listings of the message directories, in case watch
+     * events are missed.
+     */
+    @Cougaar.Arg(name = "scanInterval", defaultValue = "1000")
+    private int scanInterval;
+
+    /**
+     * Most message files to read before looking for more.
+     */
+    @Cougaar.Arg(name = "batchSize", defaultValue = "256")
+    private int batchSize;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private FileReceiver fileReceiver;
+
     @Override
    protected int computeCost(AttributedMessage message) {
         // very cheap
@@ -40,6 +111,11 @@ public class FileLinkProtocol
         return "-FILE";
     }
 
+    private File getInboxSubdirectory(URI uri) {
+        File rootDirectory = new File(uri.getPath());
+        return new File(rootDirectory, INBOX_SUBDIRECTORY);
+    }
+
     private File getDataSubdirectory(URI uri) {
         File rootDirectory = new File(uri.getPath());
         return new File(rootDirectory, DATA_SUBDIRECTORY);
@@ -70,28 +146,71 @@ public class FileLinkProtocol
     @Override
    protected File processOutgoingMessage(URI destination, MessageAttributes message)
             throws IOException {
-        // serialize message to a temp file
+        File inbox = getInboxSubdirectory(destination);
+        if (!inbox.isDirectory()) {
+            // The destination is running an older version
+            return writeLegacyMessage(destination, message);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        bytes.write(new byte[HEADER_SIZE]);
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(message);
+        oos.close();
+        byte[] data = bytes.toByteArray();
+        ByteBuffer.wrap(data).putInt(MAGIC).putInt(data.length - HEADER_SIZE);
+
+        String sender = getNameSupport().getNodeMessageAddress().getAddress();
+        while (true) {
+            // Time first, so names sort in the order they were written
+            String name =
+                    String.format("%012x-%s-%08x%s", System.currentTimeMillis(), sender,
+                                  sequence.incrementAndGet(), MESSAGE_SUFFIX);
+            File messageFile = new File(inbox, name);
+            OutputStream out;
+            try {
+                out = Files.newOutputStream(messageFile.toPath(), StandardOpenOption.CREATE_NEW);
+            } catch (FileAlreadyExistsException e) {
+                // Left from an earlier run of this node
+                continue;
+            }
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (loggingService.isDebugEnabled()) {
+                loggingService.debug("Wrote message to " + messageFile);
+            }
+            return messageFile;
+        }
+    }
+
+    /**
+     * Write the message the way older versions read it: serialized with no
+     * header, into a temporary file that's renamed into the message directory
+     * once it's complete.
+     */
+    private File writeLegacyMessage(URI destination, MessageAttributes message)
+            throws IOException {
         File tempDir = getTmpSubdirectory(destination);
         File dataDir = getDataSubdirectory(destination);
         tempDir.mkdirs();
         dataDir.mkdir();
 
-        File temp = File.createTempFile("FileLinkProtocol", ".msg", tempDir);
-        FileOutputStream fos = null;
+        File temp = File.createTempFile("FileLinkProtocol", MESSAGE_SUFFIX, tempDir);
+        OutputStream out = Files.newOutputStream(temp.toPath());
         try {
-            fos = new FileOutputStream(temp);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
             oos.writeObject(message);
             oos.flush();
         } finally {
-            if (fos != null) {
-                fos.close();
-            }
+            out.close();
         }
-
-        // rename the temp file to a unique name in the directory
         File messageFile = new File(dataDir, temp.getName());
-        temp.renameTo(messageFile);
+        if (!temp.renameTo(messageFile)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + messageFile);
+        }
         if (loggingService.isDebugEnabled()) {
             loggingService.debug("Wrote message to " + messageFile);
         }
@@ -99,8 +218,18 @@ public class FileLinkProtocol
     }
 
     @Override
-   protected Runnable makePollerTask() {
-        return new FilePoller();
+   protected Runnable makeReceiverTask() {
+        fileReceiver = new FileReceiver();
+        return fileReceiver;
+    }
+
+    @Override
+   protected void releaseNodeServant() {
+        super.releaseNodeServant();
+        if (fileReceiver != null) {
+            fileReceiver.close();
+            fileReceiver = null;
+        }
     }
 
     @Override
@@ -108,43 +237,219 @@ public class FileLinkProtocol
         return 1000;
     }
 
-    private class FilePoller
+    /**
+     * Runs repeatedly in a blocking thread. Each run waits for watch events
+     * until there's something to read or a scan is due, then reads a batch of
+     * files and queues their messages.
+     */
+    private class FileReceiver
             implements Runnable {
-        private final File directory;
+        private final Path inbox;
+        private final Path legacy;
+        private WatchService watcher;
+        private long nextScan;
+        private boolean stalled;
 
-        FilePoller() {
-            directory = getDataSubdirectory(getServantUri());
+        // Files that may be ready to read. Those in the inbox sort in the
+        // order they were written.
+        private final TreeSet<Path> ready = new TreeSet<Path>();
+
+        FileReceiver() {
+            URI uri = getServantUri();
+            File legacyDir = getDataSubdirectory(uri);
+            legacyDir.mkdirs();
+            legacy = legacyDir.toPath();
+            // Senders take the inbox as the sign that we read headers
+            File inboxDir = getInboxSubdirectory(uri);
+            inboxDir.mkdirs();
+            inbox = inboxDir.toPath();
+            try {
+                watcher = inbox.getFileSystem().newWatchService();
+                inbox.register(watcher,
+                               StandardWatchEventKinds.ENTRY_CREATE,
+                               StandardWatchEventKinds.ENTRY_MODIFY);
+                legacy.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+            } catch (IOException e) {
+                if (loggingService.isWarnEnabled()) {
+                    loggingService.warn("Can't watch " + inbox + ", scanning it every "
+                            + scanInterval + "ms instead: " + e.getMessage());
+                }
+                closeWatcher();
+            }
         }
 
         public void run() {
-            if (directory.exists()) {
-                File[] contents = directory.listFiles();
-                for (File file : contents) {
-                    processFile(file);
-                    file.delete();
+            try {
+                if (ready.isEmpty() || stalled) {
+                    waitForFiles();
+                }
+                readBatch();
+            } catch (ClosedWatchServiceException e) {
+                // released
+            }
+        }
+
+        private void waitForFiles() {
+            long now = System.currentTimeMillis();
+            WatchService events = getWatcher();
+            if (now < nextScan && events != null) {
+                WatchKey key;
+                try {
+                    long timeout = nextScan - now;
+                    if (stalled) {
+                        timeout = Math.min(timeout, INCOMPLETE_RETRY);
+                    }
+                    key = events.poll(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean overflow = false;
+                while (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            ready.add(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                    key = events.poll();
+                }
+                if (!overflow) {
+                    return;
+                }
+            } else if (now < nextScan) {
+                try {
+                    long delay = nextScan - now;
+                    Thread.sleep(stalled ? Math.min(delay, INCOMPLETE_RETRY) : delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            scan();
+        }
+
+        private void scan() {
+            nextScan = System.currentTimeMillis() + scanInterval;
+            scan(inbox);
+            scan(legacy);
+        }
+
+        private void scan(Path directory) {
+            DirectoryStream<Path> contents;
+            try {
+                contents = Files.newDirectoryStream(directory, "*" + MESSAGE_SUFFIX);
+            } catch (IOException e) {
+                if (loggingService.isWarnEnabled()) {
+                    loggingService.warn("Can't list " + directory + ": " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                for (Path file : contents) {
+                    ready.add(file);
+                }
+            } finally {
+                try {
+                    contents.close();
+                } catch (IOException e) {
+                    // don't care
                 }
             }
         }
 
-        private void processFile(File file) {
+        /**
+         * Read files in order until the batch is done or a file isn't
+         * complete yet. In that case, the ones after it wait too.
+         */
+        private void readBatch() {
+            stalled = false;
+            Iterator<Path> files = ready.iterator();
+            for (int i = 0; i < batchSize && files.hasNext(); i++) {
+                Path file = files.next();
+                if (file.getFileName().toString().endsWith(MESSAGE_SUFFIX)
+                        && !processFile(file)) {
+                    stalled = true;
+                    return;
+                }
+                files.remove();
+            }
+        }
+
+        /**
+         * Read and delete the file if it's complete.
+         * 
+         * @return false if the file is still being written
+         */
+        private boolean processFile(Path file) {
+            byte[] data;
+            try {
+                data = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                loggingService.error("Error reading '" + file + "': " + e.getMessage(), e);
+                return true;
+            }
+            ByteBuffer header = ByteBuffer.wrap(data);
+            if (data.length >= 2 && header.getShort(0) == STREAM_MAGIC) {
+                // From an older version, which renames files when complete
+                if (loggingService.isDebugEnabled()) {
+                    loggingService.debug("Handling message in " + file);
+                }
+                delete(file);
+                enqueueIncomingMessage(new ByteArrayInputStream(data));
+                return true;
+            }
+            if (data.length >= 4 && header.getInt(0) != MAGIC) {
+                loggingService.error("Not a message file: " + file);
+                delete(file);
+                return true;
+            }
+            if (data.length < HEADER_SIZE || data.length < HEADER_SIZE + header.getInt(4)) {
+                long age = System.currentTimeMillis() - file.toFile().lastModified();
+                if (age <= INCOMPLETE_TIMEOUT) {
+                    return false;
+                }
+                loggingService.warn("Deleting incomplete message file " + file);
+                delete(file);
+                return true;
+            }
             if (loggingService.isDebugEnabled()) {
                 loggingService.debug("Handling message in " + file);
             }
-            FileInputStream fis = null;
+            delete(file);
+            enqueueIncomingMessage(new ByteArrayInputStream(data, HEADER_SIZE, data.length
+                    - HEADER_SIZE));
+            return true;
+        }
+
+        private void delete(Path file) {
             try {
-                fis = new FileInputStream(file);
-                processingIncomingMessage(fis);
-            } catch (Exception e) {
-                loggingService.error("Error reading '" + file + "': " + e.getMessage(), e);
-            } finally {
-                if (fis != null) {
-                    try {
-                        fis.close();
-                    } catch (IOException e) {
-                        // don't care
-                    }
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                loggingService.warn("Can't delete '" + file + "': " + e.getMessage());
+            }
+        }
+
+        private synchronized WatchService getWatcher() {
+            return watcher;
+        }
+
+        private synchronized void closeWatcher() {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    // don't care
                 }
+                watcher = null;
             }
         }
+
+        void close() {
+            closeWatcher();
+        }
     }
 }
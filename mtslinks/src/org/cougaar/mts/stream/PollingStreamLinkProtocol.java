@@ -11,22 +11,35 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.DestinationLink;
 import org.cougaar.mts.base.MisdeliveredMessageException;
 import org.cougaar.mts.base.NameLookupException;
 import org.cougaar.mts.base.RPCLinkProtocol;
+import org.cougaar.mts.base.ReplyCorrelator;
 import org.cougaar.mts.base.UnregisteredNameException;
 
 /**
- * Send messages via serialization on abstract reliable Streams, polling for
- * input. Reliability is handled by sending an ack for each message.
+ * Send messages via serialization on abstract reliable Streams. Reliability
+ * is handled by sending an ack for each message.
+ * <p>
+ * Input arrives in one of two ways. A protocol that has to look for messages
+ * provides a {@link #makePollerTask poller}, which runs every millisecond. A
+ * protocol that's told about messages as they arrive hands them to
+ * {@link #enqueueIncomingMessage} from whatever thread receives them, either
+ * its transport's own or one that runs its {@link #makeReceiverTask receiver
+ * task}. Those messages wait in a bounded queue and are handled in batches.
  * 
  * @param <I> The class of the ID object for each outgoing message
  */
@@ -38,11 +51,23 @@ abstract public class PollingStreamLinkProtocol<I>
     // manager for sending messages and waiting for replies
     private ReplySync<I> sync;
 
+    // matches replies to outstanding messages
+    private ReplyCorrelator correlator;
+
     private URI servantUri;
 
     // Check periodically for incoming data
     private Schedulable poller;
 
+    // Waits for incoming data, running again as soon as it's done
+    private ReceiverLoop receiverLoop;
+
+    // Messages that have been received but not yet handled
+    private volatile BlockingQueue<Object> inbound;
+
+    // Handles the queued messages
+    private volatile Schedulable dispatcher;
+
     /**
      * Construct a URI that uniquely identifies this node. It will be used by
      * other nodes to contact it.
@@ -60,9 +85,39 @@ abstract public class PollingStreamLinkProtocol<I>
 
     /**
      * Make a Runnable that will run periodically to look for new messages and
-     * process one per run if available.
+     * process one per run if available. Protocols that don't need to poll
+     * should return null, and pass messages to
+     * {@link #enqueueIncomingMessage} instead.
+     */
+    protected Runnable makePollerTask() {
+        return null;
+    }
+
+    /**
+     * Make a Runnable that waits until there are incoming messages and passes
+     * them to {@link #enqueueIncomingMessage}. It runs on a thread that may
+     * block, and is run again as soon as it returns, until the servant is
+     * released. Protocols whose transport calls back with messages don't
+     * need one.
+     */
+    protected Runnable makeReceiverTask() {
+        return null;
+    }
+
+    /**
+     * Most messages that can be waiting to be handled. Threads that enqueue
+     * messages block once there are this many.
+     */
+    protected int getInboundQueueSize() {
+        return 1024;
+    }
+
+    /**
+     * Most queued messages to handle before letting other threads run.
      */
-    abstract protected Runnable makePollerTask();
+    protected int getInboundBatchSize() {
+        return 64;
+    }
 
     /**
      * How long we should wait for the ack to any given message.
@@ -81,7 +136,14 @@ abstract public class PollingStreamLinkProtocol<I>
         return servantUri;
     }
 
-    ReplySync<I> getReplySync() {
+    synchronized ReplyCorrelator getReplyCorrelator() {
+        if (correlator == null) {
+            correlator = new ReplyCorrelator(threadService, this);
+        }
+        return correlator;
+    }
+
+    synchronized ReplySync<I> getReplySync() {
         if (sync == null) {
             sync = new ReplySync<I>(this, getReplyTimeoutMillis());
         }
@@ -103,28 +165,79 @@ abstract public class PollingStreamLinkProtocol<I>
      * (typically) to be overridden.
      */
     protected void processingIncomingMessage(InputStream stream) {
-        Object rawObject = null;
+        Object rawObject = readIncomingMessage(stream);
+        if (rawObject != null) {
+            processIncomingMessage(rawObject);
+        }
+    }
+
+    /**
+     * Read an incoming message on a stream and queue it to be dispatched. If
+     * the queue is full, this waits until there's room.
+     * 
+     * This is protected so that it can be invoked by a subclass, not
+     * (typically) to be overridden.
+     */
+    protected void enqueueIncomingMessage(InputStream stream) {
+        Object rawObject = readIncomingMessage(stream);
+        if (rawObject != null) {
+            enqueueIncomingObject(rawObject);
+        }
+    }
+
+    /**
+     * Queue a message that has already been read to be dispatched. If the
+     * queue is full, this waits until there's room.
+     */
+    protected void enqueueIncomingObject(Object rawObject) {
+        ensureDispatcher();
+        BlockingQueue<Object> queue = inbound;
+        if (!queue.offer(rawObject)) {
+            SchedulableStatus.beginWait("Inbound message queue is full");
+            try {
+                queue.put(rawObject);
+            } catch (InterruptedException e) {
+                loggingService.warn("Interrupted while queueing incoming message, dropping it");
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                SchedulableStatus.endBlocking();
+            }
+        }
+        dispatcher.start();
+    }
+
+    private Object readIncomingMessage(InputStream stream) {
         ObjectInputStream ois = null;
 
         try {
             ois = new ObjectInputStream(stream);
         } catch (IOException e) {
             loggingService.warn("Processing Incoming message, stream error :" + e.getMessage());
-            return;
+            return null;
         }
 
         try {
-            rawObject = ois.readObject();
+            return ois.readObject();
         } catch (ClassNotFoundException e) {
             loggingService.warn("Processing Incoming message, unknown object type :"
                     + e.getMessage());
-            return;
+            return null;
         } catch (IOException e) {
             loggingService.warn("Processing Incoming message, deserializing error :"
                     + e.getMessage());
-            return;
+            return null;
+        }
+    }
+
+    private synchronized void ensureDispatcher() {
+        if (dispatcher == null) {
+            inbound = new ArrayBlockingQueue<Object>(Math.max(1, getInboundQueueSize()));
+            int lane = ThreadService.WILL_BLOCK_LANE;
+            dispatcher =
+                    threadService.getThread(this, new InboundDispatcher(), "Message Dispatcher",
+                                            lane);
         }
-        processIncomingMessage(rawObject);
     }
 
     protected void processIncomingMessage(Object rawObject) {
@@ -135,6 +248,16 @@ abstract public class PollingStreamLinkProtocol<I>
         }
     }
 
+    @Override
+   public void unload() {
+        synchronized (this) {
+            if (correlator != null) {
+                correlator.stop();
+            }
+        }
+        super.unload();
+    }
+
     @Override
    protected DestinationLink createDestinationLink(MessageAddress address) {
         return new StreamLink(address);
@@ -146,6 +269,12 @@ abstract public class PollingStreamLinkProtocol<I>
             return;
         }
 
+        // Messages can arrive as soon as we're connected
+        if (receiver == null) {
+            receiver = makeMessageReceiver();
+        }
+        ensureDispatcher();
+
         String node = getNameSupport().getNodeMessageAddress().getAddress();
         if (!establishConnections(node)) {
             releaseNodeServant();
@@ -161,17 +290,20 @@ abstract public class PollingStreamLinkProtocol<I>
             return;
         }
 
-        // start polling for input
-        if (receiver == null) {
-            receiver = makeMessageReceiver();
-        }
-
+        // start looking for input
+        int lane = ThreadService.WILL_BLOCK_LANE;
         Runnable task = makePollerTask();
         if (task != null) {
-            int lane = ThreadService.WILL_BLOCK_LANE;
             poller = threadService.getThread(this, task, "Message Poller", lane);
             poller.schedule(0, 1);
         }
+        Runnable receiverTask = makeReceiverTask();
+        if (receiverTask != null) {
+            receiverLoop = new ReceiverLoop(receiverTask);
+            receiverLoop.thread =
+                    threadService.getThread(this, receiverLoop, "Message Receiver", lane);
+            receiverLoop.thread.start();
+        }
     }
 
     @Override
@@ -182,6 +314,10 @@ abstract public class PollingStreamLinkProtocol<I>
             poller.cancelTimer();
             poller = null;
         }
+        if (receiverLoop != null) {
+            receiverLoop.running = false;
+            receiverLoop = null;
+        }
     }
 
     @Override
@@ -197,6 +333,57 @@ abstract public class PollingStreamLinkProtocol<I>
         return false;
     }
 
+    /**
+     * Runs a receiver task over and over.
+     */
+    private static final class ReceiverLoop
+            implements Runnable {
+        private final Runnable task;
+        private volatile boolean running = true;
+        private Schedulable thread;
+
+        ReceiverLoop(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            if (running) {
+                task.run();
+            }
+            if (running) {
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Hands queued messages to the receiver, a batch per run. A message that
+     * fails is logged, and the rest of the batch is still handed over.
+     */
+    private class InboundDispatcher
+            implements Runnable {
+        private final List<Object> batch = new ArrayList<Object>();
+
+        public void run() {
+            inbound.drainTo(batch, getInboundBatchSize());
+            try {
+                for (Object rawObject : batch) {
+                    try {
+                        processIncomingMessage(rawObject);
+                    } catch (RuntimeException e) {
+                        loggingService.error("Processing Incoming message failed: "
+                                + e.getMessage(), e);
+                    }
+                }
+            } finally {
+                batch.clear();
+                if (!inbound.isEmpty()) {
+                    dispatcher.start();
+                }
+            }
+        }
+    }
+
     private class StreamLink
             extends Link {
         private final MessageSender<I> sender;
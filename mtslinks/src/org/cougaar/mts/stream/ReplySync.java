@@ -27,8 +27,6 @@ package org.cougaar.mts.stream;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.mts.SimpleMessageAttributes;
@@ -36,6 +34,7 @@ import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.MisdeliveredMessageException;
+import org.cougaar.mts.base.ReplyCorrelator;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.Logging;
 
@@ -44,7 +43,8 @@ import org.cougaar.util.log.Logging;
  * to behave like a synchronous rpc. In particular it blocks the sending thread
  * until a reply for the outgoing message arrives, generates and sends replies
  * for incoming messages, and processes received replies by waking the
- * corresponding thread.
+ * corresponding thread. Requests are matched to replies, and timed out, by
+ * the protocol's {@link ReplyCorrelator}.
  * 
  * @param <I> The class of the ID object for each outgoing message
  */
@@ -54,18 +54,15 @@ class ReplySync<I> {
     private static final String IS_MTS_REPLY_PROP = "org.cougaar.mts.stream.replyp";
     private static final String ORIGINATING_URI_PROP = "org.cougaar.mts.stream.orig";
     private static final String DELIVERY_EXCEPTION_PROP = "org.cougaar.mts.stream.ex";
-    private static int MESSAGE_NUMBER = 0;
 
     private final PollingStreamLinkProtocol<I> protocol;
-    private final Map<Integer, Object> pending;
-    private final Map<Integer, Object> replyData;
+    private final ReplyCorrelator correlator;
     private final int timeout;
     private final Logger log;
 
     ReplySync(PollingStreamLinkProtocol<I> protocol, int timeout) {
         this.protocol = protocol;
-        this.pending = new HashMap<Integer, Object>();
-        this.replyData = new HashMap<Integer, Object>();
+        this.correlator = protocol.getReplyCorrelator();
         this.log = Logging.getLogger(getClass().getName());
         this.timeout = timeout;
     }
@@ -78,35 +75,27 @@ class ReplySync<I> {
 
     MessageAttributes sendMessage(AttributedMessage message, URI uri)
             throws CommFailureException, MisdeliveredMessageException {
-        int messageNumber = ++MESSAGE_NUMBER;
+        ReplyCorrelator.ReplyFuture future = correlator.register(timeout);
+        int messageNumber = future.getId();
         setMessageProperties(message, messageNumber, uri);
 
-        Object lock = new Object();
-        pending.put(messageNumber, lock);
         long startTime = System.currentTimeMillis();
-        synchronized (lock) {
-            SchedulableStatus.beginNetIO("Stream RPC");
-            try {
-                I id = protocol.processOutgoingMessage(uri, message);
-                message.setLocalAttribute(MESSAGE_ID_PROP, id);
-            } catch (IOException e) {
-                throw new CommFailureException(e);
-            } finally {
-                SchedulableStatus.endBlocking();
-            }
-            while (true) {
-                try {
-                    lock.wait(timeout); // TODO: timeout should be set
-                                        // dynamically
-                    break;
-                } catch (InterruptedException ex) {
-                    // keep waiting
-                }
+        boolean sent = false;
+        SchedulableStatus.beginNetIO("Stream RPC");
+        try {
+            I id = protocol.processOutgoingMessage(uri, message);
+            message.setLocalAttribute(MESSAGE_ID_PROP, id);
+            sent = true;
+        } catch (IOException e) {
+            throw new CommFailureException(e);
+        } finally {
+            SchedulableStatus.endBlocking();
+            if (!sent) {
+                correlator.cancel(future);
             }
         }
+        Object result = future.get();
         long sendTime = System.currentTimeMillis() - startTime;
-        Object result = replyData.remove(messageNumber);
-        pending.remove(messageNumber);
         if (result instanceof MessageAttributes) {
             if (log.isDebugEnabled()) {
                 log.debug("Response to message " + messageNumber + " was " + result);
@@ -115,7 +104,7 @@ class ReplySync<I> {
         } else if (result instanceof MisdeliveredMessageException) {
             MisdeliveredMessageException ex = (MisdeliveredMessageException) result;
             throw ex;
-        } else if (sendTime >= timeout) {
+        } else if (result == ReplyCorrelator.TIMED_OUT) {
             throw new CommFailureException(new Exception("Timeout waiting for reply = " + sendTime));
         } else {
             throw new CommFailureException(new Exception("Weird Reply" + result));
@@ -172,17 +161,8 @@ class ReplySync<I> {
             return true;
         }
         Object exception = attrs.getAttribute(DELIVERY_EXCEPTION_PROP);
-        if (exception != null) {
-            replyData.put(id, exception);
-        } else {
-            replyData.put(id, attrs);
-        }
-        Object lock = pending.get(id);
-        if (lock != null) {
-            synchronized (lock) {
-                lock.notify();
-            }
-        } else {
+        Object reply = exception != null ? exception : attrs;
+        if (!correlator.complete(id, reply)) {
             if (log.isWarnEnabled()) {
                 log.warn("Got reply for message we timed out, id=" + id);
             }
@@ -0,0 +1,324 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.stream;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * The on-disk format of the {@link SegmentLogLinkProtocol}: an append-only
+ * log of records in a directory of fixed-size, memory-mapped segment files.
+ * Each log has one writing node and one reading node.
+ * <p>
+ * A record is its length, the CRC-32 of its bytes, and the bytes. The length
+ * is written last, and a record whose checksum doesn't match is taken to be
+ * still in the middle of being written, so the reader never sees part of one.
+ * A segment ends at a zero length, meaning nothing more has been written yet,
+ * or at {@link #END_OF_SEGMENT}, meaning the rest is in the next segment.
+ * <p>
+ * The reader keeps its place in a cursor file, and deletes the segments it's
+ * finished with.
+ */
+final class SegmentLog {
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+
+    private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.endsWith(SEGMENT_SUFFIX);
+        }
+    };
+
+    private SegmentLog() {
+    }
+
+    static File segmentFile(File directory, long segment) {
+        return new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * The lowest and highest segment numbers in the directory, or null if
+     * there are none.
+     */
+    private static long[] segmentRange(File directory) {
+        String[] names = directory.list(SEGMENTS);
+        if (names == null || names.length == 0) {
+            return null;
+        }
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        for (String name : names) {
+            try {
+                long segment = Long.parseLong(name.substring(0, name.length()
+                        - SEGMENT_SUFFIX.length()));
+                range[0] = Math.min(range[0], segment);
+                range[1] = Math.max(range[1], segment);
+            } catch (NumberFormatException e) {
+                // not ours
+            }
+        }
+        return range[0] <= range[1] ? range : null;
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read the record at the given position of the segment, or return null if
+     * there isn't a complete one there. Returns an empty array at the end of
+     * the segment.
+     */
+    private static byte[] readRecord(ByteBuffer segment, int position) {
+        if (position + 4 > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length == END_OF_SEGMENT) {
+            return new byte[0];
+        }
+        if (position + RECORD_HEADER_SIZE > segment.capacity()) {
+            return null;
+        }
+        if (length <= 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = segment.duplicate();
+        slice.position(position + RECORD_HEADER_SIZE);
+        slice.get(bytes);
+        if (checksum(bytes) != segment.getInt(position + 4)) {
+            return null;
+        }
+        return bytes;
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long size)
+            throws IOException {
+        String access = mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw";
+        RandomAccessFile raf = new RandomAccessFile(file, access);
+        try {
+            if (size < 0) {
+                size = raf.length();
+            }
+            // The mapping outlives the channel
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends records to a log. Used by any number of threads in the one
+     * writing node.
+     */
+    static final class Writer {
+        private final File directory;
+        private final int segmentSize;
+        private final boolean sync;
+        private final Logger log;
+        private long segment;
+        private MappedByteBuffer buffer;
+
+        Writer(File directory, int segmentSize, boolean sync)
+                throws IOException {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.sync = sync;
+            this.log = Logging.getLogger(getClass().getName());
+            directory.mkdirs();
+            long[] range = segmentRange(directory);
+            if (range == null) {
+                open(0);
+            } else {
+                recover(range[1]);
+            }
+        }
+
+        /**
+         * Find the end of the last segment written before a restart. A
+         * partly written record there is cut off.
+         */
+        private void recover(long last)
+                throws IOException {
+            open(last);
+            int position = 0;
+            while (true) {
+                byte[] record = readRecord(buffer, position);
+                if (record == null) {
+                    break;
+                }
+                if (record.length == 0) {
+                    open(last + 1);
+                    return;
+                }
+                position += RECORD_HEADER_SIZE + record.length;
+            }
+            if (position + 4 <= segmentSize && buffer.getInt(position) == 0) {
+                buffer.position(position);
+            } else {
+                log.warn("Truncating partly written record at " + position + " of "
+                        + segmentFile(directory, last));
+                roll(position);
+            }
+        }
+
+        private void open(long segment)
+                throws IOException {
+            this.segment = segment;
+            File file = segmentFile(directory, segment);
+            buffer = map(file, FileChannel.MapMode.READ_WRITE, segmentSize);
+        }
+
+        private void roll(int position)
+                throws IOException {
+            if (position + 4 <= buffer.capacity()) {
+                buffer.putInt(position, END_OF_SEGMENT);
+            }
+            if (sync) {
+                buffer.force();
+            }
+            open(segment + 1);
+        }
+
+        /**
+         * Append a record, returning its place in the log.
+         */
+        synchronized long append(byte[] record)
+                throws IOException {
+            if (buffer == null) {
+                throw new IOException("Log " + directory + " is closed");
+            }
+            int size = RECORD_HEADER_SIZE + record.length;
+            // Leave room for the end-of-segment marker
+            if (size + 4 > segmentSize) {
+                throw new IOException("A record of " + record.length
+                        + " bytes doesn't fit in a segment of " + segmentSize);
+            }
+            if (buffer.position() + size + 4 > segmentSize) {
+                roll(buffer.position());
+            }
+            int position = buffer.position();
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + RECORD_HEADER_SIZE);
+            body.put(record);
+            buffer.putInt(position + 4, checksum(record));
+            // The length goes last: it's what makes the record visible
+            buffer.putInt(position, record.length);
+            buffer.position(position + size);
+            if (sync) {
+                buffer.force();
+            }
+            return segment * segmentSize + position;
+        }
+
+        synchronized void close() {
+            if (buffer != null && sync) {
+                buffer.force();
+            }
+            buffer = null;
+        }
+    }
+
+    /**
+     * Reads the records of a log in order, in the one reading node.
+     */
+    static final class Reader {
+        private final File directory;
+        private final File cursorFile;
+        private long segment;
+        private int position;
+        private MappedByteBuffer buffer;
+        private long committedSegment;
+        private int committedPosition;
+
+        Reader(File directory)
+                throws IOException {
+            this.directory = directory;
+            this.cursorFile = new File(directory, CURSOR_FILE);
+            if (cursorFile.exists()) {
+                RandomAccessFile raf = new RandomAccessFile(cursorFile, "r");
+                try {
+                    segment = raf.readLong();
+                    position = raf.readInt();
+                } finally {
+                    raf.close();
+                }
+            } else {
+                long[] range = segmentRange(directory);
+                segment = range == null ? 0 : range[0];
+            }
+            committedSegment = segment;
+            committedPosition = position;
+        }
+
+        /**
+         * The next record, or null if there isn't a complete one yet.
+         */
+        byte[] next()
+                throws IOException {
+            while (true) {
+                if (buffer == null) {
+                    File file = segmentFile(directory, segment);
+                    if (!file.exists() || file.length() < RECORD_HEADER_SIZE) {
+                        return null;
+                    }
+                    buffer = map(file, FileChannel.MapMode.READ_ONLY, -1);
+                }
+                byte[] record = readRecord(buffer, position);
+                if (record == null) {
+                    return null;
+                }
+                if (record.length > 0) {
+                    position += RECORD_HEADER_SIZE + record.length;
+                    return record;
+                }
+                if (!segmentFile(directory, segment + 1).exists()) {
+                    return null;
+                }
+                segment++;
+                position = 0;
+                buffer = null;
+            }
+        }
+
+        /**
+         * Remember that the records read so far have been handled, and
+         * delete the segments that are no longer needed.
+         */
+        void commit()
+                throws IOException {
+            if (segment == committedSegment && position == committedPosition) {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(cursorFile, "rw");
+            try {
+                raf.writeLong(segment);
+                raf.writeInt(position);
+            } finally {
+                raf.close();
+            }
+            for (long old = committedSegment; old < segment; old++) {
+                segmentFile(directory, old).delete();
+            }
+            committedSegment = segment;
+            committedPosition = position;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.mts.base.AttributedMessage;
+import org.cougaar.util.annotations.Cougaar;
+
+/**
+ * Send messages via append-only logs on a shared disk.
+ * <p>
+ * Each node appends the messages and replies it sends to another node to a
+ * {@link SegmentLog} of its own in that node's directory, so each log has a
+ * single writer. Records go into memory-mapped segment files of
+ * <tt>segmentSize</tt> bytes, so there's no file created per message. With
+ * <tt>sync=true</tt> every record is forced to disk before the send returns.
+ * <p>
+ * The receiver reads each log in order, up to <tt>batchSize</tt> records at a
+ * time, then saves its place and deletes the segments it has finished. A
+ * message is handled before its place is saved, so after a crash it may be
+ * handled again, but it isn't lost. New logs are looked for every
+ * <tt>scanInterval</tt> milliseconds.
+ */
+public class SegmentLogLinkProtocol
+        extends PollingStreamLinkProtocol<Long> {
+    private static final String LOG_SUBDIRECTORY = "log";
+
+    @Cougaar.Arg(name = "rootDirectory", defaultValue = "/tmp/cougaar")
+    private String rootDirectory;
+
+    /**
+     * Bytes per segment file. This is also the limit on the size of a
+     * message.
+     */
+    @Cougaar.Arg(name = "segmentSize", defaultValue = "16777216")
+    private int segmentSize;
+
+    /**
+     * Force each record to disk as it's written.
+     */
+    @Cougaar.Arg(name = "sync", defaultValue = "false")
+    private boolean sync;
+
+    /**
+     * Most records to read from one log before moving on to the next.
+     */
+    @Cougaar.Arg(name = "batchSize", defaultValue = "256")
+    private int batchSize;
+
+    /**
+     * Milliseconds between looks for logs from new senders.
+     */
+    @Cougaar.Arg(name = "scanInterval", defaultValue = "1000")
+    private int scanInterval;
+
+    private String nodeName;
+
+    // Guarded by itself
+    private final Map<URI, SegmentLog.Writer> writers = new HashMap<URI, SegmentLog.Writer>();
+
+    @Override
+   public void unload() {
+        synchronized (writers) {
+            for (SegmentLog.Writer writer : writers.values()) {
+                writer.close();
+            }
+            writers.clear();
+        }
+        super.unload();
+    }
+
+    @Override
+   protected int computeCost(AttributedMessage message) {
+        // very cheap
+        return 0;
+    }
+
+    @Override
+   protected String getProtocolType() {
+        return "-SEGLOG";
+    }
+
+    private File getLogSubdirectory(URI uri) {
+        File rootDirectory = new File(uri.getPath());
+        return new File(rootDirectory, LOG_SUBDIRECTORY);
+    }
+
+    @Override
+   protected URI makeURI(String myServantId)
+            throws URISyntaxException {
+        File file = new File(rootDirectory, myServantId);
+        file.mkdirs();
+        if (file.isDirectory() && file.canWrite() && file.canRead()) {
+            return new URI("file", "", file.getAbsolutePath(), null, null);
+        } else {
+            throw new URISyntaxException(file.getAbsolutePath(), "Bogus path '");
+        }
+    }
+
+    @Override
+   protected boolean establishConnections(String node) {
+        nodeName = node;
+        return true;
+    }
+
+    private SegmentLog.Writer getWriter(URI destination)
+            throws IOException {
+        synchronized (writers) {
+            SegmentLog.Writer writer = writers.get(destination);
+            if (writer == null) {
+                File directory = new File(getLogSubdirectory(destination), nodeName);
+                writer = new SegmentLog.Writer(directory, segmentSize, sync);
+                writers.put(destination, writer);
+            }
+            return writer;
+        }
+    }
+
+    @Override
+   protected Long processOutgoingMessage(URI destination, MessageAttributes message)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(message);
+        oos.close();
+        long id = getWriter(destination).append(bytes.toByteArray());
+        if (loggingService.isDebugEnabled()) {
+            loggingService.debug("Appended message to " + destination + " at " + id);
+        }
+        return id;
+    }
+
+    @Override
+   protected Runnable makePollerTask() {
+        return new LogPoller();
+    }
+
+    @Override
+   protected int getReplyTimeoutMillis() {
+        return 1000;
+    }
+
+    private class LogPoller
+            implements Runnable {
+        private final File directory;
+        private final Map<String, SegmentLog.Reader> readers =
+                new HashMap<String, SegmentLog.Reader>();
+        private long nextScan;
+
+        LogPoller() {
+            directory = getLogSubdirectory(getServantUri());
+            directory.mkdirs();
+        }
+
+        public void run() {
+            long now = System.currentTimeMillis();
+            if (now >= nextScan) {
+                nextScan = now + scanInterval;
+                scan();
+            }
+            for (Map.Entry<String, SegmentLog.Reader> entry : readers.entrySet()) {
+                SegmentLog.Reader reader = entry.getValue();
+                try {
+                    for (int i = 0; i < batchSize; i++) {
+                        byte[] record = reader.next();
+                        if (record == null) {
+                            break;
+                        }
+                        processingIncomingMessage(new ByteArrayInputStream(record));
+                    }
+                    reader.commit();
+                } catch (IOException e) {
+                    loggingService.error("Error reading the log from " + entry.getKey() + ": "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+
+        private void scan() {
+            File[] senders = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isDirectory();
+                }
+            });
+            if (senders == null) {
+                return;
+            }
+            for (File sender : senders) {
+                if (!readers.containsKey(sender.getName())) {
+                    try {
+                        readers.put(sender.getName(), new SegmentLog.Reader(sender));
+                    } catch (IOException e) {
+                        loggingService.error("Can't read the log in " + sender + ": "
+                                + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits serialized messages that don't fit in one datagram into fragments.
+ * A message that does fit is sent as it is, a serialization stream, so
+ * receivers can tell the two apart by their first two bytes. Each fragment
+ * starts with a header:
+ * 
+ * <pre>
+ *   short  FRAGMENT_MAGIC
+ *   long   message id, unique per sender
+ *   int    length of the whole message
+ *   int    offset of this fragment's data in the message
+ *   short  index of this fragment, unsigned
+ *   short  number of fragments, unsigned
+ * </pre>
+ * 
+ * followed by the fragment's data. See {@link DatagramReassembler} for the
+ * other end.
+ */
+class DatagramFragmenter {
+    static final short FRAGMENT_MAGIC = (short) 0xCF52;
+    static final int HEADER_SIZE = 22;
+    static final int MAX_FRAGMENTS = 0xFFFF;
+
+    private final int maxDatagramSize;
+    private final int fragmentDataSize;
+    private final FragmentStatistics statistics;
+    // Random start, so ids from a restarted sender reusing its port don't
+    // collide with old ones still held by a receiver
+    private final AtomicLong nextId = new AtomicLong(new Random().nextLong());
+
+    DatagramFragmenter(int maxDatagramSize, FragmentStatistics statistics) {
+        if (maxDatagramSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Datagram size " + maxDatagramSize
+                    + " leaves no room for fragment data");
+        }
+        this.maxDatagramSize = maxDatagramSize;
+        this.fragmentDataSize = maxDatagramSize - HEADER_SIZE;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Return the datagrams to send for the given serialized message, in
+     * order.
+     * 
+     * @throws IOException if the message needs more fragments than the header
+     *         can count
+     */
+    List<byte[]> fragment(byte[] payload)
+            throws IOException {
+        if (payload.length <= maxDatagramSize) {
+            return Collections.singletonList(payload);
+        }
+        int count = (payload.length + fragmentDataSize - 1) / fragmentDataSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IOException("Message of " + payload.length + " bytes needs " + count
+                    + " fragments, more than " + MAX_FRAGMENTS);
+        }
+        long id = nextId.getAndIncrement();
+        List<byte[]> fragments = new ArrayList<byte[]>(count);
+        for (int index = 0; index < count; index++) {
+            int offset = index * fragmentDataSize;
+            int length = Math.min(fragmentDataSize, payload.length - offset);
+            byte[] datagram = new byte[HEADER_SIZE + length];
+            ByteBuffer buffer = ByteBuffer.wrap(datagram);
+            buffer.putShort(FRAGMENT_MAGIC);
+            buffer.putLong(id);
+            buffer.putInt(payload.length);
+            buffer.putInt(offset);
+            buffer.putShort((short) index);
+            buffer.putShort((short) count);
+            buffer.put(payload, offset, length);
+            fragments.add(datagram);
+        }
+        statistics.messageFragmented(count);
+        return fragments;
+    }
+
+    /**
+     * Whether the datagram in the buffer, from its position, is a fragment
+     * rather than a whole message.
+     */
+    static boolean isFragment(ByteBuffer datagram) {
+        return datagram.remaining() >= 2
+                && datagram.getShort(datagram.position()) == FRAGMENT_MAGIC;
+    }
+
+    /**
+     * Whether the datagram in the buffer, from its position, is a whole
+     * serialized message.
+     */
+    static boolean isWholeMessage(ByteBuffer datagram) {
+        return datagram.remaining() >= 2
+                && datagram.getShort(datagram.position()) == ObjectStreamConstants.STREAM_MAGIC;
+    }
+}
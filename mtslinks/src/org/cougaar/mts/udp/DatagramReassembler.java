@@ -0,0 +1,191 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * Puts messages split by a {@link DatagramFragmenter} back together. Whole
+ * messages pass straight through.
+ * <p>
+ * Partial messages are held in a buffer whose total size is bounded. A
+ * partial message is dropped if its fragments don't all arrive within the
+ * timeout, or, oldest first, to make room for a new message when the buffer
+ * is full. Messages longer than the buffer are dropped on their first
+ * fragment.
+ * <p>
+ * This class isn't thread-safe; it's meant to be used only in the
+ * {@link DatagramSelector} thread.
+ */
+class DatagramReassembler {
+    private final long maxBufferedBytes;
+    private final long timeout;
+    private final FragmentStatistics statistics;
+    private final Logger log;
+
+    // In order of arrival of each message's first fragment, hence of age
+    private final Map<Key, Partial> partials = new LinkedHashMap<Key, Partial>();
+    private long bufferedBytes;
+
+    DatagramReassembler(long maxBufferedBytes, long timeout, FragmentStatistics statistics) {
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeout = timeout;
+        this.statistics = statistics;
+        this.log = Logging.getLogger(getClass().getName());
+    }
+
+    /**
+     * Take a datagram received from the given sender. If it completes a
+     * message, or is a whole message itself, return a buffer holding the
+     * message. Otherwise return null.
+     * <p>
+     * The datagram buffer may be returned as it is, so the result must be
+     * used before the datagram buffer is reused.
+     */
+    ByteBuffer accept(ByteBuffer datagram, SocketAddress sender) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (DatagramFragmenter.isWholeMessage(datagram)) {
+            return datagram;
+        }
+        if (!DatagramFragmenter.isFragment(datagram)
+                || datagram.remaining() < DatagramFragmenter.HEADER_SIZE) {
+            statistics.malformed();
+            return null;
+        }
+        statistics.fragmentReceived();
+        datagram.getShort(); // magic
+        long id = datagram.getLong();
+        int totalLength = datagram.getInt();
+        int offset = datagram.getInt();
+        int index = datagram.getShort() & 0xFFFF;
+        int count = datagram.getShort() & 0xFFFF;
+        int length = datagram.remaining();
+        if (totalLength <= 0 || offset < 0 || length > totalLength - offset || index >= count) {
+            statistics.malformed();
+            return null;
+        }
+
+        Key key = new Key(sender, id);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            if (totalLength > maxBufferedBytes) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Dropping message of " + totalLength + " bytes from " + sender
+                            + ", more than the reassembly buffer holds");
+                }
+                statistics.oversize();
+                return null;
+            }
+            makeRoom(totalLength);
+            partial = new Partial(totalLength, count, now);
+            partials.put(key, partial);
+            bufferedBytes += totalLength;
+            statistics.setBufferedBytes(bufferedBytes);
+        } else if (partial.data.length != totalLength || partial.count != count) {
+            statistics.malformed();
+            return null;
+        }
+        if (partial.received.get(index)) {
+            statistics.duplicate();
+            return null;
+        }
+        partial.received.set(index);
+        datagram.get(partial.data, offset, length);
+        if (partial.received.cardinality() < count) {
+            return null;
+        }
+
+        partials.remove(key);
+        bufferedBytes -= totalLength;
+        statistics.setBufferedBytes(bufferedBytes);
+        statistics.messageReassembled();
+        return ByteBuffer.wrap(partial.data);
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, Partial>> itr = partials.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Key, Partial> entry = itr.next();
+            Partial partial = entry.getValue();
+            if (now - partial.started < timeout) {
+                // the rest are younger
+                break;
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Timed out reassembling message " + entry.getKey().id + " from "
+                        + entry.getKey().sender + ", " + partial.received.cardinality()
+                        + " of " + partial.count + " fragments arrived");
+            }
+            itr.remove();
+            bufferedBytes -= partial.data.length;
+            statistics.expired();
+        }
+        statistics.setBufferedBytes(bufferedBytes);
+    }
+
+    private void makeRoom(int length) {
+        Iterator<Map.Entry<Key, Partial>> itr = partials.entrySet().iterator();
+        while (bufferedBytes + length > maxBufferedBytes && itr.hasNext()) {
+            Map.Entry<Key, Partial> entry = itr.next();
+            Partial partial = entry.getValue();
+            if (log.isWarnEnabled()) {
+                log.warn("Reassembly buffer full, dropping message " + entry.getKey().id
+                        + " from " + entry.getKey().sender);
+            }
+            itr.remove();
+            bufferedBytes -= partial.data.length;
+            statistics.evicted();
+        }
+    }
+
+    private static class Key {
+        private final SocketAddress sender;
+        private final long id;
+
+        Key(SocketAddress sender, long id) {
+            this.sender = sender;
+            this.id = id;
+        }
+
+        @Override
+      public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && sender.equals(other.sender);
+        }
+
+        @Override
+      public int hashCode() {
+            return sender.hashCode() * 31 + (int) (id ^ (id >>> 32));
+        }
+    }
+
+    private static class Partial {
+        private final byte[] data;
+        private final int count;
+        private final BitSet received;
+        private final long started;
+
+        Partial(int length, int count, long started) {
+            this.data = new byte[length];
+            this.count = count;
+            this.received = new BitSet(count);
+            this.started = started;
+        }
+    }
+}
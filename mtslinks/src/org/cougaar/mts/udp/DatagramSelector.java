@@ -0,0 +1,227 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * The single reader thread of a UDP link protocol. It waits on a
+ * {@link Selector} for any of its {@link DatagramChannel}s to become readable
+ * and then drains every datagram waiting on each of them, a batch at a time,
+ * before handing them to the {@link Handler}. Each datagram in a batch is
+ * received into its own direct buffer, taken from a pool that's allocated once
+ * and reused for every batch.
+ * <p>
+ * Other threads never touch the {@link Selector} directly: they queue their
+ * registrations here and wake the selector up. A channel is unregistered by
+ * closing it.
+ */
+class DatagramSelector
+        implements Runnable {
+
+    /**
+     * Receives the datagrams read by a {@link DatagramSelector}, in its
+     * thread.
+     */
+    interface Handler {
+        /**
+         * The buffer is positioned at the start of the datagram and its limit
+         * is the end. It belongs to the selector, and is reused as soon as
+         * this method returns.
+         */
+        void datagramReceived(ByteBuffer datagram, SocketAddress sender, Object attachment);
+    }
+
+    private final Selector selector;
+    private final Handler handler;
+    private final ByteBuffer[] buffers;
+    private final SocketAddress[] senders;
+    private final Logger log;
+
+    // Guarded by itself
+    private final List<Registration> pendingRegistrations = new ArrayList<Registration>();
+
+    private volatile boolean closed;
+
+    /**
+     * @param batchSize the most datagrams read from one channel before any of
+     *        them are handled, and the number of buffers in the pool
+     * @param bufferSize the size of each buffer; longer datagrams are
+     *        truncated
+     */
+    DatagramSelector(Handler handler, int batchSize, int bufferSize)
+            throws IOException {
+        this.handler = handler;
+        this.log = Logging.getLogger(getClass().getName());
+        this.buffers = new ByteBuffer[batchSize];
+        this.senders = new SocketAddress[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start reading the given channel, which is made non-blocking. The
+     * attachment is passed to the handler with each datagram.
+     */
+    void register(DatagramChannel channel, Object attachment)
+            throws IOException {
+        channel.configureBlocking(false);
+        synchronized (pendingRegistrations) {
+            if (closed) {
+                channel.close();
+                throw new IOException("Selector closed");
+            }
+            pendingRegistrations.add(new Registration(channel, attachment));
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Stop the selector thread and close every channel registered with it.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                processPendingRegistrations();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    drain(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed under us
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("UDP selector failed: " + e.getMessage());
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void processPendingRegistrations() {
+        List<Registration> registrations;
+        synchronized (pendingRegistrations) {
+            registrations = new ArrayList<Registration>(pendingRegistrations);
+            pendingRegistrations.clear();
+        }
+        for (Registration registration : registrations) {
+            try {
+                registration.channel.register(selector, SelectionKey.OP_READ,
+                                              registration.attachment);
+            } catch (ClosedChannelException e) {
+                // closed before we got to it
+            }
+        }
+    }
+
+    /**
+     * Read every datagram waiting on the key's channel, handling them each
+     * time the buffers run out and once more at the end.
+     */
+    private void drain(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Object attachment = key.attachment();
+        int count;
+        do {
+            count = 0;
+            try {
+                while (count < buffers.length) {
+                    ByteBuffer buffer = buffers[count];
+                    buffer.clear();
+                    SocketAddress sender = channel.receive(buffer);
+                    if (sender == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    senders[count++] = sender;
+                }
+            } catch (CancelledKeyException e) {
+                key.cancel();
+            } catch (ClosedChannelException e) {
+                // unregistered by closing
+                key.cancel();
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("UDP receive failed: " + e.getMessage());
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    handler.datagramReceived(buffers[i], senders[i], attachment);
+                } catch (RuntimeException e) {
+                    if (log.isErrorEnabled()) {
+                        log.error("Failed to handle datagram from " + senders[i], e);
+                    }
+                }
+                senders[i] = null;
+            }
+        } while (count == buffers.length && key.isValid());
+    }
+
+    private void shutdown() {
+        closed = true;
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        List<Registration> unregistered;
+        synchronized (pendingRegistrations) {
+            unregistered = new ArrayList<Registration>(pendingRegistrations);
+            pendingRegistrations.clear();
+        }
+        for (Registration registration : unregistered) {
+            try {
+                registration.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static class Registration {
+        private final DatagramChannel channel;
+        private final Object attachment;
+
+        Registration(DatagramChannel channel, Object attachment) {
+            this.channel = channel;
+            this.attachment = attachment;
+        }
+    }
+}
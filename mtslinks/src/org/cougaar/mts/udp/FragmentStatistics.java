@@ -0,0 +1,134 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the fragmentation work of a UDP link protocol, on both the
+ * sending and the receiving side. The counts are cumulative; the buffered
+ * byte count is the current size of the reassembly buffer.
+ */
+public class FragmentStatistics {
+    private final AtomicLong messagesFragmented = new AtomicLong();
+    private final AtomicLong fragmentsSent = new AtomicLong();
+    private final AtomicLong fragmentsReceived = new AtomicLong();
+    private final AtomicLong messagesReassembled = new AtomicLong();
+    private final AtomicLong duplicateFragments = new AtomicLong();
+    private final AtomicLong malformedDatagrams = new AtomicLong();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    private final AtomicLong evictedMessages = new AtomicLong();
+    private final AtomicLong oversizeMessages = new AtomicLong();
+    private volatile long bufferedBytes;
+
+    void messageFragmented(int fragments) {
+        messagesFragmented.incrementAndGet();
+        fragmentsSent.addAndGet(fragments);
+    }
+
+    void fragmentReceived() {
+        fragmentsReceived.incrementAndGet();
+    }
+
+    void messageReassembled() {
+        messagesReassembled.incrementAndGet();
+    }
+
+    void duplicate() {
+        duplicateFragments.incrementAndGet();
+    }
+
+    void malformed() {
+        malformedDatagrams.incrementAndGet();
+    }
+
+    void expired() {
+        expiredMessages.incrementAndGet();
+    }
+
+    void evicted() {
+        evictedMessages.incrementAndGet();
+    }
+
+    void oversize() {
+        oversizeMessages.incrementAndGet();
+    }
+
+    void setBufferedBytes(long bytes) {
+        bufferedBytes = bytes;
+    }
+
+    /**
+     * Messages sent in more than one fragment.
+     */
+    public long getMessagesFragmented() {
+        return messagesFragmented.get();
+    }
+
+    public long getFragmentsSent() {
+        return fragmentsSent.get();
+    }
+
+    public long getFragmentsReceived() {
+        return fragmentsReceived.get();
+    }
+
+    public long getMessagesReassembled() {
+        return messagesReassembled.get();
+    }
+
+    public long getDuplicateFragments() {
+        return duplicateFragments.get();
+    }
+
+    /**
+     * Datagrams that were neither a message nor a valid fragment.
+     */
+    public long getMalformedDatagrams() {
+        return malformedDatagrams.get();
+    }
+
+    /**
+     * Partial messages dropped because the rest of their fragments didn't
+     * arrive in time.
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * Partial messages dropped to make room in the reassembly buffer.
+     */
+    public long getEvictedMessages() {
+        return evictedMessages.get();
+    }
+
+    /**
+     * Messages dropped because they're bigger than the reassembly buffer.
+     */
+    public long getOversizeMessages() {
+        return oversizeMessages.get();
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    @Override
+   public String toString() {
+        return "fragmented=" + getMessagesFragmented()
+                + " fragmentsSent=" + getFragmentsSent()
+                + " fragmentsReceived=" + getFragmentsReceived()
+                + " reassembled=" + getMessagesReassembled()
+                + " duplicates=" + getDuplicateFragments()
+                + " malformed=" + getMalformedDatagrams()
+                + " expired=" + getExpiredMessages()
+                + " evicted=" + getEvictedMessages()
+                + " oversize=" + getOversizeMessages()
+                + " bufferedBytes=" + getBufferedBytes();
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * Reliable delivery of datagrams between the nodes of a
+ * {@link UdpSocketLinkProtocol} in reliable mode.
+ * <p>
+ * Every data datagram sent to a peer gets the next sequence number for that
+ * peer. The receiver acknowledges each one it gets with its cumulative
+ * sequence number, below which it has everything, and up to
+ * {@link #MAX_SACK_BLOCKS} ranges of sequence numbers it has above that. The
+ * sender retransmits a datagram when its retransmission timeout, derived from
+ * the measured round trip time as in RFC 6298, runs out, or when
+ * {@link #DUPLICATE_THRESHOLD} later datagrams have been acknowledged before
+ * it. The number of unacknowledged datagrams per peer is limited by a
+ * congestion window, which grows by one datagram per acknowledgement up to
+ * the slow start threshold, then by one datagram per window, and is halved
+ * at most once per round trip when datagrams are lost.
+ * <p>
+ * Datagrams are acknowledged, and handed up, as they arrive, in any order,
+ * so a lost datagram holds up only the message it belongs to. Duplicates are
+ * dropped. Each data datagram also carries the sender's lowest unacknowledged
+ * sequence number, so a receiver that has restarted, or has missed datagrams
+ * that the sender gave up on, can move its cumulative sequence number up.
+ * <p>
+ * Wire formats, after which a data datagram carries an ordinary whole
+ * message or fragment:
+ * 
+ * <pre>
+ *   data: short DATA_MAGIC, long session, long sequence, long lowest unacknowledged
+ *   ack:  short ACK_MAGIC, long session being acknowledged, long cumulative,
+ *         byte block count, then per block long start, long end (exclusive)
+ * </pre>
+ * 
+ * The session is a random number chosen each time the sending half of a peer
+ * is made, so a receiver sees a sender that has restarted, or has dropped
+ * its state for the peer, as a new session.
+ * <p>
+ * The state for a peer is dropped once the peer has been idle for
+ * <code>idleTimeout</code> milliseconds: the sending half when it has had
+ * nothing to send for that long, the receiving half when nothing has
+ * arrived from the peer for that long. The timeout should be longer than a
+ * sender keeps retransmitting, or a late retransmission may be handed up
+ * again.
+ * <p>
+ * {@link #receive} is only called from the {@link DatagramSelector} thread;
+ * {@link #send} and {@link #tick} may be called from any thread.
+ */
+class ReliableDatagrams {
+    static final short DATA_MAGIC = (short) 0xCF53;
+    static final short ACK_MAGIC = (short) 0xCF54;
+    static final int DATA_HEADER_SIZE = 26;
+    static final int MAX_SACK_BLOCKS = 16;
+    static final int DUPLICATE_THRESHOLD = 3;
+
+    private static final double MIN_WINDOW = 2;
+    private static final long INITIAL_RTO = 1000;
+    private static final long CLOCK_GRANULARITY = 10;
+    // Out of order datagrams a receiver holds for a peer; beyond this they're
+    // dropped unacknowledged, to be sent again
+    private static final int MAX_OUT_OF_ORDER = 65536;
+
+    /**
+     * Sends datagrams. This is where a test can inject loss.
+     */
+    interface Transmitter {
+        void transmit(ByteBuffer datagram, SocketAddress destination)
+                throws IOException;
+    }
+
+    private final Transmitter transmitter;
+    private final double initialWindow;
+    private final double maxWindow;
+    private final long minRto;
+    private final long maxRto;
+    private final long idleTimeout;
+    private final ReliableStatistics statistics;
+    private final Logger log;
+    private final Random random = new Random();
+
+    private final ConcurrentMap<SocketAddress, Sender> senders =
+            new ConcurrentHashMap<SocketAddress, Sender>();
+    // Only used by the selector thread
+    private final Map<SocketAddress, Receiver> receivers = new HashMap<SocketAddress, Receiver>();
+    private long lastReceiverSweep = System.currentTimeMillis();
+
+    ReliableDatagrams(Transmitter transmitter,
+                      int initialWindow,
+                      int maxWindow,
+                      long minRto,
+                      long maxRto,
+                      long idleTimeout,
+                      ReliableStatistics statistics) {
+        this.transmitter = transmitter;
+        this.initialWindow = Math.max(MIN_WINDOW, initialWindow);
+        this.maxWindow = Math.max(this.initialWindow, maxWindow);
+        this.minRto = minRto;
+        this.maxRto = Math.max(minRto, maxRto);
+        this.idleTimeout = idleTimeout;
+        this.statistics = statistics;
+        this.log = Logging.getLogger(getClass().getName());
+    }
+
+    /**
+     * Start sending the given datagrams, which make up one message, to the
+     * given peer. Use the returned transfer to wait for them to be
+     * acknowledged.
+     */
+    Transfer send(SocketAddress destination, List<byte[]> datagrams) {
+        while (true) {
+            Sender sender = senders.get(destination);
+            if (sender == null) {
+                Sender fresh = new Sender(destination, random.nextLong());
+                sender = senders.putIfAbsent(destination, fresh);
+                if (sender == null) {
+                    sender = fresh;
+                }
+            }
+            Transfer transfer = new Transfer(sender, datagrams.size());
+            if (sender.enqueue(transfer, datagrams)) {
+                return transfer;
+            }
+            // Dropped for being idle just now
+        }
+    }
+
+    /**
+     * Retransmit whatever has timed out, and drop the senders that have been
+     * idle too long. Should be called at least every
+     * {@link #CLOCK_GRANULARITY} milliseconds or so.
+     */
+    void tick() {
+        long now = System.currentTimeMillis();
+        for (Sender sender : senders.values()) {
+            if (sender.evictIfIdle(now)) {
+                senders.remove(sender.address, sender);
+            } else {
+                sender.tick(now);
+            }
+        }
+    }
+
+    /**
+     * Take a datagram received from the given peer. Acknowledgements are
+     * consumed, and null is returned. For a new data datagram, an
+     * acknowledgement is sent and the buffer is returned positioned after the
+     * header; duplicates are dropped. Any other datagram is returned as it is.
+     */
+    ByteBuffer receive(ByteBuffer datagram, SocketAddress source) {
+        long now = System.currentTimeMillis();
+        if (now - lastReceiverSweep >= idleTimeout) {
+            lastReceiverSweep = now;
+            sweepReceivers(now);
+        }
+        if (datagram.remaining() < 2) {
+            return datagram;
+        }
+        short magic = datagram.getShort(datagram.position());
+        if (magic == ACK_MAGIC) {
+            receiveAck(datagram, source);
+            return null;
+        } else if (magic == DATA_MAGIC) {
+            return receiveData(datagram, source) ? datagram : null;
+        } else {
+            return datagram;
+        }
+    }
+
+    private void receiveAck(ByteBuffer datagram, SocketAddress source) {
+        if (datagram.remaining() < 19) {
+            return;
+        }
+        datagram.getShort(); // magic
+        long ackedSession = datagram.getLong();
+        long cumulative = datagram.getLong();
+        int blockCount = datagram.get() & 0xFF;
+        if (datagram.remaining() < blockCount * 16) {
+            return;
+        }
+        long[] blocks = new long[blockCount * 2];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = datagram.getLong();
+        }
+        statistics.ackReceived();
+        Sender sender = senders.get(source);
+        if (sender != null && sender.session == ackedSession) {
+            sender.acked(cumulative, blocks, System.currentTimeMillis());
+        }
+    }
+
+    private boolean receiveData(ByteBuffer datagram, SocketAddress source) {
+        if (datagram.remaining() < DATA_HEADER_SIZE) {
+            return false;
+        }
+        datagram.getShort(); // magic
+        long peerSession = datagram.getLong();
+        long sequence = datagram.getLong();
+        long lowestUnacked = datagram.getLong();
+        Receiver receiver = receivers.get(source);
+        if (receiver == null || receiver.session != peerSession) {
+            // New peer, or the peer has restarted
+            receiver = new Receiver(peerSession, lowestUnacked);
+            receivers.put(source, receiver);
+        }
+        receiver.lastReceived = System.currentTimeMillis();
+        Boolean fresh = receiver.accept(sequence, lowestUnacked);
+        if (fresh == null) {
+            // no room: don't acknowledge it, it'll come again
+            return false;
+        }
+        transmitAck(receiver.makeAck(), source);
+        if (!fresh.booleanValue()) {
+            statistics.duplicate();
+            return false;
+        }
+        return true;
+    }
+
+    private void sweepReceivers(long now) {
+        for (Iterator<Receiver> itr = receivers.values().iterator(); itr.hasNext();) {
+            if (now - itr.next().lastReceived >= idleTimeout) {
+                itr.remove();
+            }
+        }
+    }
+
+    private void transmitAck(ByteBuffer ack, SocketAddress destination) {
+        try {
+            transmitter.transmit(ack, destination);
+            statistics.ackSent();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Failed to send ack to " + destination + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One message's worth of datagrams on its way to a peer.
+     */
+    class Transfer {
+        private final Sender sender;
+        private int unacked;
+
+        private Transfer(Sender sender, int count) {
+            this.sender = sender;
+            this.unacked = count;
+        }
+
+        private synchronized void acked() {
+            if (--unacked == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait until every datagram has been acknowledged, or until the
+         * deadline. If the deadline passes first, the transfer is abandoned
+         * and false is returned.
+         */
+        boolean await(long deadline)
+                throws InterruptedException {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                while (unacked > 0 && now < deadline) {
+                    wait(deadline - now);
+                    now = System.currentTimeMillis();
+                }
+                if (unacked == 0) {
+                    return true;
+                }
+            }
+            sender.abandon(this);
+            statistics.transferFailed();
+            return false;
+        }
+    }
+
+    private static class Outstanding {
+        private final Transfer transfer;
+        private final byte[] payload;
+        private long sequence;
+        private long sentAt;
+        private int transmissions;
+        private boolean fastRetransmitted;
+
+        Outstanding(Transfer transfer, byte[] payload) {
+            this.transfer = transfer;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The sending half of a peer: the datagrams waiting for room in the
+     * window, those in flight, and the round trip and window estimates.
+     */
+    private class Sender {
+        private final SocketAddress address;
+        private final long session;
+        private final LinkedList<Outstanding> waiting = new LinkedList<Outstanding>();
+        private final TreeMap<Long, Outstanding> inFlight = new TreeMap<Long, Outstanding>();
+        private long nextSequence;
+        private double window = initialWindow;
+        private double slowStartThreshold = maxWindow;
+        // Losses of datagrams sent before this don't shrink the window again
+        private long recoveryPoint;
+        private long smoothedRtt = -1;
+        private long rttVariance;
+        private long rto = INITIAL_RTO;
+        private long lastActive = System.currentTimeMillis();
+        private boolean evicted;
+
+        Sender(SocketAddress address, long session) {
+            this.address = address;
+            this.session = session;
+        }
+
+        /**
+         * @return false if the sender has been dropped, and a new one is
+         *         needed
+         */
+        synchronized boolean enqueue(Transfer transfer, List<byte[]> datagrams) {
+            if (evicted) {
+                return false;
+            }
+            for (byte[] payload : datagrams) {
+                waiting.add(new Outstanding(transfer, payload));
+            }
+            lastActive = System.currentTimeMillis();
+            fill(lastActive);
+            return true;
+        }
+
+        synchronized boolean evictIfIdle(long now) {
+            if (waiting.isEmpty() && inFlight.isEmpty() && now - lastActive >= idleTimeout) {
+                evicted = true;
+            }
+            return evicted;
+        }
+
+        synchronized void abandon(Transfer transfer) {
+            for (Iterator<Outstanding> itr = waiting.iterator(); itr.hasNext();) {
+                if (itr.next().transfer == transfer) {
+                    itr.remove();
+                }
+            }
+            for (Iterator<Outstanding> itr = inFlight.values().iterator(); itr.hasNext();) {
+                if (itr.next().transfer == transfer) {
+                    itr.remove();
+                }
+            }
+            fill(System.currentTimeMillis());
+        }
+
+        synchronized void acked(long cumulative, long[] blocks, long now) {
+            long highest = cumulative - 1;
+            List<Long> acked = new ArrayList<Long>(inFlight.headMap(cumulative).keySet());
+            for (int i = 0; i + 1 < blocks.length; i += 2) {
+                if (blocks[i] < blocks[i + 1]) {
+                    acked.addAll(inFlight.subMap(blocks[i], blocks[i + 1]).keySet());
+                    highest = Math.max(highest, blocks[i + 1] - 1);
+                }
+            }
+            if (!acked.isEmpty()) {
+                lastActive = now;
+            }
+            for (Long sequence : acked) {
+                Outstanding outstanding = inFlight.remove(sequence);
+                if (outstanding.transmissions == 1) {
+                    // Karn: only unambiguous samples
+                    sampleRtt(now - outstanding.sentAt);
+                }
+                if (window < slowStartThreshold) {
+                    window += 1;
+                } else {
+                    window += 1 / window;
+                }
+                window = Math.min(window, maxWindow);
+                outstanding.transfer.acked();
+            }
+
+            // Anything far enough behind an acknowledged datagram is lost
+            SortedMap<Long, Outstanding> behind =
+                    inFlight.headMap(highest - DUPLICATE_THRESHOLD + 1);
+            for (Outstanding outstanding : behind.values()) {
+                if (!outstanding.fastRetransmitted) {
+                    outstanding.fastRetransmitted = true;
+                    lost(outstanding.sequence);
+                    transmit(outstanding, now, true);
+                }
+            }
+            fill(now);
+        }
+
+        synchronized void tick(long now) {
+            boolean timedOut = false;
+            for (Outstanding outstanding : inFlight.values()) {
+                if (now - outstanding.sentAt >= rto) {
+                    if (!timedOut) {
+                        timedOut = true;
+                        statistics.retransmitTimeout();
+                        lost(outstanding.sequence);
+                    }
+                    transmit(outstanding, now, false);
+                }
+            }
+            if (timedOut) {
+                rto = Math.min(rto * 2, maxRto);
+            }
+        }
+
+        // Multiplicative decrease, once per round trip
+        private void lost(long sequence) {
+            if (sequence >= recoveryPoint) {
+                slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+                window = slowStartThreshold;
+                recoveryPoint = nextSequence;
+            }
+        }
+
+        private void sampleRtt(long rtt) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariance = rtt / 2;
+            } else {
+                rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+                smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+            }
+            rto = smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance);
+            rto = Math.max(minRto, Math.min(rto, maxRto));
+        }
+
+        private void fill(long now) {
+            while (!waiting.isEmpty() && inFlight.size() < (int) window) {
+                Outstanding outstanding = waiting.removeFirst();
+                outstanding.sequence = nextSequence++;
+                inFlight.put(outstanding.sequence, outstanding);
+                transmit(outstanding, now, false);
+            }
+        }
+
+        private void transmit(Outstanding outstanding, long now, boolean fast) {
+            long lowestUnacked = inFlight.isEmpty() ? nextSequence : inFlight.firstKey();
+            ByteBuffer datagram = ByteBuffer.allocate(DATA_HEADER_SIZE + outstanding.payload.length);
+            datagram.putShort(DATA_MAGIC);
+            datagram.putLong(session);
+            datagram.putLong(outstanding.sequence);
+            datagram.putLong(lowestUnacked);
+            datagram.put(outstanding.payload);
+            datagram.flip();
+            if (outstanding.transmissions++ == 0) {
+                statistics.datagramSent();
+            } else {
+                statistics.retransmitted(fast);
+            }
+            outstanding.sentAt = now;
+            try {
+                transmitter.transmit(datagram, address);
+            } catch (IOException e) {
+                // the same as losing it
+                if (log.isDebugEnabled()) {
+                    log.debug("Failed to send to " + address + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The receiving half of a peer: which of its sequence numbers have
+     * arrived.
+     */
+    private static class Receiver {
+        private final long session;
+        private long lastReceived;
+        // Every sequence number below this has arrived or been given up on
+        private long cumulative;
+        private final TreeSet<Long> above = new TreeSet<Long>();
+
+        Receiver(long session, long cumulative) {
+            this.session = session;
+            this.cumulative = cumulative;
+        }
+
+        /**
+         * @return whether the sequence number is new, or null if there's no
+         *         room to hold it
+         */
+        Boolean accept(long sequence, long lowestUnacked) {
+            if (lowestUnacked > cumulative) {
+                cumulative = lowestUnacked;
+                above.headSet(cumulative).clear();
+                advance();
+            }
+            if (sequence < cumulative || above.contains(sequence)) {
+                return Boolean.FALSE;
+            }
+            if (sequence == cumulative) {
+                cumulative++;
+                advance();
+            } else if (above.size() < MAX_OUT_OF_ORDER) {
+                above.add(sequence);
+            } else {
+                return null;
+            }
+            return Boolean.TRUE;
+        }
+
+        private void advance() {
+            while (!above.isEmpty() && above.first() == cumulative) {
+                above.pollFirst();
+                cumulative++;
+            }
+        }
+
+        ByteBuffer makeAck() {
+            List<long[]> blocks = new ArrayList<long[]>();
+            long[] block = null;
+            for (Long sequence : above) {
+                if (block != null && sequence == block[1]) {
+                    block[1]++;
+                } else {
+                    if (blocks.size() == MAX_SACK_BLOCKS) {
+                        break;
+                    }
+                    block = new long[] {sequence, sequence + 1};
+                    blocks.add(block);
+                }
+            }
+            ByteBuffer ack = ByteBuffer.allocate(19 + blocks.size() * 16);
+            ack.putShort(ACK_MAGIC);
+            ack.putLong(session);
+            ack.putLong(cumulative);
+            ack.put((byte) blocks.size());
+            for (long[] range : blocks) {
+                ack.putLong(range[0]);
+                ack.putLong(range[1]);
+            }
+            ack.flip();
+            return ack;
+        }
+    }
+}
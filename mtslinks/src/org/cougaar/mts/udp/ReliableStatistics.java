@@ -0,0 +1,117 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.udp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the work done by {@link ReliableDatagrams} in reliable mode. The
+ * counts are cumulative.
+ */
+public class ReliableStatistics {
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong retransmissions = new AtomicLong();
+    private final AtomicLong fastRetransmissions = new AtomicLong();
+    private final AtomicLong retransmitTimeouts = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+    private final AtomicLong acksReceived = new AtomicLong();
+    private final AtomicLong duplicatesReceived = new AtomicLong();
+
+    void datagramSent() {
+        datagramsSent.incrementAndGet();
+    }
+
+    void retransmitted(boolean fast) {
+        retransmissions.incrementAndGet();
+        if (fast) {
+            fastRetransmissions.incrementAndGet();
+        }
+    }
+
+    void retransmitTimeout() {
+        retransmitTimeouts.incrementAndGet();
+    }
+
+    void transferFailed() {
+        failedTransfers.incrementAndGet();
+    }
+
+    void ackSent() {
+        acksSent.incrementAndGet();
+    }
+
+    void ackReceived() {
+        acksReceived.incrementAndGet();
+    }
+
+    void duplicate() {
+        duplicatesReceived.incrementAndGet();
+    }
+
+    /**
+     * Data datagrams sent for the first time.
+     */
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    /**
+     * Data datagrams sent again, for any reason.
+     */
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    /**
+     * Data datagrams sent again because later ones were acknowledged first.
+     */
+    public long getFastRetransmissions() {
+        return fastRetransmissions.get();
+    }
+
+    /**
+     * Times the retransmission timer of a peer ran out.
+     */
+    public long getRetransmitTimeouts() {
+        return retransmitTimeouts.get();
+    }
+
+    /**
+     * Messages whose datagrams were not all acknowledged in time.
+     */
+    public long getFailedTransfers() {
+        return failedTransfers.get();
+    }
+
+    public long getAcksSent() {
+        return acksSent.get();
+    }
+
+    public long getAcksReceived() {
+        return acksReceived.get();
+    }
+
+    /**
+     * Data datagrams received more than once.
+     */
+    public long getDuplicatesReceived() {
+        return duplicatesReceived.get();
+    }
+
+    @Override
+   public String toString() {
+        return "sent=" + getDatagramsSent()
+                + " retransmitted=" + getRetransmissions()
+                + " fastRetransmitted=" + getFastRetransmissions()
+                + " timeouts=" + getRetransmitTimeouts()
+                + " failed=" + getFailedTransfers()
+                + " acksSent=" + getAcksSent()
+                + " acksReceived=" + getAcksReceived()
+                + " duplicates=" + getDuplicatesReceived();
+    }
+}
@@ -6,23 +6,31 @@
 
 package org.cougaar.mts.udp;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.mts.AttributeConstants;
@@ -31,6 +39,8 @@ import org.cougaar.core.mts.InetMulticastMessageAddress;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.node.NodeIdentificationService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
@@ -48,27 +58,54 @@ import org.cougaar.mts.base.UnregisteredNameException;
  * This protocol only knows how to send to an {@link InetMulticastMessageAddress}, which
  * is assumed to be contain a multicast address.
  * <p>
- * For reading, it will poll every {@link InetMulticastMessageAddress} to which it's
- * currently joined.
+ * For reading, it opens a {@link DatagramChannel} for every
+ * {@link InetMulticastMessageAddress} to which it's currently joined. One
+ * {@link DatagramSelector} thread reads all of them, draining everything
+ * waiting on a channel each time it wakes up.
+ * <p>
+ * Messages too big for one datagram are fragmented as they are by
+ * {@link UdpSocketLinkProtocol}, with the same parameters.
+ * <p>
+ * As there, the selector thread only reads and reassembles datagrams. Whole
+ * messages are queued for a separate delivery thread, which reads them and
+ * hands them to the deliverer in the order they were completed, so a slow
+ * delivery doesn't leave datagrams piling up in the channels' receive
+ * buffers.
  */
 public class UdpMulticastLinkProtocol
         extends RPCLinkProtocol {
-    private static final int SOCKET_TIMEOUT_SECONDS = 5;
     private static final int TIME_TO_LIVE=1;
     private static final int TRAFFIC_CLASS=0;
+    private static final int RECEIVE_BATCH=32;
+    private static final int MAX_DATAGRAM_SIZE=1472;
+    private static final int REASSEMBLY_BUFFER_SIZE=16 * 1024 * 1024;
+    private static final int REASSEMBLY_TIMEOUT=5000;
+    private static final int STATISTICS_INTERVAL=60000;
     
     private static final int MAX_PAYLOAD_SIZE = 64 * 1024; // notional, 64K
 
     private URI servantUri;
-    private final Timer timer = new Timer("Multicast Data Poller");
-    private final Map<InetMulticastMessageAddress,MulticastSocket> multicastAddresses = 
-        new HashMap<InetMulticastMessageAddress,MulticastSocket>();
-    private final Map<InetMulticastMessageAddress,TimerTask> tasks =
-        new HashMap<InetMulticastMessageAddress,TimerTask>();
+    // Guarded by multicastAddresses
+    private final Map<InetMulticastMessageAddress,DatagramChannel> multicastAddresses = 
+        new HashMap<InetMulticastMessageAddress,DatagramChannel>();
+    // Guarded by multicastAddresses. Only exists while the servant does.
+    private DatagramSelector datagramSelector;
+    private NetworkInterface multicastInterface;
     
     private int timeToLive = TIME_TO_LIVE;
     private int trafficClass = TRAFFIC_CLASS;
-    private int socketTimeout = SOCKET_TIMEOUT_SECONDS;
+    private int receiveBatch = RECEIVE_BATCH;
+    private int maxDatagramSize = MAX_DATAGRAM_SIZE;
+    private int reassemblyBufferSize = REASSEMBLY_BUFFER_SIZE;
+    private int reassemblyTimeout = REASSEMBLY_TIMEOUT;
+    private int statisticsInterval = STATISTICS_INTERVAL;
+
+    private final FragmentStatistics fragmentStatistics = new FragmentStatistics();
+    private DatagramFragmenter fragmenter;
+    private Schedulable statisticsLogger;
+    private Schedulable deliverer;
+    // Whole messages read by the selector, waiting for the delivery thread
+    private final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<Delivery>();
     
     
     @Override
@@ -76,11 +113,21 @@ public class UdpMulticastLinkProtocol
         super.load();
         timeToLive = (int) getParameter("timeToLive", TIME_TO_LIVE);
         trafficClass = (int) getParameter("timeToLive", TRAFFIC_CLASS);
-        socketTimeout= (int) getParameter("socketTimeout", SOCKET_TIMEOUT_SECONDS);
+        receiveBatch = (int) getParameter("receiveBatch", RECEIVE_BATCH);
+        maxDatagramSize = (int) getParameter("maxDatagramSize", MAX_DATAGRAM_SIZE);
+        reassemblyBufferSize = (int) getParameter("reassemblyBufferSize", REASSEMBLY_BUFFER_SIZE);
+        reassemblyTimeout = (int) getParameter("reassemblyTimeout", REASSEMBLY_TIMEOUT);
+        statisticsInterval = (int) getParameter("statisticsInterval", STATISTICS_INTERVAL);
+        fragmenter = new DatagramFragmenter(maxDatagramSize, fragmentStatistics);
         loggingService.info("Multicast Parameters"
                             + " TTL=" + timeToLive
                             + " TOS=" + trafficClass
-                            + " SocketTimeOut=" + socketTimeout);
+                            + " ReceiveBatch=" + receiveBatch
+                            + " MaxDatagramSize=" + maxDatagramSize);
+    }
+
+    public FragmentStatistics getFragmentStatistics() {
+        return fragmentStatistics;
     }
     
     /**
@@ -100,17 +147,13 @@ public class UdpMulticastLinkProtocol
         InetMulticastMessageAddress multicastAddress = (InetMulticastMessageAddress) addr;
         InetSocketAddress socketAddr = multicastAddress.getReference();
         synchronized (multicastAddresses) {
-            TimerTask task = tasks.get(multicastAddress);
-            if (task == null) {
-                MulticastSocket skt = new MulticastSocket(socketAddr.getPort());
-                skt.setSoTimeout(socketTimeout*1000);  // notional timeout
-                skt.setTimeToLive(timeToLive);
-                skt.setTrafficClass(trafficClass);
-                skt.joinGroup(socketAddr.getAddress());
-                multicastAddresses.put(multicastAddress, skt);
-                task = new InputSocketPoller(skt, socketAddr);
-                tasks.put(multicastAddress, task);
-                timer.schedule(task, 0);
+            if (!multicastAddresses.containsKey(multicastAddress)) {
+                DatagramChannel channel = openGroupChannel(socketAddr);
+                multicastAddresses.put(multicastAddress, channel);
+                if (datagramSelector != null) {
+                    datagramSelector.register(channel, socketAddr);
+                }
+                // otherwise it's registered when the servant is made
             }
         }
     }
@@ -122,19 +165,14 @@ public class UdpMulticastLinkProtocol
     @Override
    public void leave(GroupMessageAddress addr) throws IOException {
         InetMulticastMessageAddress multicastAddress = (InetMulticastMessageAddress) addr;
-        InetSocketAddress socketAddr = multicastAddress.getReference();
-        MulticastSocket socket;
+        DatagramChannel channel;
         synchronized (multicastAddresses) {
-            socket = multicastAddresses.get(multicastAddress);
-            multicastAddresses.remove(multicastAddress);
-            TimerTask task = tasks.get(multicastAddress);
-            if (task != null) {
-                task.cancel();
-                tasks.remove(multicastAddress);
-            }
+            channel = multicastAddresses.remove(multicastAddress);
         }
-        if (socket != null) {
-            socket.leaveGroup(socketAddr.getAddress());
+        if (channel != null) {
+            // Closing the channel drops its membership and unregisters it
+            // from the selector
+            channel.close();
         }
     }
 
@@ -167,29 +205,73 @@ public class UdpMulticastLinkProtocol
             releaseNodeServant();
             return;
         }
+
+        deliverer = threadService.getThread(this, new Runnable() {
+            public void run() {
+                Delivery delivery;
+                while ((delivery = deliveries.poll()) != null) {
+                    processingIncomingMessage(new ByteBufferInputStream(delivery.message),
+                                              delivery.address);
+                }
+            }
+        }, "Multicast Delivery", ThreadService.WILL_BLOCK_LANE);
+
+        synchronized (multicastAddresses) {
+            try {
+                DatagramReassembler reassembler =
+                        new DatagramReassembler(reassemblyBufferSize, reassemblyTimeout,
+                                                fragmentStatistics);
+                datagramSelector = new DatagramSelector(new DatagramHandler(reassembler),
+                                                        receiveBatch, MAX_PAYLOAD_SIZE);
+                for (Map.Entry<InetMulticastMessageAddress,DatagramChannel> entry : multicastAddresses.entrySet()) {
+                    datagramSelector.register(entry.getValue(), entry.getKey().getReference());
+                }
+            } catch (IOException e) {
+                loggingService.error("Failed to make multicast selector", e);
+                datagramSelector = null;
+                releaseNodeServant();
+                return;
+            }
+            int lane = ThreadService.WILL_BLOCK_LANE;
+            Schedulable reader =
+                    threadService.getThread(this, datagramSelector, "Multicast Selector", lane);
+            reader.start();
+        }
+
+        if (statisticsInterval > 0) {
+            statisticsLogger = threadService.getThread(this, new Runnable() {
+                public void run() {
+                    if (loggingService.isInfoEnabled()) {
+                        loggingService.info("Multicast fragments: " + fragmentStatistics);
+                    }
+                }
+            }, "Multicast Fragment Statistics");
+            statisticsLogger.schedule(statisticsInterval, statisticsInterval);
+        }
     }
 
     @Override
    protected void releaseNodeServant() {
-        timer.cancel();
+        if (statisticsLogger != null) {
+            statisticsLogger.cancelTimer();
+            statisticsLogger = null;
+        }
         synchronized (multicastAddresses) {
-            for (Map.Entry<InetMulticastMessageAddress,MulticastSocket> entry : multicastAddresses.entrySet()) {
-                MulticastSocket socket = entry.getValue();
-                InetMulticastMessageAddress key = entry.getKey();
-                InetSocketAddress socketAddr = key.getReference();
+            for (DatagramChannel channel : multicastAddresses.values()) {
                 try {
-                    socket.leaveGroup(socketAddr.getAddress());
+                    channel.close();
                 } catch (IOException e) {
-                    loggingService.error("Error closing multicast socket", e);
+                    loggingService.error("Error closing multicast channel", e);
                 }
             }
             multicastAddresses.clear();
-            for (TimerTask task : tasks.values()) {
-                task.cancel();
+            if (datagramSelector != null) {
+                datagramSelector.close();
+                datagramSelector = null;
             }
-            tasks.clear();
-            timer.cancel();
         }
+        // Messages already queued are still delivered
+        deliverer = null;
         servantUri = null;
     }
 
@@ -233,6 +315,69 @@ public class UdpMulticastLinkProtocol
         return new URI(input);
     }
 
+    /**
+     * Open a channel bound to the group's port and join the group on it.
+     */
+    private DatagramChannel openGroupChannel(InetSocketAddress socketAddr)
+            throws IOException {
+        InetAddress group = socketAddr.getAddress();
+        StandardProtocolFamily family =
+                group instanceof Inet4Address ? StandardProtocolFamily.INET
+                        : StandardProtocolFamily.INET6;
+        DatagramChannel channel = DatagramChannel.open(family);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(socketAddr.getPort()));
+            channel.join(group, getMulticastInterface());
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The interface of the node's own address if there is one, otherwise the
+     * first interface that's up and supports multicast, preferring
+     * non-loopback ones.
+     */
+    private NetworkInterface getMulticastInterface()
+            throws SocketException {
+        if (multicastInterface != null) {
+            return multicastInterface;
+        }
+        ServiceBroker sb = getServiceBroker();
+        NodeIdentificationService nis = sb.getService(this, NodeIdentificationService.class, null);
+        InetAddress localHost = nis.getInetAddress();
+        sb.releaseService(this, NodeIdentificationService.class, nis);
+        NetworkInterface result = null;
+        if (localHost != null) {
+            result = NetworkInterface.getByInetAddress(localHost);
+        }
+        if (result == null) {
+            NetworkInterface loopback = null;
+            for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!candidate.isUp() || !candidate.supportsMulticast()) {
+                    continue;
+                }
+                if (!candidate.isLoopback()) {
+                    result = candidate;
+                    break;
+                } else if (loopback == null) {
+                    loopback = candidate;
+                }
+            }
+            if (result == null) {
+                result = loopback;
+            }
+        }
+        if (result == null) {
+            throw new SocketException("No multicast network interface");
+        }
+        multicastInterface = result;
+        return result;
+    }
+
     /**
      * Send a datagram to the destination.
      */
@@ -272,15 +417,20 @@ public class UdpMulticastLinkProtocol
                     + message.getTarget() + "\n" + message);
         }
 
+        List<byte[]> datagrams = fragmenter.fragment(payload);
+
         // A given connection should not be accessed by more than one thread
         synchronized (destination) {
             try {
                 SchedulableStatus.beginNetIO("Multicast Send packet");
-                DatagramPacket packet = new DatagramPacket(payload, 0, payload.length, address);
-                destination.send(packet);
+                for (byte[] datagram : datagrams) {
+                    DatagramPacket packet =
+                            new DatagramPacket(datagram, 0, datagram.length, address);
+                    destination.send(packet);
+                }
                 if (loggingService.isInfoEnabled()) {
-                    loggingService.info("Sent packet of " + payload.length + " bytes from "
-                            + servantUri + " to " + destination);
+                    loggingService.info("Sent " + datagrams.size() + " packet(s) of "
+                            + payload.length + " bytes from " + servantUri + " to " + address);
                 }
                 MessageAttributes metadata = new MessageReply(message);
                 metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
@@ -421,72 +571,62 @@ public class UdpMulticastLinkProtocol
 
     }
 
-    /**
-     * Periodically check a multicast address for new data
-     */
-    private class InputSocketPoller
-            extends TimerTask {
-        private final DatagramPacket incoming;
-        private final MulticastSocket socket;
-        private final InetSocketAddress address;
-        private boolean cancelled;
-        
-        public InputSocketPoller(MulticastSocket socket, InetSocketAddress address) {
-            byte[] data = new byte[MAX_PAYLOAD_SIZE];
-            incoming = new DatagramPacket(data, MAX_PAYLOAD_SIZE);
-            this.socket = socket;
-            this.address = address;
-        }
+    private class DatagramHandler
+            implements DatagramSelector.Handler {
+        private final DatagramReassembler reassembler;
 
-        @Override
-      public boolean cancel() {
-            cancelled = true;
-            return super.cancel();
+        DatagramHandler(DatagramReassembler reassembler) {
+            this.reassembler = reassembler;
         }
-        
-        @Override
-      public void run() {
-            while (!cancelled) {
-                if (!isServantAlive()) {
-                    // too early?
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        // don't care
-                    }
-                    continue;
-                }
-                if (!cancelled) {
-                    try {
-                        SchedulableStatus.beginNetIO("Multicast Receive packet");
-                        if (loggingService.isInfoEnabled()) {
-                            loggingService.info("Waiting for datagram packet from " + address);
-                        }
-                        socket.receive(incoming);
-                        int length = incoming.getLength();
-                        byte[] payload = incoming.getData();
-                        if (loggingService.isInfoEnabled()) {
-                            loggingService.info("Received datagram packet of size " + length
-                                    + " from " + address);
-                        }
-                        InputStream byteStream = new ByteArrayInputStream(payload, 0, length);
-                        processingIncomingMessage(byteStream, address);
-                    } catch (SocketTimeoutException e) {
-                        // waited too long
-                        if (loggingService.isInfoEnabled()) {
-                            loggingService.info("No data from " +address
-                                                + " for " +socketTimeout+ " seconds");
-                        }
-                    } catch (IOException e) {
-                        // XXX: Should we just quit at this point?
-                        loggingService.warn(e.getMessage());
-                    } finally {
-                        SchedulableStatus.endBlocking();
-                    }
+
+        public void datagramReceived(ByteBuffer datagram, SocketAddress sender, Object attachment) {
+            InetSocketAddress address = (InetSocketAddress) attachment;
+            if (loggingService.isDebugEnabled()) {
+                loggingService.debug("Received datagram packet of size " + datagram.remaining()
+                        + " from " + sender + " on " + address);
+            }
+            ByteBuffer message = reassembler.accept(datagram, sender);
+            if (message != null) {
+                if (loggingService.isInfoEnabled()) {
+                    loggingService.info("Received message of size " + message.remaining()
+                            + " from " + address);
                 }
+                deliver(message, address);
+            }
+        }
+
+        /**
+         * Queue the message for the delivery thread. A whole message that
+         * came in one datagram is still in the selector's buffer, so it's
+         * copied out.
+         */
+        private void deliver(ByteBuffer message, InetSocketAddress address) {
+            Schedulable thread = deliverer;
+            if (thread == null) {
+                return;
+            }
+            if (message.isDirect()) {
+                ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                copy.put(message);
+                copy.flip();
+                message = copy;
             }
+            deliveries.add(new Delivery(message, address));
+            thread.start();
         }
+    }
+
+    /**
+     * A whole message and the group it was sent to.
+     */
+    private static final class Delivery {
+        private final ByteBuffer message;
+        private final InetSocketAddress address;
 
+        Delivery(ByteBuffer message, InetSocketAddress address) {
+            this.message = message;
+            this.address = address;
+        }
     }
 
 }
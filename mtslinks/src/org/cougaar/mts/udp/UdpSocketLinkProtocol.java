@@ -6,7 +6,6 @@
 
 package org.cougaar.mts.udp;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,19 +16,23 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.mts.AttributeConstants;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.node.NodeIdentificationService;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.core.thread.SchedulableStatus;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
@@ -44,19 +47,164 @@ import org.cougaar.util.annotations.Cougaar;
 /**
  * Simple best-effort UDP link protocol: send messages and hope for the best. No
  * acks.
+ * <p>
+ * Incoming datagrams are read by a {@link DatagramSelector}, which drains
+ * everything waiting on the node's channel each time it wakes up.
+ * <p>
+ * Messages too big for one datagram are split into fragments by a
+ * {@link DatagramFragmenter} and put back together by a
+ * {@link DatagramReassembler}. If any fragment is lost the whole message is.
+ * The counts are available from {@link #getFragmentStatistics} and are logged
+ * at info level every <tt>statisticsInterval</tt> milliseconds.
+ * <p>
+ * With <tt>reliable=true</tt> the protocol is no longer best-effort: datagrams
+ * are acknowledged, retransmitted when lost and paced by a congestion window
+ * (see {@link ReliableDatagrams}), and a send returns
+ * {@link AttributeConstants#DELIVERY_STATUS_DELIVERED} once every datagram
+ * of the message has been acknowledged by the remote node. If that doesn't
+ * happen before the message's send deadline, or within
+ * <tt>reliableTimeout</tt> milliseconds, the send fails and the destination
+ * queue retries it, so a message whose acknowledgements are lost may arrive
+ * twice. All the nodes using the protocol must agree on the mode. The state
+ * kept for a peer is dropped once it's been idle for
+ * <tt>peerIdleTimeout</tt> milliseconds.
+ * <p>
+ * The selector thread only reads, acknowledges and reassembles datagrams.
+ * Whole messages are queued for a separate delivery thread, which reads them
+ * and hands them to the deliverer in the order they were completed, so a
+ * slow delivery doesn't hold up acknowledgements or the socket's receive
+ * buffer.
  */
 public class UdpSocketLinkProtocol
         extends RPCLinkProtocol {
     private static final int MAX_PAYLOAD_SIZE = 64 * 1024; // notional, 64K
 
-    private DatagramSocket inputConnection;
+    // FIXME: Workaround for name-server bootstrapping problem
+    // Delay reading incoming packets to give the Name Server agent time to
+    // initialize
+    private static final long READ_DELAY = 5000;
+
+    // How often to look for datagrams to retransmit, in reliable mode
+    private static final long RETRANSMIT_TICK = 10;
+
+    private DatagramChannel inputChannel;
+    private DatagramSelector datagramSelector;
     private URI servantUri;
     private final Map<URI, DatagramSocket> outputSockets = new HashMap<URI, DatagramSocket>();
-    private final Timer timer = new Timer("UDP Data Poller");
 
     @Cougaar.Arg(name = "port", defaultValue = "0")
     private int port;
 
+    /**
+     * Most datagrams read before any are delivered, and the number of receive
+     * buffers.
+     */
+    @Cougaar.Arg(name = "receiveBatch", defaultValue = "32")
+    private int receiveBatch;
+
+    /**
+     * Largest datagram to send. Bigger messages are fragmented. The default
+     * fits an Ethernet frame.
+     */
+    @Cougaar.Arg(name = "maxDatagramSize", defaultValue = "1472")
+    private int maxDatagramSize;
+
+    /**
+     * Most bytes of partly received messages to hold at once. This also
+     * bounds the size of a message.
+     */
+    @Cougaar.Arg(name = "reassemblyBufferSize", defaultValue = "16777216")
+    private int reassemblyBufferSize;
+
+    /**
+     * Milliseconds to wait for the rest of a message's fragments after the
+     * first one arrives.
+     */
+    @Cougaar.Arg(name = "reassemblyTimeout", defaultValue = "5000")
+    private int reassemblyTimeout;
+
+    /**
+     * Milliseconds between logs of the fragment statistics, or 0 for none.
+     */
+    @Cougaar.Arg(name = "statisticsInterval", defaultValue = "60000")
+    private int statisticsInterval;
+
+    /**
+     * Acknowledge and retransmit datagrams.
+     */
+    @Cougaar.Arg(name = "reliable", defaultValue = "false")
+    private boolean reliable;
+
+    /**
+     * In reliable mode, milliseconds to wait for a message without a send
+     * deadline to be acknowledged.
+     */
+    @Cougaar.Arg(name = "reliableTimeout", defaultValue = "30000")
+    private int reliableTimeout;
+
+    /**
+     * In reliable mode, the starting congestion window per peer, in
+     * datagrams.
+     */
+    @Cougaar.Arg(name = "initialWindow", defaultValue = "4")
+    private int initialWindow;
+
+    /**
+     * In reliable mode, the largest congestion window per peer, in datagrams.
+     */
+    @Cougaar.Arg(name = "maxWindow", defaultValue = "256")
+    private int maxWindow;
+
+    /**
+     * In reliable mode, the bounds of the retransmission timeout, in
+     * milliseconds.
+     */
+    @Cougaar.Arg(name = "minRto", defaultValue = "200")
+    private int minRto;
+
+    @Cougaar.Arg(name = "maxRto", defaultValue = "60000")
+    private int maxRto;
+
+    /**
+     * In reliable mode, milliseconds after which an idle peer's state is
+     * dropped. This should be longer than <tt>reliableTimeout</tt> and any
+     * send deadline.
+     */
+    @Cougaar.Arg(name = "peerIdleTimeout", defaultValue = "300000")
+    private int peerIdleTimeout;
+
+    private final FragmentStatistics fragmentStatistics = new FragmentStatistics();
+    private final ReliableStatistics reliableStatistics = new ReliableStatistics();
+    private DatagramFragmenter fragmenter;
+    private ReliableDatagrams reliableDatagrams;
+    private Schedulable retransmitter;
+    private Schedulable statisticsLogger;
+    private Schedulable deliverer;
+    // Whole messages read by the selector, waiting for the delivery thread
+    private final Queue<ByteBuffer> deliveries = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    @Override
+   public void load() {
+        super.load();
+        int datagramSize = maxDatagramSize;
+        if (reliable) {
+            // room for the reliable header
+            datagramSize -= ReliableDatagrams.DATA_HEADER_SIZE;
+        }
+        fragmenter = new DatagramFragmenter(datagramSize, fragmentStatistics);
+    }
+
+    public FragmentStatistics getFragmentStatistics() {
+        return fragmentStatistics;
+    }
+
+    /**
+     * The counts of the reliable mode, all zero if it's off.
+     */
+    public ReliableStatistics getReliableStatistics() {
+        return reliableStatistics;
+    }
+
     @Override
    protected int computeCost(AttributedMessage message) {
         return 1;
@@ -79,6 +227,42 @@ public class UdpSocketLinkProtocol
             return;
         }
 
+        if (reliable) {
+            final DatagramChannel channel = inputChannel;
+            ReliableDatagrams.Transmitter transmitter = new ReliableDatagrams.Transmitter() {
+                public void transmit(ByteBuffer datagram, SocketAddress destination)
+                        throws IOException {
+                    // If the socket's send buffer is full, the datagram is lost
+                    channel.send(datagram, destination);
+                }
+            };
+            reliableDatagrams = new ReliableDatagrams(transmitter, initialWindow, maxWindow,
+                                                      minRto, maxRto, peerIdleTimeout,
+                                                      reliableStatistics);
+        }
+
+        deliverer = threadService.getThread(this, new Runnable() {
+            public void run() {
+                ByteBuffer message;
+                while ((message = deliveries.poll()) != null) {
+                    processingIncomingMessage(new ByteBufferInputStream(message));
+                }
+            }
+        }, "UDP Delivery", ThreadService.WILL_BLOCK_LANE);
+
+        try {
+            DatagramReassembler reassembler =
+                    new DatagramReassembler(reassemblyBufferSize, reassemblyTimeout,
+                                            fragmentStatistics);
+            datagramSelector = new DatagramSelector(new DatagramHandler(reassembler, reliableDatagrams),
+                                                    receiveBatch, MAX_PAYLOAD_SIZE);
+            datagramSelector.register(inputChannel, null);
+        } catch (IOException e) {
+            loggingService.warn("Couldn't create UDP selector: " + e.getMessage());
+            releaseNodeServant();
+            return;
+        }
+
         try {
             servantUri = makeURI(node);
             setNodeURI(servantUri);
@@ -88,20 +272,60 @@ public class UdpSocketLinkProtocol
             return;
         }
 
-        TimerTask task = new InputSocketPoller();
-        // FIXME: Workaround for name-server bootstrapping problem
-        // Delay reading incoming packets to give the Name Server agent time to
-        // initialize
-        timer.schedule(task, 5000, 1);
+        int lane = ThreadService.WILL_BLOCK_LANE;
+        Schedulable reader = threadService.getThread(this, datagramSelector, "UDP Selector", lane);
+        reader.schedule(READ_DELAY);
+
+        if (reliableDatagrams != null) {
+            final ReliableDatagrams reliability = reliableDatagrams;
+            retransmitter = threadService.getThread(this, new Runnable() {
+                public void run() {
+                    reliability.tick();
+                }
+            }, "UDP Retransmitter");
+            retransmitter.schedule(RETRANSMIT_TICK, RETRANSMIT_TICK);
+        }
+
+        if (statisticsInterval > 0) {
+            statisticsLogger = threadService.getThread(this, new Runnable() {
+                public void run() {
+                    if (loggingService.isInfoEnabled()) {
+                        loggingService.info("UDP fragments: " + fragmentStatistics);
+                        if (reliable) {
+                            loggingService.info("UDP reliability: " + reliableStatistics);
+                        }
+                    }
+                }
+            }, "UDP Statistics");
+            statisticsLogger.schedule(statisticsInterval, statisticsInterval);
+        }
     }
 
     @Override
    protected void releaseNodeServant() {
-        timer.cancel();
-        if (inputConnection != null) {
-            inputConnection.close();
-            inputConnection = null;
+        if (statisticsLogger != null) {
+            statisticsLogger.cancelTimer();
+            statisticsLogger = null;
+        }
+        if (retransmitter != null) {
+            retransmitter.cancelTimer();
+            retransmitter = null;
+        }
+        reliableDatagrams = null;
+        // Messages already queued are still delivered
+        deliverer = null;
+        if (datagramSelector != null) {
+            // closes the input channel
+            datagramSelector.close();
+            datagramSelector = null;
+        } else if (inputChannel != null) {
+            try {
+                inputChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
+        inputChannel = null;
         servantUri = null;
         // XXX: Do we need to close the sockets in outputSockets?
     }
@@ -119,7 +343,7 @@ public class UdpSocketLinkProtocol
      */
     @Override
    protected boolean isServantAlive() {
-        return inputConnection != null && servantUri != null && super.isServantAlive();
+        return inputChannel != null && servantUri != null && super.isServantAlive();
     }
 
     @Override
@@ -134,9 +358,10 @@ public class UdpSocketLinkProtocol
 
     private boolean openInputSocket(String node) {
         try {
-            inputConnection = port != 0 ? new DatagramSocket(port) : new DatagramSocket();
+            inputChannel = DatagramChannel.open();
+            inputChannel.socket().bind(new InetSocketAddress(port));
             return true;
-        } catch (SocketException e) {
+        } catch (IOException e) {
             loggingService.warn("Couldn't create UDP socket: " + e.getMessage());
             return false;
         }
@@ -144,7 +369,7 @@ public class UdpSocketLinkProtocol
 
     private URI makeURI(String myServantId)
             throws URISyntaxException {
-        int localPort = inputConnection.getLocalPort();
+        int localPort = inputChannel.socket().getLocalPort();
         String input = null;
         ServiceBroker sb = getServiceBroker();
         NodeIdentificationService nis = sb.getService(this, NodeIdentificationService.class, null);
@@ -179,7 +404,7 @@ public class UdpSocketLinkProtocol
         byte[] payload = bos.toByteArray();
 
         Object deadline = message.getAttribute(AttributeConstants.MESSAGE_SEND_DEADLINE_ATTRIBUTE);
-        int ttl;
+        int ttl = 0;
         if (deadline instanceof Long) {
             ttl = (int) (((Long) deadline).longValue() - System.currentTimeMillis());
             if (ttl < 0) {
@@ -196,17 +421,29 @@ public class UdpSocketLinkProtocol
                     + message.getTarget() + "\n" + message);
         }
 
+        List<byte[]> datagrams = fragmenter.fragment(payload);
+
+        ReliableDatagrams reliability = reliableDatagrams;
+        if (reliability != null) {
+            long timeout = deadline instanceof Long ? ttl : reliableTimeout;
+            return sendReliably(reliability, destination.getRemoteSocketAddress(), message,
+                                datagrams, timeout);
+        }
+
         // A given connection should not be accessed by more than one thread
         synchronized (destination) {
             try {
                 SchedulableStatus.beginNetIO("UDP Send packet");
                 SocketAddress remoteSocketAddress = destination.getRemoteSocketAddress();
-                DatagramPacket packet =
-                        new DatagramPacket(payload, 0, payload.length, remoteSocketAddress);
-                destination.send(packet);
+                for (byte[] datagram : datagrams) {
+                    DatagramPacket packet =
+                            new DatagramPacket(datagram, 0, datagram.length, remoteSocketAddress);
+                    destination.send(packet);
+                }
                 if (loggingService.isInfoEnabled()) {
-                    loggingService.info("Sent packet of " + payload.length + " bytes from "
-                            + servantUri + " to " + remoteSocketAddress);
+                    loggingService.info("Sent " + datagrams.size() + " packet(s) of "
+                            + payload.length + " bytes from " + servantUri + " to "
+                            + remoteSocketAddress);
                 }
                 MessageAttributes metadata = new MessageReply(message);
                 metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
@@ -223,6 +460,41 @@ public class UdpSocketLinkProtocol
         }
     }
 
+    /**
+     * Send the datagrams of a message in reliable mode and wait for them all
+     * to be acknowledged.
+     */
+    private MessageAttributes sendReliably(ReliableDatagrams reliability,
+                                           SocketAddress remoteSocketAddress,
+                                           AttributedMessage message,
+                                           List<byte[]> datagrams,
+                                           long timeout)
+            throws IOException {
+        ReliableDatagrams.Transfer transfer = reliability.send(remoteSocketAddress, datagrams);
+        boolean acknowledged;
+        try {
+            SchedulableStatus.beginNetIO("UDP Wait for ack");
+            acknowledged = transfer.await(System.currentTimeMillis() + timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for ack from " + remoteSocketAddress);
+        } finally {
+            SchedulableStatus.endBlocking();
+        }
+        if (!acknowledged) {
+            throw new IOException("No ack from " + remoteSocketAddress + " within " + timeout
+                    + "ms");
+        }
+        if (loggingService.isInfoEnabled()) {
+            loggingService.info("Sent " + datagrams.size() + " acknowledged packet(s) from "
+                    + servantUri + " to " + remoteSocketAddress);
+        }
+        MessageAttributes metadata = new MessageReply(message);
+        metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
+                              AttributeConstants.DELIVERY_STATUS_DELIVERED);
+        return metadata;
+    }
+
     /**
      * Read and dispatch an incoming message on a stream.
      * 
@@ -323,43 +595,57 @@ public class UdpSocketLinkProtocol
 
     }
 
-    /**
-     * Periodically check the BPA for messages to us.
-     */
-    private class InputSocketPoller
-            extends TimerTask {
-        private final DatagramPacket incoming;
+    private class DatagramHandler
+            implements DatagramSelector.Handler {
+        private final DatagramReassembler reassembler;
+        private final ReliableDatagrams reliability;
 
-        public InputSocketPoller() {
-            byte[] data = new byte[MAX_PAYLOAD_SIZE];
-            incoming = new DatagramPacket(data, MAX_PAYLOAD_SIZE);
+        DatagramHandler(DatagramReassembler reassembler, ReliableDatagrams reliability) {
+            this.reassembler = reassembler;
+            this.reliability = reliability;
         }
 
-        @Override
-      public void run() {
-            if (!isServantAlive()) {
-                // too early
-                return;
+        public void datagramReceived(ByteBuffer datagram, SocketAddress sender, Object attachment) {
+            if (loggingService.isDebugEnabled()) {
+                loggingService.debug("Received datagram packet of size " + datagram.remaining()
+                        + " from " + sender);
             }
-            try {
-                SchedulableStatus.beginNetIO("UDP Receive packet");
-                inputConnection.receive(incoming);
-                int length = incoming.getLength();
-                byte[] payload = incoming.getData();
+            if (reliability != null) {
+                datagram = reliability.receive(datagram, sender);
+                if (datagram == null) {
+                    // an ack or a duplicate
+                    return;
+                }
+            }
+            ByteBuffer message = reassembler.accept(datagram, sender);
+            if (message != null) {
                 if (loggingService.isInfoEnabled()) {
-                    loggingService.info("Received datagram packet of size " + length + " from "
-                            + inputConnection.getInetAddress());
+                    loggingService.info("Received message of size " + message.remaining()
+                            + " from " + sender);
                 }
-                InputStream byteStream = new ByteArrayInputStream(payload, 0, length);
-                processingIncomingMessage(byteStream);
-            } catch (IOException e) {
-                loggingService.warn(e.getMessage());
-                releaseNodeServant(); // ????
-            } finally {
-                SchedulableStatus.endBlocking();
+                deliver(message);
             }
         }
 
+        /**
+         * Queue the message for the delivery thread. A whole message that
+         * came in one datagram is still in the selector's buffer, so it's
+         * copied out.
+         */
+        private void deliver(ByteBuffer message) {
+            Schedulable thread = deliverer;
+            if (thread == null) {
+                return;
+            }
+            if (message.isDirect()) {
+                ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                copy.put(message);
+                copy.flip();
+                message = copy;
+            }
+            deliveries.add(message);
+            thread.start();
+        }
     }
 
 }
@@ -156,11 +156,6 @@ public class XmppLinkProtocol
         return new URI(input);
     }
 
-    @Override
-   protected Runnable makePollerTask() {
-        return null;
-    }
-
     /**
      * Send a base64'ized message to a buddy. The message can either be an MTS
      * AttributedMessage or an ack.
@@ -246,7 +241,7 @@ public class XmppLinkProtocol
                     }
                     byte[] payload = Base64.decode(text);
                     InputStream stream = new ByteArrayInputStream(payload);
-                    processingIncomingMessage(stream);
+                    enqueueIncomingMessage(stream);
                 }
             }
         }
@@ -48,4 +48,8 @@ abstract public class AspectFactory
         return getAspectSupport().attachAspects(delegate, type, aspectNames);
     }
 
+    public <T> T attachSharedAspects(T delegate, Class<T> type, List<String> aspectNames) {
+        return getAspectSupport().attachSharedAspects(delegate, type, aspectNames);
+    }
+
 }
@@ -70,4 +70,15 @@ public interface AspectSupport
      * object at the cut-point indicated by the given type.
      */
     <T> T attachAspects(T delegate, Class<T> type, List<String> candidates);
+
+    /**
+     * Like {@link #attachAspects(Object, Class, List)}, for factories whose
+     * base objects are stateless and interchangeable. The list of candidates
+     * is resolved once per distinct list. If every aspect that attaches a
+     * delegate is a {@link ReusableDelegates} aspect whose delegates for this
+     * type are reusable, the resulting chain is built only once and returned
+     * to every later caller with the same candidates; otherwise a new chain is
+     * attached to the given object each time.
+     */
+    <T> T attachSharedAspects(T delegate, Class<T> type, List<String> candidates);
 }
@@ -31,8 +31,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.cougaar.core.component.Container;
 import org.cougaar.core.component.ServiceBroker;
@@ -79,13 +80,24 @@ public class AspectSupportImpl
     private class ServiceImpl
             implements AspectSupport {
 
+        // Marks a cut-point whose chain for some candidate list can't be shared
+        private final Object NOT_SHARED = new Object();
+
         private final List<MessageTransportAspect> aspects;
         private final Map<String, MessageTransportAspect> aspects_table;
         private final LoggingService loggingService;
 
+        // Snapshot of aspects, replaced whenever an aspect is added
+        private volatile MessageTransportAspect[] all_aspects;
+
+        // Resolved candidate lists, cleared whenever an aspect is added
+        private final ConcurrentMap<List<String>, AspectChain> chains;
+
         private ServiceImpl(Container container, LoggingService loggingService) {
             aspects = new ArrayList<MessageTransportAspect>();
             aspects_table = new HashMap<String, MessageTransportAspect>();
+            all_aspects = new MessageTransportAspect[0];
+            chains = new ConcurrentHashMap<List<String>, AspectChain>();
             this.loggingService = loggingService;
         }
 
@@ -106,6 +118,7 @@ public class AspectSupportImpl
             synchronized (this) {
                 aspects.add(aspect);
                 aspects_table.put(classname, aspect);
+                aspectsChanged();
             }
             if (loggingService.isDebugEnabled()) {
                 loggingService.debug("Added aspect " + aspect);
@@ -117,12 +130,19 @@ public class AspectSupportImpl
             synchronized (this) {
                 aspects.add(aspect);
                 aspects_table.put(classname, aspect);
+                aspectsChanged();
             }
             if (loggingService.isDebugEnabled()) {
                 loggingService.debug("Added aspect " + aspect);
             }
         }
 
+        // Caller holds the lock
+        private void aspectsChanged() {
+            all_aspects = aspects.toArray(new MessageTransportAspect[aspects.size()]);
+            chains.clear();
+        }
+
         /**
          * Loops through the aspects, allowing each one to attach an aspect
          * delegate in a cascaded series. If any aspects attach a delegate, the
@@ -133,44 +153,111 @@ public class AspectSupportImpl
             if (candidateClassNames == null) {
                 return delegate;
             }
-            List<MessageTransportAspect> candidates =
-                    new ArrayList<MessageTransportAspect>(candidateClassNames.size());
-            Iterator<String> itr = candidateClassNames.iterator();
-            while (itr.hasNext()) {
-                String candidateClassName = itr.next();
-                MessageTransportAspect candidate = findAspect(candidateClassName);
-                if (candidate != null) {
-                    candidates.add(candidate);
+            return attach(delegate, type, getChain(candidateClassNames).candidates, null);
+        }
+
+        public <T> T attachAspects(T delegate, Class<T> type) {
+            return attach(delegate, type, all_aspects, null);
+        }
+
+        public <T> T attachSharedAspects(T delegate, Class<T> type, List<String> candidateClassNames) {
+            if (candidateClassNames == null) {
+                return delegate;
+            }
+            AspectChain chain = getChain(candidateClassNames);
+            Object shared = chain.shared.get(type);
+            if (shared == null) {
+                List<MessageTransportAspect> attached = new ArrayList<MessageTransportAspect>();
+                T candidate = attach(delegate, type, chain.candidates, attached);
+                shared = isReusable(attached, type) ? candidate : NOT_SHARED;
+                Object old = chain.shared.putIfAbsent(type, shared);
+                if (old != null) {
+                    shared = old;
+                } else if (loggingService.isDebugEnabled()) {
+                    loggingService.debug((shared == NOT_SHARED ? "Not sharing " : "Sharing ")
+                            + type.getName() + " chain for " + candidateClassNames);
+                }
+                if (shared == NOT_SHARED) {
+                    // The chain we just made is as good as a new one
+                    return candidate;
                 }
             }
-            return attach(delegate, type, candidates);
+            if (shared == NOT_SHARED) {
+                return attach(delegate, type, chain.candidates, null);
+            }
+            return type.cast(shared);
         }
 
-        public <T> T attachAspects(T delegate, Class<T> type) {
-            return attach(delegate, type, aspects);
+        private boolean isReusable(List<MessageTransportAspect> attached, Class<?> type) {
+            for (MessageTransportAspect aspect : attached) {
+                if (!(aspect instanceof ReusableDelegates)) {
+                    return false;
+                }
+                if (!((ReusableDelegates) aspect).isReusableDelegate(type)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private AspectChain getChain(List<String> candidateClassNames) {
+            AspectChain chain = chains.get(candidateClassNames);
+            if (chain == null) {
+                List<MessageTransportAspect> candidates =
+                        new ArrayList<MessageTransportAspect>(candidateClassNames.size());
+                synchronized (this) {
+                    Iterator<String> itr = candidateClassNames.iterator();
+                    while (itr.hasNext()) {
+                        String candidateClassName = itr.next();
+                        MessageTransportAspect candidate = aspects_table.get(candidateClassName);
+                        if (candidate != null) {
+                            candidates.add(candidate);
+                        }
+                    }
+                    chain = new AspectChain(candidates);
+                    // Copy the key, since the caller's list may change.
+                    // Resolve and cache under the lock so that a
+                    // concurrent addAspect can't leave a stale chain.
+                    chains.put(new ArrayList<String>(candidateClassNames), chain);
+                }
+            }
+            return chain;
         }
 
-        private <T> T attach(T delegate, Class<T> type, List<MessageTransportAspect> candidates) {
-            Iterator<MessageTransportAspect> itr = candidates.iterator();
-            while (itr.hasNext()) {
-                MessageTransportAspect aspect = itr.next();
+        /**
+         * Loops through the aspects, allowing each one to attach a delegate,
+         * then loops back through them in reverse order, allowing each one to
+         * attach a reverse delegate. If the given list is non-null, each
+         * aspect that attaches a delegate of either kind is added to it.
+         */
+        private <T> T attach(T delegate,
+                             Class<T> type,
+                             MessageTransportAspect[] candidates,
+                             List<MessageTransportAspect> attached) {
+            for (int i = 0; i < candidates.length; i++) {
+                MessageTransportAspect aspect = candidates[i];
                 @SuppressWarnings("unchecked")
                 T candidate = (T) aspect.getDelegate(delegate, type);
                 if (candidate != null) {
                     delegate = candidate;
+                    if (attached != null) {
+                        attached.add(aspect);
+                    }
                     if (loggingService.isDebugEnabled()) {
                         loggingService.debug("attached " + delegate);
                     }
                 }
             }
 
-            ListIterator<MessageTransportAspect> litr = candidates.listIterator(candidates.size());
-            while (litr.hasPrevious()) {
-                MessageTransportAspect aspect = litr.previous();
+            for (int i = candidates.length - 1; i >= 0; i--) {
+                MessageTransportAspect aspect = candidates[i];
                 @SuppressWarnings("unchecked")
                 T candidate = (T) aspect.getReverseDelegate(delegate, type);
                 if (candidate != null) {
                     delegate = candidate;
+                    if (attached != null) {
+                        attached.add(aspect);
+                    }
                     if (loggingService.isDebugEnabled()) {
                         loggingService.debug("reverse attached " + delegate);
                     }
@@ -182,6 +269,20 @@ public class AspectSupportImpl
 
     }
 
+    /**
+     * The aspects named by one candidate list, in order, along with any
+     * delegate chains built from them that can be shared, by cut-point type.
+     */
+    private static final class AspectChain {
+        private final MessageTransportAspect[] candidates;
+        private final ConcurrentMap<Class<?>, Object> shared;
+
+        private AspectChain(List<MessageTransportAspect> candidates) {
+            this.candidates = candidates.toArray(new MessageTransportAspect[candidates.size()]);
+            this.shared = new ConcurrentHashMap<Class<?>, Object>();
+        }
+    }
+
     public void unload() {
         // Nullify service otherwise it will not be reclaimed by the
         // garbage collector.
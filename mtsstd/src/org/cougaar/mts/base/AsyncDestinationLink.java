@@ -0,0 +1,42 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+/**
+ * A {@link DestinationLink} that may be able to start forwarding a message
+ * without waiting for its reply. Implementing it is optional; a
+ * DestinationQueue only keeps several messages in flight on links that
+ * implement it and say they support it.
+ */
+public interface AsyncDestinationLink
+        extends DestinationLink {
+
+    /**
+     * Can this link start forwarding a message without waiting for the reply?
+     * If not, {@link #forwardMessageAsync} will never be called.
+     * 
+     * @see DestinationQueue#dispatchNextMessage(AttributedMessage)
+     */
+    boolean supportsAsyncForwarding();
+
+    /**
+     * Start forwarding the message to the destination and return without
+     * waiting for the reply. The outcome is reported later to the callback,
+     * exactly once. If this method throws instead, the callback will not be
+     * called. Only called during processing of messages in
+     * DestinationQueueImpl, and only if {@link #supportsAsyncForwarding} is
+     * true.
+     * <p>
+     * Messages forwarded this way must reach the destination in the order in
+     * which this method was called.
+     * 
+     * @see #forwardMessage(AttributedMessage)
+     */
+    void forwardMessageAsync(AttributedMessage message, ForwardCallback callback)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException;
+}
@@ -61,7 +61,7 @@ public class AttributedMessage
         extends Message
         implements Externalizable, MessageAttributes {
 
-    private static final String FILTERS_ATTRIBUTE = "Filters";
+    static final String FILTERS_ATTRIBUTE = "Filters";
     private static final Logger logger = Logging.getLogger(AttributedMessage.class.getName());
 
     private Message contents;
@@ -177,6 +177,14 @@ public class AttributedMessage
         return contents;
     }
 
+    /**
+     * Replace the raw message. Only used by {@link SpillingMessageQueueEngine}
+     * to move the contents of a queued message to disk and back.
+     */
+    void setRawMessage(Message contents) {
+        this.contents = contents;
+    }
+
     // MessageAttributes interface
     // Delegate all calls
 
@@ -277,8 +285,11 @@ public class AttributedMessage
             throws java.io.IOException, GeneralSecurityException {
         MessageProtectionService svc = MessageProtectionAspect.getMessageProtectionService();
         byte[] bytes = null;
+        Object format = attributes.getAttribute(CompactHeaderCodec.HEADER_FORMAT_ATTRIBUTE);
         if (svc != null) {
             bytes = svc.protectHeader(attributes, getOriginator(), getTarget());
+        } else if (CompactHeaderCodec.FORMAT.equals(format)) {
+            bytes = CompactHeaderCodec.encode(attributes);
         } else {
             bytes = serializeObject(attributes);
         }
@@ -293,6 +304,11 @@ public class AttributedMessage
         byte[] rawData = (byte[]) in.readObject();
         if (svc != null) {
             attributes = svc.unprotectHeader(rawData, getOriginator(), getTarget());
+        } else if (CompactHeaderCodec.isCompact(rawData)) {
+            attributes = (SimpleMessageAttributes) CompactHeaderCodec.decode(rawData);
+            // The sender reads this format too, use it for the reply
+            attributes.setLocalAttribute(CompactHeaderCodec.HEADER_FORMAT_ATTRIBUTE,
+                                         CompactHeaderCodec.FORMAT);
         } else {
             attributes = (SimpleMessageAttributes) deserializeObject(rawData);
         }
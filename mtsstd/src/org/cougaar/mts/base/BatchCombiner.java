@@ -0,0 +1,190 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Combines items that callers submit at about the same time into batches,
+ * for a link protocol that can send a batch for about the cost of one item,
+ * such as one HTTP post or one JMS transaction.
+ * <p>
+ * There's no separate flushing thread. The callers take turns as leader:
+ * <ul>
+ * <li>A caller queues its item. If fewer than <code>maxFlushes</code>
+ * leaders are flushing, it becomes one. Otherwise it waits until its item is
+ * done or a leader steps down.</li>
+ * <li>A leader takes up to <code>maxBatchSize</code> items off the front of
+ * the queue and flushes them, with no lock held. It keeps taking batches
+ * until its own item is done, then steps down and wakes a waiting caller.
+ * </li>
+ * <li>A leader that finds the queue empty has had its item taken by another
+ * leader. It steps down and waits for that leader to finish the batch.</li>
+ * </ul>
+ * Items queued while a batch is in flight therefore go together in the next
+ * one, and under load most callers are followers that only wait. Each caller
+ * gets back the outcome of its own item.
+ * <p>
+ * The {@link Flusher} completes each item of a batch with its outcome. If it
+ * throws, the items still outstanding are completed with the exception, and
+ * any it leaves outstanding are completed with an
+ * {@link IllegalStateException}. A caller that's interrupted while waiting
+ * keeps waiting, since its item may already be on its way, and the interrupt
+ * is restored when it returns.
+ *
+ * @param <T> the type of the items
+ */
+public final class BatchCombiner<T> {
+    /**
+     * Sends one batch and completes each of its items with
+     * {@link Entry#complete}.
+     */
+    public interface Flusher<T> {
+        void flush(List<Entry<T>> batch);
+    }
+
+    private final Flusher<T> flusher;
+    private final int maxBatchSize;
+    private final int maxFlushes;
+
+    // Guarded by this
+    private final LinkedList<Entry<T>> queue = new LinkedList<Entry<T>>();
+    private int flushing;
+
+    /**
+     * @param maxBatchSize the most items in one batch
+     * @param maxFlushes the most batches in flight at once
+     */
+    public BatchCombiner(Flusher<T> flusher, int maxBatchSize, int maxFlushes) {
+        this.flusher = flusher;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxFlushes = Math.max(1, maxFlushes);
+    }
+
+    /**
+     * Send the item in a batch, and return the outcome it was completed
+     * with.
+     */
+    public Object submit(T item) {
+        Entry<T> entry = new Entry<T>(this, item);
+        boolean interrupted = false;
+        synchronized (this) {
+            queue.add(entry);
+            while (!entry.done && flushing >= maxFlushes) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (entry.done) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return entry.outcome;
+            }
+            flushing++;
+        }
+        boolean leading = true;
+        try {
+            while (true) {
+                List<Entry<T>> batch;
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        // Our item is done, or in another leader's batch
+                        leading = false;
+                        flushing--;
+                        notifyAll();
+                        while (!entry.done) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                        break;
+                    }
+                    int size = Math.min(queue.size(), maxBatchSize);
+                    batch = new ArrayList<Entry<T>>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(queue.removeFirst());
+                    }
+                }
+                flush(batch);
+                synchronized (this) {
+                    if (entry.done) {
+                        leading = false;
+                        flushing--;
+                        notifyAll();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (leading) {
+                synchronized (this) {
+                    flushing--;
+                    notifyAll();
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return entry.outcome;
+    }
+
+    private void flush(List<Entry<T>> batch) {
+        try {
+            flusher.flush(batch);
+        } catch (RuntimeException e) {
+            for (Entry<T> entry : batch) {
+                entry.complete(e);
+            }
+        } finally {
+            for (Entry<T> entry : batch) {
+                entry.complete(new IllegalStateException("Not completed by its batch"));
+            }
+        }
+    }
+
+    /**
+     * A queued item and, once it's done, its outcome.
+     */
+    public static final class Entry<T> {
+        private final BatchCombiner<T> combiner;
+        private final T item;
+        // Guarded by the combiner
+        private Object outcome;
+        private boolean done;
+
+        private Entry(BatchCombiner<T> combiner, T item) {
+            this.combiner = combiner;
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Hand the outcome, which may be null, to the caller, unless it
+         * already has one.
+         */
+        public void complete(Object outcome) {
+            synchronized (combiner) {
+                if (!done) {
+                    this.outcome = outcome;
+                    done = true;
+                    combiner.notifyAll();
+                }
+            }
+        }
+    }
+}
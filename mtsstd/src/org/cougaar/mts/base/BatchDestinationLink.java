@@ -0,0 +1,47 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import org.cougaar.core.mts.MessageAttributes;
+
+/**
+ * A {@link DestinationLink} that may be able to forward a batch of messages
+ * in a single protocol operation. Implementing it is optional; a
+ * DestinationQueue only batches messages for links that implement it and say
+ * they support batches.
+ */
+public interface BatchDestinationLink
+        extends DestinationLink {
+
+    /**
+     * Does this link know how to forward a batch of messages in a single
+     * protocol operation? If not, {@link #forwardMessages} will never be
+     * called.
+     * 
+     * @see DestinationQueue#dispatchNextMessage(AttributedMessage)
+     */
+    boolean supportsBatchForwarding();
+
+    /**
+     * Forward a batch of messages to the destination, in order, in a single
+     * protocol operation. Only called during processing of messages in
+     * DestinationQueueImpl, and only if {@link #supportsBatchForwarding} is
+     * true. Each message will already have been passed to
+     * {@link #addMessageAttributes}.
+     * <p>
+     * The value returned holds the replies to the messages that were
+     * forwarded, which are always a prefix of the batch and never empty.
+     * Messages beyond that prefix were not forwarded and will be dispatched
+     * again later. If an exception is thrown none of the messages was
+     * forwarded.
+     * 
+     * @see #forwardMessage(AttributedMessage)
+     */
+    MessageAttributes[] forwardMessages(AttributedMessage[] messages)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException;
+}
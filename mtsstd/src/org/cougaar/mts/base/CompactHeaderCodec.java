@@ -0,0 +1,411 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.AttributeConstants;
+
+/**
+ * A more compact alternative to plain Java serialization for
+ * {@link AttributedMessage} headers. It's still Java serialization of the
+ * same attributes object, but
+ * <ul>
+ * <li>the stream header is replaced by a three byte format marker,
+ * <li>class descriptors of the classes that make up nearly every header
+ * (the attributes class, collections, boxed numbers) are written as one byte
+ * ids instead of names, field lists and serialVersionUIDs,
+ * <li>well-known strings, the names and values of the attributes in
+ * {@link AttributeConstants}, are written as varint ids,
+ * <li>HashMaps, such as the attributes themselves, are written entry by
+ * entry, and their Integer and Long values, such as sequence numbers and
+ * deadlines, are written inline as zigzag varints tagged with the number's
+ * class id, rather than as objects. Small and negative numbers take a byte or
+ * two instead of the ten or more of a serialized object.
+ * </ul>
+ * Both tables are fixed at class load time, and {@link #FORMAT} includes a
+ * hash of them. A node advertises the formats it can read by putting
+ * {@link #FORMAT} in the {@link #READABLE_FORMATS_ATTRIBUTE} attribute of its
+ * delivery replies. A link sends compact headers only after seeing its own
+ * {@link #FORMAT} there, so nodes running older code, or with different
+ * tables, continue to get ordinary serialized headers. Readers accept both.
+ */
+final class CompactHeaderCodec {
+    /**
+     * Set on replies by the receiving node, and read by the sending link.
+     */
+    static final String READABLE_FORMATS_ATTRIBUTE = "ReadableHeaderFormats";
+
+    /**
+     * Local attribute set on an outgoing message by its link when the
+     * destination can read compact headers.
+     */
+    static final String HEADER_FORMAT_ATTRIBUTE = "HeaderFormat";
+
+    private static final byte MAGIC_0 = (byte) 0xC0;
+    private static final byte MAGIC_1 = (byte) 0xDE;
+    private static final byte VERSION = 2;
+
+    // Written instead of a class id for classes not in the table
+    private static final int UNLISTED_CLASS = 0xFF;
+
+    private static final String[] CLASS_NAMES = {
+        "org.cougaar.core.mts.SimpleMessageAttributes",
+        "java.util.HashMap",
+        "java.util.ArrayList",
+        "java.util.LinkedList",
+        "java.util.Vector",
+        "java.lang.Number",
+        "java.lang.Integer",
+        "java.lang.Long",
+        "java.lang.Boolean",
+        "java.lang.Double",
+        "org.cougaar.mts.base.CompactHeaderCodec$StringRef",
+        "org.cougaar.mts.base.CompactHeaderCodec$MapRef",
+    };
+
+    // Tags of inline map values
+    private static final int INTEGER_TAG = Arrays.asList(CLASS_NAMES).indexOf("java.lang.Integer");
+    private static final int LONG_TAG = Arrays.asList(CLASS_NAMES).indexOf("java.lang.Long");
+
+    private static final Class<?>[] CLASSES;
+    private static final Map<Class<?>, Integer> CLASS_IDS = new HashMap<Class<?>, Integer>();
+    private static final String[] STRINGS;
+    private static final Map<String, Integer> STRING_IDS = new HashMap<String, Integer>();
+
+    /**
+     * Identifies this codec, including the contents of its tables.
+     */
+    static final String FORMAT;
+
+    static {
+        CLASSES = new Class<?>[CLASS_NAMES.length];
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            try {
+                CLASSES[i] = Class.forName(CLASS_NAMES[i]);
+                CLASS_IDS.put(CLASSES[i], i);
+            } catch (ClassNotFoundException e) {
+                // leave the slot empty, ids must not move
+            }
+        }
+        STRINGS = wellKnownStrings();
+        for (int i = 0; i < STRINGS.length; i++) {
+            STRING_IDS.put(STRINGS[i], i);
+        }
+        int hash = Arrays.asList(CLASS_NAMES).hashCode() * 31 + Arrays.asList(STRINGS).hashCode();
+        FORMAT = "compact-" + VERSION + "-" + Integer.toHexString(hash);
+    }
+
+    private CompactHeaderCodec() {
+    }
+
+    // String constants in AttributeConstants, ordered by field name so that
+    // every JVM builds the same table
+    private static String[] wellKnownStrings() {
+        Field[] fields = AttributeConstants.class.getFields();
+        Arrays.sort(fields, new Comparator<Field>() {
+            public int compare(Field f1, Field f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+        List<String> strings = new ArrayList<String>();
+        strings.add(AttributedMessage.FILTERS_ATTRIBUTE);
+        strings.add(READABLE_FORMATS_ATTRIBUTE);
+        for (Field field : fields) {
+            if (field.getType() == String.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    String value = (String) field.get(null);
+                    if (value != null && !strings.contains(value)) {
+                        strings.add(value);
+                    }
+                } catch (IllegalAccessException e) {
+                    // interface constants are public
+                }
+            }
+        }
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    /**
+     * Does the given header start with the compact format marker? Ordinary
+     * serialized headers start with the serialization stream magic instead.
+     */
+    static boolean isCompact(byte[] header) {
+        return header.length >= 3 && header[0] == MAGIC_0 && header[1] == MAGIC_1;
+    }
+
+    static byte[] encode(Object attributes)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        bos.write(MAGIC_0);
+        bos.write(MAGIC_1);
+        bos.write(VERSION);
+        ObjectOutputStream oos = new Out(bos);
+        oos.writeObject(attributes);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    static Object decode(byte[] header)
+            throws IOException, ClassNotFoundException {
+        if (!isCompact(header) || header[2] != VERSION) {
+            throw new StreamCorruptedException("Not a compact header");
+        }
+        ObjectInputStream ois = new In(new ByteArrayInputStream(header, 3, header.length - 3));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    static void writeVarint(ObjectOutput out, int value)
+            throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(ObjectInput in)
+            throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    static void writeVarlong(ObjectOutput out, long value)
+            throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarlong(ObjectInput in)
+            throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varlong");
+    }
+
+    // Zigzag mapping, so that numbers near zero of either sign are small
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Stands in for a well-known string in the stream.
+     */
+    public static final class StringRef
+            implements Externalizable {
+        private static final long serialVersionUID = 1L;
+        private int id;
+
+        public StringRef() {
+        }
+
+        StringRef(int id) {
+            this.id = id;
+        }
+
+        public void writeExternal(ObjectOutput out)
+                throws IOException {
+            writeVarint(out, id);
+        }
+
+        public void readExternal(ObjectInput in)
+                throws IOException {
+            id = readVarint(in);
+        }
+    }
+
+    /**
+     * Stands in for a HashMap in the stream. Each value is tagged with its
+     * class id: numbers are written inline, anything else as an object.
+     */
+    public static final class MapRef
+            implements Externalizable {
+        private static final long serialVersionUID = 1L;
+        private Map<?, ?> map;
+
+        public MapRef() {
+        }
+
+        MapRef(Map<?, ?> map) {
+            this.map = map;
+        }
+
+        public void writeExternal(ObjectOutput out)
+                throws IOException {
+            writeVarint(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                out.writeObject(entry.getKey());
+                Object value = entry.getValue();
+                if (value instanceof Integer) {
+                    out.writeByte(INTEGER_TAG);
+                    writeVarint(out, zigzag(((Integer) value).intValue()));
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG_TAG);
+                    writeVarlong(out, zigzag(((Long) value).longValue()));
+                } else {
+                    out.writeByte(UNLISTED_CLASS);
+                    out.writeObject(value);
+                }
+            }
+        }
+
+        public void readExternal(ObjectInput in)
+                throws IOException, ClassNotFoundException {
+            int size = readVarint(in);
+            HashMap<Object, Object> entries = new HashMap<Object, Object>(size * 4 / 3 + 1);
+            for (int i = 0; i < size; i++) {
+                Object key = in.readObject();
+                int tag = in.readUnsignedByte();
+                Object value;
+                if (tag == INTEGER_TAG) {
+                    value = Integer.valueOf(unzigzag(readVarint(in)));
+                } else if (tag == LONG_TAG) {
+                    value = Long.valueOf(unzigzag(readVarlong(in)));
+                } else if (tag == UNLISTED_CLASS) {
+                    value = in.readObject();
+                } else {
+                    throw new StreamCorruptedException("Unknown value tag " + tag);
+                }
+                entries.put(key, value);
+            }
+            map = entries;
+        }
+    }
+
+    private static class Out
+            extends ObjectOutputStream {
+        Out(OutputStream out)
+                throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+      protected void writeStreamHeader() {
+            // The format marker takes its place
+        }
+
+        @Override
+      protected void writeClassDescriptor(ObjectStreamClass desc)
+                throws IOException {
+            Integer id = CLASS_IDS.get(desc.forClass());
+            if (id != null) {
+                writeByte(id);
+            } else {
+                writeByte(UNLISTED_CLASS);
+                super.writeClassDescriptor(desc);
+            }
+        }
+
+        @Override
+      protected Object replaceObject(Object object) {
+            if (object instanceof String) {
+                Integer id = STRING_IDS.get(object);
+                if (id != null) {
+                    return new StringRef(id);
+                }
+            } else if (object != null && object.getClass() == HashMap.class) {
+                return new MapRef((HashMap<?, ?>) object);
+            }
+            return object;
+        }
+    }
+
+    private static class In
+            extends ObjectInputStream {
+        In(InputStream in)
+                throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+      protected void readStreamHeader() {
+            // Checked by decode
+        }
+
+        @Override
+      protected ObjectStreamClass readClassDescriptor()
+                throws IOException, ClassNotFoundException {
+            int id = readUnsignedByte();
+            if (id == UNLISTED_CLASS) {
+                return super.readClassDescriptor();
+            }
+            if (id >= CLASSES.length || CLASSES[id] == null) {
+                throw new StreamCorruptedException("Unknown class id " + id);
+            }
+            return ObjectStreamClass.lookup(CLASSES[id]);
+        }
+
+        @Override
+      protected Object resolveObject(Object object)
+                throws IOException {
+            if (object instanceof StringRef) {
+                int id = ((StringRef) object).id;
+                if (id >= STRINGS.length) {
+                    throw new StreamCorruptedException("Unknown string id " + id);
+                }
+                return STRINGS[id];
+            } else if (object instanceof MapRef) {
+                return ((MapRef) object).map;
+            }
+            return object;
+        }
+    }
+}
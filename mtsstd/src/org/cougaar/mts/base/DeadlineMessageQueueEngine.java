@@ -0,0 +1,256 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.cougaar.core.mts.AttributeConstants;
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.util.UnaryPredicate;
+
+/**
+ * A {@link MessageQueueEngine} that hands out messages earliest deadline
+ * first, by {@link AttributeConstants#MESSAGE_SEND_DEADLINE_ATTRIBUTE}.
+ * Messages with the same deadline, or none, come out in the order they were
+ * added.
+ * <p>
+ * Messages numbered by the SequenceAspect are never reordered among
+ * themselves, since the receiver would only hold back the ones that overtook
+ * the others. Instead each originator's numbered messages form a chain that
+ * goes out in order, ranked by the earliest deadline anywhere in it, so an
+ * urgent message brings the messages ahead of it forward.
+ */
+final class DeadlineMessageQueueEngine
+        implements MessageQueueEngine {
+    // Set by org.cougaar.mts.std.SequenceAspect
+    static final String SEQUENCE_ATTRIBUTE = "org.cougaar.message.transport.sequencenumber";
+
+    private static final Comparator<Chain> EARLIEST_FIRST = new Comparator<Chain>() {
+        public int compare(Chain c1, Chain c2) {
+            return compareKeys(c1.deadline(), c1.head().arrival,
+                               c2.deadline(), c2.head().arrival);
+        }
+    };
+
+    // Guarded by this
+    private final TreeSet<Chain> chains = new TreeSet<Chain>(EARLIEST_FIRST);
+    private final Map<MessageAddress, Chain> sequenced = new HashMap<MessageAddress, Chain>();
+    private long arrivals;
+    private int count;
+
+    private static int compareKeys(long deadline1, long arrival1, long deadline2, long arrival2) {
+        if (deadline1 != deadline2) {
+            return deadline1 < deadline2 ? -1 : 1;
+        } else if (arrival1 != arrival2) {
+            return arrival1 < arrival2 ? -1 : 1;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * The message's deadline, or Long.MAX_VALUE if it has none.
+     */
+    static long deadlineOf(AttributedMessage message) {
+        Object attr = message.getAttribute(AttributeConstants.MESSAGE_SEND_DEADLINE_ATTRIBUTE);
+        if (attr instanceof Long && ((Long) attr).longValue() > 0) {
+            return ((Long) attr).longValue();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public synchronized void add(AttributedMessage message) {
+        Entry entry = new Entry(message, deadlineOf(message), arrivals++);
+        ++count;
+        MessageAddress originator = null;
+        if (message.getAttribute(SEQUENCE_ATTRIBUTE) != null && message.getOriginator() != null) {
+            originator = message.getOriginator().getPrimary();
+            Chain chain = sequenced.get(originator);
+            if (chain != null) {
+                // Its rank may change, so take it out while it does
+                chains.remove(chain);
+                chain.add(entry);
+                chains.add(chain);
+                return;
+            }
+        }
+        Chain chain = new Chain(originator);
+        chain.add(entry);
+        chains.add(chain);
+        if (originator != null) {
+            sequenced.put(originator, chain);
+        }
+    }
+
+    public synchronized AttributedMessage next() {
+        Chain chain = chains.pollFirst();
+        if (chain == null) {
+            return null;
+        }
+        Entry entry = chain.removeFirst();
+        --count;
+        if (chain.isEmpty()) {
+            if (chain.originator != null) {
+                sequenced.remove(chain.originator);
+            }
+        } else {
+            chains.add(chain);
+        }
+        return entry.message;
+    }
+
+    public synchronized void removeMatching(UnaryPredicate pred, List<Message> removed) {
+        for (Chain chain : new ArrayList<Chain>(chains)) {
+            List<Entry> kept = new ArrayList<Entry>(chain.entries.size());
+            for (Entry entry : chain.entries) {
+                if (pred.execute(entry.message)) {
+                    removed.add(entry.message);
+                    --count;
+                } else {
+                    kept.add(entry);
+                }
+            }
+            if (kept.size() == chain.entries.size()) {
+                continue;
+            }
+            chains.remove(chain);
+            chain.clear();
+            for (Entry entry : kept) {
+                chain.add(entry);
+            }
+            if (!chain.isEmpty()) {
+                chains.add(chain);
+            } else if (chain.originator != null) {
+                sequenced.remove(chain.originator);
+            }
+        }
+    }
+
+    /**
+     * Add the queued messages to the given list, in the order they'd be
+     * handed out if no more arrived.
+     */
+    public synchronized void snapshot(List<AttributedMessage> into) {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(Math.max(1, chains.size()));
+        for (Chain chain : chains) {
+            cursors.add(new Cursor(chain));
+        }
+        Cursor cursor = cursors.poll();
+        while (cursor != null) {
+            into.add(cursor.entries[cursor.index++].message);
+            if (cursor.index < cursor.entries.length) {
+                cursors.add(cursor);
+            }
+            cursor = cursors.poll();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private static final class Entry {
+        private final AttributedMessage message;
+        private final long deadline;
+        private final long arrival;
+
+        Entry(AttributedMessage message, long deadline, long arrival) {
+            this.message = message;
+            this.deadline = deadline;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * Messages that must go out in order: one originator's numbered messages,
+     * or a single message that isn't numbered.
+     */
+    private static final class Chain {
+        // null if this is a single unnumbered message
+        private final MessageAddress originator;
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        // The entries that are the earliest deadline of everything behind
+        // them, in order, so the first is the earliest of all
+        private final ArrayDeque<Entry> earliest = new ArrayDeque<Entry>();
+
+        Chain(MessageAddress originator) {
+            this.originator = originator;
+        }
+
+        void add(Entry entry) {
+            entries.addLast(entry);
+            while (!earliest.isEmpty() && earliest.peekLast().deadline >= entry.deadline) {
+                earliest.removeLast();
+            }
+            earliest.addLast(entry);
+        }
+
+        Entry removeFirst() {
+            Entry entry = entries.removeFirst();
+            if (earliest.peekFirst() == entry) {
+                earliest.removeFirst();
+            }
+            return entry;
+        }
+
+        void clear() {
+            entries.clear();
+            earliest.clear();
+        }
+
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        Entry head() {
+            return entries.peekFirst();
+        }
+
+        long deadline() {
+            return earliest.peekFirst().deadline;
+        }
+    }
+
+    /**
+     * A copy of a chain being walked for a snapshot.
+     */
+    private static final class Cursor
+            implements Comparable<Cursor> {
+        private final Entry[] entries;
+        // Earliest deadline from each position to the end
+        private final long[] deadlines;
+        private int index;
+
+        Cursor(Chain chain) {
+            entries = chain.entries.toArray(new Entry[chain.entries.size()]);
+            deadlines = new long[entries.length];
+            long earliest = Long.MAX_VALUE;
+            for (int i = entries.length - 1; i >= 0; i--) {
+                earliest = Math.min(earliest, entries[i].deadline);
+                deadlines[i] = earliest;
+            }
+        }
+
+        public int compareTo(Cursor other) {
+            return compareKeys(deadlines[index], entries[index].arrival,
+                               other.deadlines[other.index], other.entries[other.index].arrival);
+        }
+    }
+}
@@ -34,14 +34,47 @@ import org.cougaar.core.mts.MessageAttributes;
  * classes. It implements all methods by delegating to another instance, given
  * in the constructor. Aspect inner classes which extend this need only
  * implement specific methods that are relevant to that aspect,
- * 
+ * <p>
+ * Batches of messages (see {@link BatchDestinationLink#forwardMessages}) and
+ * asynchronous forwarding (see {@link AsyncDestinationLink#forwardMessageAsync})
+ * would bypass any per-message processing in a delegate's
+ * <tt>forwardMessage</tt>. For that reason a delegate class which overrides
+ * <tt>forwardMessage</tt> disables batch forwarding, unless it also overrides
+ * {@link #forwardMessages}, and likewise disables asynchronous forwarding
+ * unless it also overrides {@link #forwardMessageAsync}.
  */
 abstract public class DestinationLinkDelegateImplBase
-        implements DestinationLink {
+        implements BatchDestinationLink, AsyncDestinationLink {
     private final DestinationLink link;
+    private final boolean handlesBatches;
+    private final boolean handlesAsync;
 
     protected DestinationLinkDelegateImplBase(DestinationLink link) {
         this.link = link;
+        Class<?> delegateClass = getClass();
+        this.handlesBatches =
+                handlesLikeForwardMessage(delegateClass, "forwardMessages",
+                                          AttributedMessage[].class);
+        this.handlesAsync =
+                handlesLikeForwardMessage(delegateClass, "forwardMessageAsync",
+                                          AttributedMessage.class, ForwardCallback.class);
+    }
+
+    // True iff the given method is defined at least as far down the class
+    // hierarchy as forwardMessage.
+    private static boolean handlesLikeForwardMessage(Class<?> delegateClass,
+                                                     String method,
+                                                     Class<?>... parameterTypes) {
+        try {
+            Class<?> single =
+                    delegateClass.getMethod("forwardMessage", AttributedMessage.class)
+                                 .getDeclaringClass();
+            Class<?> other = delegateClass.getMethod(method, parameterTypes).getDeclaringClass();
+            return single.isAssignableFrom(other);
+        } catch (NoSuchMethodException e) {
+            // impossible
+            return false;
+        }
     }
 
     public MessageAttributes forwardMessage(AttributedMessage message)
@@ -50,6 +83,28 @@ abstract public class DestinationLinkDelegateImplBase
         return link.forwardMessage(message);
     }
 
+    public boolean supportsBatchForwarding() {
+        return handlesBatches && link instanceof BatchDestinationLink
+                && ((BatchDestinationLink) link).supportsBatchForwarding();
+    }
+
+    public MessageAttributes[] forwardMessages(AttributedMessage[] messages)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException {
+        return ((BatchDestinationLink) link).forwardMessages(messages);
+    }
+
+    public boolean supportsAsyncForwarding() {
+        return handlesAsync && link instanceof AsyncDestinationLink
+                && ((AsyncDestinationLink) link).supportsAsyncForwarding();
+    }
+
+    public void forwardMessageAsync(AttributedMessage message, ForwardCallback callback)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException {
+        ((AsyncDestinationLink) link).forwardMessageAsync(message, callback);
+    }
+
     public boolean isValid(AttributedMessage message) {
         return link.isValid(null);
     }
@@ -58,6 +58,17 @@ import org.cougaar.core.mts.MessageAddress;
  */
 
 public interface DestinationQueue {
+    /**
+     * AgentState attribute: Long count of messages to the agent that left its
+     * queue by their deadline
+     */
+    String DEADLINES_MET_ATTRIBUTE = "DestinationQueueDeadlinesMet";
+    /**
+     * AgentState attribute: Long count of messages to the agent that left its
+     * queue, forwarded or removed, after their deadline
+     */
+    String DEADLINE_MISSES_ATTRIBUTE = "DestinationQueueDeadlineMisses";
+
     /**
      * Adds the message to the queue. Since the queue runs its own thread, this
      * call is typically the last element in the Router thread's call sequence.
@@ -54,6 +54,8 @@ public class DestinationQueueFactory
         implements DestinationQueueProviderService, DestinationQueueMonitorService, ServiceProvider {
     private final Map<MessageAddress,DestinationQueue> queues;
     private final List<DestinationQueueImpl> impls;
+    // Guarded by queues
+    private MessageExpiry expiry;
 
     DestinationQueueFactory(MessageTransportServiceProvider container) {
         super(container);
@@ -76,6 +78,10 @@ public class DestinationQueueFactory
             q = queues.get(dest);
             if (q == null) {
                 qimpl = new DestinationQueueImpl(dest);
+                qimpl.setOwner(this);
+                if (expiry != null) {
+                    qimpl.setExpiry(expiry);
+                }
                 addComponent(qimpl);
                 q = attachAspects(qimpl, DestinationQueue.class);
                 qimpl.setDelegate(q);
@@ -101,6 +107,17 @@ public class DestinationQueueFactory
         notifyListeners(removed);
     }
 
+    public void expireMessages(MessageExpiry expiry) {
+        synchronized (queues) {
+            this.expiry = expiry;
+            synchronized (impls) {
+                for (DestinationQueueImpl impl : impls) {
+                    impl.setExpiry(expiry);
+                }
+            }
+        }
+    }
+
     public MessageAddress[] getDestinations() {
         synchronized (queues) {
             MessageAddress[] ret = new MessageAddress[queues.size()];
@@ -26,13 +26,21 @@
 
 package org.cougaar.mts.base;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
+import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.mts.AgentState;
+import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageAttributes;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.util.PropertyParser;
+import org.cougaar.util.UnaryPredicate;
 
 /**
  * The default, and for now only, implementation of {@link DestinationQueue}.
@@ -41,7 +49,60 @@ import org.cougaar.util.PropertyParser;
  * during the forwarding, it will retry the whole process , including link
  * selection, continuously, gradually increasing the delay between retries.
  * until the message has been successfully forwarded to the
+ * <p>
+ * If the batch size is greater than one and the selected link supports it,
+ * messages queued behind the one being dispatched are forwarded along with it
+ * in a single {@link BatchDestinationLink#forwardMessages} call. Each of them is
+ * dispatched through the aspect delegates like any other message, and joins
+ * the batch only if the {@link LinkSelectionPolicy} picks the same link for
+ * it; the batch ends at the first one it doesn't.
+ * <p>
+ * If the window is greater than one and the selected link supports it,
+ * messages are forwarded with {@link AsyncDestinationLink#forwardMessageAsync}, so
+ * that up to that many messages can be awaiting their replies at once. If one
+ * of them fails, no further messages are dispatched until all outstanding
+ * replies are in; then the failed messages go back on the head of the queue,
+ * in their original order, and are retried with the usual backoff.
+ * <p>
+ * Messages forwarded after a failed one may already have been delivered by
+ * the time it's retried, so the window is only used when the
+ * {@link org.cougaar.mts.std.SequenceAspect} is loaded, and only for messages
+ * that carry its sequence number. The receiving side of that aspect then
+ * holds any message that overtook a failed one until the retry arrives, and
+ * drops duplicates. Without it, messages are forwarded one at a time.
+ * <p>
+ * If a spill limit is set, a queue that's backed up past it keeps the
+ * contents of further messages in a file rather than in memory, as described
+ * in {@link SpillingMessageQueueEngine}, until the backlog clears.
+ * <p>
+ * If the order is <code>edf</code>, the queue hands out messages earliest
+ * deadline first, as described in {@link DeadlineMessageQueueEngine}, instead
+ * of in arrival order. Either way, each message with a deadline is counted in
+ * the destination's {@link org.cougaar.core.mts.AgentState} as met or missed
+ * when it leaves the queue.
  * 
+ * @property org.cougaar.core.mts.destq.batch.size The maximum number of
+ *           messages forwarded in one batch. Default is 1, which disables
+ *           batching.
+ * @property org.cougaar.core.mts.destq.batch.lingerMicros How long to wait
+ *           for more messages to arrive when filling a batch, in
+ *           microseconds. Default is 0.
+ * @property org.cougaar.core.mts.destq.window The maximum number of messages
+ *           which can be forwarded asynchronously without having received
+ *           their replies. Default is 1, which disables asynchronous
+ *           forwarding. Values greater than 1 need the SequenceAspect.
+ * @property org.cougaar.core.mts.destq.spill.messages The number of messages
+ *           a destination queue holds in memory before it starts spilling
+ *           their contents to disk. Default is 0, no limit.
+ * @property org.cougaar.core.mts.destq.spill.bytes The number of bytes of
+ *           message contents a destination queue holds in memory before it
+ *           starts spilling them to disk. Default is 0, no limit.
+ * @property org.cougaar.core.mts.destq.spill.dir The directory for spill
+ *           files. Default is the value of <code>java.io.tmpdir</code>.
+ * @property org.cougaar.core.mts.destq.order The order in which messages
+ *           leave the queue, either <code>fifo</code> or <code>edf</code>
+ *           (earliest deadline first). Default is <code>fifo</code>. Spilling
+ *           is not available with <code>edf</code>.
  **/
 final class DestinationQueueImpl
         extends MessageQueue
@@ -50,10 +111,37 @@ final class DestinationQueueImpl
             PropertyParser.getInt("org.cougaar.core.mts.destq.retry.initialTimeout", 500); 
     private static final int MAX_RETRY_TIMEOUT =
             PropertyParser.getInt("org.cougaar.core.mts.destq.retry.maxTimeout", 60 * 1000); 
+    private static final int BATCH_SIZE =
+            PropertyParser.getInt("org.cougaar.core.mts.destq.batch.size", 1);
+    private static final long BATCH_LINGER_NANOS =
+            PropertyParser.getLong("org.cougaar.core.mts.destq.batch.lingerMicros", 0) * 1000;
+    private static final int WINDOW =
+            PropertyParser.getInt("org.cougaar.core.mts.destq.window", 1);
+    private static final int SPILL_MESSAGES =
+            PropertyParser.getInt("org.cougaar.core.mts.destq.spill.messages", 0);
+    private static final long SPILL_BYTES =
+            PropertyParser.getLong("org.cougaar.core.mts.destq.spill.bytes", 0);
+    private static final String SPILL_DIRECTORY =
+            SystemProperties.getProperty("org.cougaar.core.mts.destq.spill.dir",
+                                         SystemProperties.getProperty("java.io.tmpdir"));
+    static final String ORDER_PROPERTY = "org.cougaar.core.mts.destq.order";
+    static final String FIFO_ORDER = "fifo";
+    static final String EDF_ORDER = "edf";
+    private static final String ORDER = SystemProperties.getProperty(ORDER_PROPERTY, FIFO_ORDER);
+    private static final String SEQUENCE_ASPECT = "org.cougaar.mts.std.SequenceAspect";
+    private static boolean warnedUnsequencedWindow = false;
+    // Marks a message which has already been dispatched once and is back on
+    // the queue, so that it's dispatched as a retry
+    private static final String REDISPATCH_ATTRIBUTE = "DestinationQueueRedispatch";
     private final MessageAddress destination;
     private LinkSelectionPolicy selectionPolicy;
     private DestinationQueue delegate;
     private List<DestinationLink> destinationLinks;
+    private int window = 1;
+    // Set while followers are being dispatched into a batch
+    private DestinationLink batchLink;
+    private List<AttributedMessage> batchMembers;
+    private AttributedMessage batchRejected;
 
     DestinationQueueImpl(MessageAddress destination) {
         super(destination.toString() + "/DestQ");
@@ -92,6 +180,47 @@ final class DestinationQueueImpl
         // cache DestinationLinks, per transport
         destinationLinks = getRegistry().getDestinationLinks(destination);
 
+        if (!FIFO_ORDER.equals(ORDER) && !EDF_ORDER.equals(ORDER)
+                && loggingService.isWarnEnabled()) {
+            loggingService.warn("Unknown value " + ORDER + " for " + ORDER_PROPERTY
+                    + ", using " + FIFO_ORDER);
+        }
+        if (EDF_ORDER.equals(ORDER) && (SPILL_MESSAGES > 0 || SPILL_BYTES > 0)
+                && loggingService.isWarnEnabled()) {
+            loggingService.warn("Destination queues can't spill in " + EDF_ORDER
+                    + " order, ignoring the spill limits");
+        }
+        if (WINDOW > 1) {
+            if (getAspectSupport().findAspect(SEQUENCE_ASPECT) != null) {
+                window = WINDOW;
+            } else {
+                warnUnsequencedWindow();
+            }
+        }
+    }
+
+    private void warnUnsequencedWindow() {
+        synchronized (DestinationQueueImpl.class) {
+            if (warnedUnsequencedWindow) {
+                return;
+            }
+            warnedUnsequencedWindow = true;
+        }
+        if (loggingService.isWarnEnabled()) {
+            loggingService.warn("A window of " + WINDOW + " needs " + SEQUENCE_ASPECT
+                    + " to keep messages in order, forwarding one at a time");
+        }
+    }
+
+    @Override
+   MessageQueueEngine makeEngine() {
+        if (EDF_ORDER.equals(ORDER)) {
+            return new DeadlineMessageQueueEngine();
+        } else if (SPILL_MESSAGES > 0 || SPILL_BYTES > 0) {
+            return new SpillingMessageQueueEngine(this, SPILL_MESSAGES, SPILL_BYTES,
+                                                  new File(SPILL_DIRECTORY));
+        }
+        return super.makeEngine();
     }
 
     @Override
@@ -114,6 +243,53 @@ final class DestinationQueueImpl
         return destination.equals(address);
     }
 
+    @Override
+   public void removeMessages(UnaryPredicate pred, List<Message> removed) {
+        int start = removed.size();
+        try {
+            super.removeMessages(pred, removed);
+        } finally {
+            for (Message msg : removed.subList(start, removed.size())) {
+                countDeadline((AttributedMessage) msg, false);
+            }
+        }
+    }
+
+    @Override
+   void expired(AttributedMessage message, long deadline) {
+        super.expired(message, deadline);
+        countDeadline(message, false);
+    }
+
+    @Override
+   boolean lost(AttributedMessage message) {
+        if (!super.lost(message)) {
+            return false;
+        }
+        countDeadline(message, false);
+        return true;
+    }
+
+    /**
+     * The message has left the queue. If it had a deadline, count it in the
+     * destination's AgentState as met if it was forwarded in time, or missed
+     * if the deadline had passed. Removing a message early counts as neither.
+     */
+    private void countDeadline(AttributedMessage message, boolean forwarded) {
+        long deadline = DeadlineMessageQueueEngine.deadlineOf(message);
+        boolean missed = System.currentTimeMillis() > deadline;
+        if (deadline == Long.MAX_VALUE || !(forwarded || missed)) {
+            return;
+        }
+        String key = missed ? DEADLINE_MISSES_ATTRIBUTE : DEADLINES_MET_ATTRIBUTE;
+        AgentState state = getRegistry().getAgentState(destination);
+        synchronized (state) {
+            Object count = state.getAttribute(key);
+            long previous = count instanceof Long ? ((Long) count).longValue() : 0;
+            state.setAttribute(key, previous + 1);
+        }
+    }
+
     void setDelegate(DestinationQueue delegate) {
         this.delegate = delegate;
     }
@@ -132,6 +308,13 @@ final class DestinationQueueImpl
         previous = null;
     }
 
+    // Messages forwarded asynchronously, in the order they were sent, which
+    // are still waiting for their replies or which have failed. Entries that
+    // succeed are removed straight away.
+    private final LinkedList<InFlight> inFlight = new LinkedList<InFlight>();
+    // Guarded by inFlight
+    private boolean anyForwarded = false;
+
     @Override
    /**
      * Processes the next dequeued message.
@@ -140,15 +323,31 @@ final class DestinationQueueImpl
         if (message == null) {
             return true;
         }
-        if (retryCount == 0) {
+        Redispatch redispatch = takeRedispatch(message);
+        if (redispatch != null && retryCount == 0) {
+            retryCount = redispatch.retryCount;
+            previous = redispatch.previous;
+            lastException = redispatch.failure;
+        }
+        if (retryCount == 0 && redispatch == null) {
             delegate.dispatchNextMessage(message);
         } else {
+            // Aspects have already seen this one
             dispatchNextMessage(message);
         }
-        return retryCount == 0;
+        if (retryCount == 0) {
+            // Out of the queues, stop counting it against the sender
+            SendAdmission.release(message);
+            return true;
+        }
+        return false;
     }
 
     public void dispatchNextMessage(AttributedMessage message) {
+        if (batchLink != null) {
+            joinBatch(message);
+            return;
+        }
         if (retryCount == 0) {
             message.snapshotAttributes();
             previous = message;
@@ -173,7 +372,21 @@ final class DestinationQueueImpl
                 }
                 try {
                     link.addMessageAttributes(message);
-                    link.forwardMessage(message);
+                    if (window > 1 && isSequenced(message) && link instanceof AsyncDestinationLink
+                            && ((AsyncDestinationLink) link).supportsAsyncForwarding()) {
+                        forwardAsync((AsyncDestinationLink) link, message);
+                        // Keep the backoff until a reply arrives
+                        int timeout = retryTimeout;
+                        resetState();
+                        retryTimeout = timeout;
+                        return;
+                    } else if (BATCH_SIZE > 1 && link instanceof BatchDestinationLink
+                            && ((BatchDestinationLink) link).supportsBatchForwarding()) {
+                        forwardBatch((BatchDestinationLink) link, message);
+                    } else {
+                        link.forwardMessage(message);
+                    }
+                    countDeadline(message, true);
                     resetState();
                     return;
                 } catch (UnregisteredNameException no_name) {
@@ -227,6 +440,294 @@ final class DestinationQueueImpl
         retryTimeout = Math.min(retryTimeout + retryTimeout, MAX_RETRY_TIMEOUT);
     }
 
+    /**
+     * A follower is back from the aspect delegates. It joins the batch if
+     * the link is still the one the selection policy would pick for it.
+     */
+    private void joinBatch(AttributedMessage follower) {
+        follower.snapshotAttributes();
+        if (batchLink.isValid(follower)) {
+            Iterator<DestinationLink> links = new LinkIterator(follower);
+            if (selectionPolicy.selectLink(links, follower, follower, 0, null) == batchLink) {
+                batchLink.addMessageAttributes(follower);
+                batchMembers.add(follower);
+                return;
+            }
+        }
+        batchRejected = follower;
+    }
+
+    /**
+     * A follower that went through the aspect delegates wasn't forwarded with
+     * its batch. Put it back as it was, to be dispatched later without going
+     * through the aspects again.
+     */
+    private void markRedispatch(AttributedMessage follower) {
+        follower.restoreSnapshot();
+        follower.setLocalAttribute(REDISPATCH_ATTRIBUTE, new Redispatch(0, null, null));
+    }
+
+    // Only the SequenceAspect can put right a message that overtakes one
+    // which failed in the window
+    private static boolean isSequenced(AttributedMessage message) {
+        return message.getAttribute(DeadlineMessageQueueEngine.SEQUENCE_ATTRIBUTE) != null;
+    }
+
+    /**
+     * Forward the given message together with the messages queued behind it,
+     * up to the batch size, in one call to the link. Messages the link didn't
+     * forward stay at the head of the queue. Returns normally iff the given
+     * message itself was forwarded.
+     */
+    private void forwardBatch(BatchDestinationLink link, AttributedMessage message)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException {
+        List<AttributedMessage> batch = new ArrayList<AttributedMessage>(BATCH_SIZE);
+        batch.add(message);
+        // Followers an aspect chose not to pass on
+        List<AttributedMessage> dropped = new ArrayList<AttributedMessage>();
+        batchLink = link;
+        batchMembers = batch;
+        try {
+            for (AttributedMessage follower : takeBatch(BATCH_SIZE - 1, BATCH_LINGER_NANOS)) {
+                Redispatch redispatch = (Redispatch) follower.getAttribute(REDISPATCH_ATTRIBUTE);
+                int size = batch.size();
+                if (redispatch == null) {
+                    delegate.dispatchNextMessage(follower);
+                } else if (redispatch.retryCount == 0) {
+                    // Left over from an earlier batch, aspects have seen it
+                    follower.removeLocalAttribute(REDISPATCH_ATTRIBUTE);
+                    joinBatch(follower);
+                } else {
+                    // Being retried, so it goes on its own
+                    break;
+                }
+                if (batchRejected != null) {
+                    // Preserve ordering: stop at the first one that can't go
+                    markRedispatch(batchRejected);
+                    break;
+                } else if (batch.size() == size) {
+                    dropped.add(follower);
+                }
+            }
+        } finally {
+            batchLink = null;
+            batchMembers = null;
+            batchRejected = null;
+        }
+        if (!dropped.isEmpty()) {
+            batchDispatched(dropped);
+            for (AttributedMessage follower : dropped) {
+                SendAdmission.release(follower);
+            }
+        }
+        if (batch.size() == 1) {
+            link.forwardMessage(message);
+            return;
+        }
+
+        AttributedMessage[] messages = batch.toArray(new AttributedMessage[batch.size()]);
+        int forwarded = 0;
+        try {
+            MessageAttributes[] replies = link.forwardMessages(messages);
+            forwarded = replies == null ? 0 : Math.min(replies.length, messages.length);
+        } finally {
+            for (int i = Math.max(forwarded, 1); i < messages.length; i++) {
+                markRedispatch(messages[i]);
+            }
+        }
+        if (forwarded == 0) {
+            throw new CommFailureException(new Exception("No replies to batch of "
+                    + messages.length + " messages"));
+        }
+        batchDispatched(batch.subList(1, forwarded));
+        for (AttributedMessage follower : batch.subList(1, forwarded)) {
+            SendAdmission.release(follower);
+            countDeadline(follower, true);
+        }
+        if (loggingService.isDebugEnabled()) {
+            loggingService.debug("Forwarded " + forwarded + " of " + messages.length
+                    + " batched messages to " + destination);
+        }
+    }
+
+    private void forwardAsync(AsyncDestinationLink link, AttributedMessage message)
+            throws UnregisteredNameException, NameLookupException, CommFailureException,
+            MisdeliveredMessageException {
+        InFlight entry = new InFlight(message, link, retryCount);
+        synchronized (inFlight) {
+            inFlight.add(entry);
+        }
+        boolean started = false;
+        try {
+            link.forwardMessageAsync(message, entry);
+            started = true;
+        } finally {
+            if (!started) {
+                synchronized (inFlight) {
+                    inFlight.remove(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the window has room for another message. If any outstanding
+     * message has failed, wait for all the replies instead, and put the failed
+     * messages back on the queue to be retried.
+     */
+    @Override
+   boolean readyForNext() {
+        if (window <= 1) {
+            return true;
+        }
+        List<InFlight> failed = null;
+        synchronized (inFlight) {
+            while (true) {
+                int pending = 0;
+                boolean anyFailed = false;
+                for (InFlight entry : inFlight) {
+                    if (entry.done) {
+                        anyFailed = true;
+                    } else {
+                        ++pending;
+                    }
+                }
+                if (anyForwarded) {
+                    anyForwarded = false;
+                    retryTimeout = INITIAL_RETRY_TIMEOUT;
+                }
+                if (anyFailed ? pending == 0 : pending < window) {
+                    if (anyFailed) {
+                        failed = new ArrayList<InFlight>(inFlight);
+                        inFlight.clear();
+                    }
+                    break;
+                }
+                try {
+                    inFlight.wait();
+                } catch (InterruptedException e) {
+                    return true;
+                }
+            }
+        }
+        return failed == null || !retryInFlight(failed);
+    }
+
+    /**
+     * Requeue failed messages, in order, and schedule the first retry. Each
+     * one is marked so that it's dispatched as a retry of its own failure.
+     * 
+     * @return true if any messages were requeued
+     */
+    private boolean retryInFlight(List<InFlight> failed) {
+        List<AttributedMessage> retries = new ArrayList<AttributedMessage>(failed.size());
+        for (InFlight entry : failed) {
+            AttributedMessage message = entry.message;
+            if (entry.link.retryFailedMessage(message, entry.retryCount)) {
+                Redispatch redispatch = new Redispatch(entry.retryCount + 1,
+                                                       new AttributedMessage(message),
+                                                       entry.failure);
+                message.restoreSnapshot();
+                message.setLocalAttribute(REDISPATCH_ATTRIBUTE, redispatch);
+                retries.add(message);
+            } else {
+                message.restoreSnapshot();
+            }
+        }
+        if (retries.isEmpty()) {
+            return false;
+        }
+        requeue(retries);
+        scheduleRestart(retryTimeout);
+        retryTimeout = Math.min(retryTimeout + retryTimeout, MAX_RETRY_TIMEOUT);
+        return true;
+    }
+
+    private static Redispatch takeRedispatch(AttributedMessage message) {
+        Object redispatch = message.getAttribute(REDISPATCH_ATTRIBUTE);
+        if (redispatch == null) {
+            return null;
+        }
+        message.removeLocalAttribute(REDISPATCH_ATTRIBUTE);
+        return (Redispatch) redispatch;
+    }
+
+    /**
+     * The retry state of a message that's back on the queue.
+     */
+    private static final class Redispatch {
+        private final int retryCount;
+        private final AttributedMessage previous;
+        private final Exception failure;
+
+        Redispatch(int retryCount, AttributedMessage previous, Exception failure) {
+            this.retryCount = retryCount;
+            this.previous = previous;
+            this.failure = failure;
+        }
+    }
+
+    private void logAsyncFailure(AttributedMessage message, Exception failure) {
+        if (failure instanceof CommFailureException) {
+            if (loggingService.isWarnEnabled()) {
+                loggingService.warn("Failure in communication, message " + message
+                        + " caused by \n" + failure.getCause());
+            }
+        } else if (failure instanceof NameLookupException) {
+            if (loggingService.isErrorEnabled()) {
+                loggingService.error(null, failure);
+            }
+        } else if (loggingService.isDebugEnabled()) {
+            loggingService.debug(failure.toString());
+        }
+    }
+
+    /**
+     * A message forwarded asynchronously, and the callback for its outcome.
+     */
+    private class InFlight
+            implements ForwardCallback {
+        private final AttributedMessage message;
+        private final DestinationLink link;
+        private final int retryCount;
+        // The remaining fields are guarded by inFlight
+        private boolean done;
+        private Exception failure;
+
+        InFlight(AttributedMessage message, DestinationLink link, int retryCount) {
+            this.message = message;
+            this.link = link;
+            this.retryCount = retryCount;
+        }
+
+        public void forwarded(AttributedMessage message, MessageAttributes reply) {
+            countDeadline(message, true);
+            synchronized (inFlight) {
+                inFlight.remove(this);
+                anyForwarded = true;
+                inFlight.notifyAll();
+            }
+        }
+
+        public void failed(AttributedMessage message, Exception cause) {
+            logAsyncFailure(message, cause);
+            if (cause instanceof CommFailureException
+                    && cause.getCause() instanceof DontRetryException) {
+                // Act as if the message has gone through.
+                forwarded(message, null);
+                return;
+            }
+            synchronized (inFlight) {
+                done = true;
+                failure = cause;
+                inFlight.notifyAll();
+            }
+            // The queue thread may be idle
+            restart();
+        }
+    }
+
     private class LinkIterator
             implements Iterator<DestinationLink> {
         int position;
@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.util.UnaryPredicate;
+
+/**
+ * A {@link MessageQueueEngine} that keeps a separate queue per originating
+ * agent and takes from them in turn, so that an agent with many messages
+ * waiting doesn't hold up the others. Each agent's messages stay in order.
+ * <p>
+ * With a quantum of zero, each agent with waiting messages gets one message
+ * per round. Otherwise the rounds are deficit round robin: each turn adds the
+ * quantum to the agent's credit, and the agent's messages are taken as long as
+ * their serialized size fits in the credit, so agents share by bytes rather
+ * than by messages. Sizes are measured on the consumer's thread, or taken from
+ * {@link SendAdmission} if it measured them already.
+ */
+final class FairMessageQueueEngine
+        implements MessageQueueEngine {
+    private final long quantum;
+
+    // Guarded by this
+    private final Map<MessageAddress, Flow> flows = new HashMap<MessageAddress, Flow>();
+    // Agents with waiting messages, the one whose turn it is first
+    private final LinkedList<Flow> active = new LinkedList<Flow>();
+    private int count;
+
+    FairMessageQueueEngine(long quantum) {
+        this.quantum = quantum;
+    }
+
+    private static MessageAddress originatorOf(AttributedMessage message) {
+        MessageAddress originator = message.getOriginator();
+        return originator == null ? null : originator.getPrimary();
+    }
+
+    public synchronized void add(AttributedMessage message) {
+        MessageAddress originator = originatorOf(message);
+        Flow flow = flows.get(originator);
+        if (flow == null) {
+            flow = new Flow(originator);
+            flows.put(originator, flow);
+            active.addLast(flow);
+        }
+        flow.messages.addLast(message);
+        ++count;
+    }
+
+    public AttributedMessage next() {
+        while (true) {
+            AttributedMessage head;
+            synchronized (this) {
+                Flow flow = active.peekFirst();
+                if (flow == null) {
+                    return null;
+                }
+                if (quantum <= 0) {
+                    AttributedMessage message = take(flow);
+                    if (!flow.messages.isEmpty()) {
+                        active.addLast(active.removeFirst());
+                    }
+                    return message;
+                }
+                head = flow.messages.getFirst();
+                if (flow.costed == head) {
+                    if (flow.fresh) {
+                        flow.fresh = false;
+                        flow.deficit += quantum;
+                    }
+                    if (flow.cost <= flow.deficit) {
+                        flow.deficit -= flow.cost;
+                        return take(flow);
+                    }
+                    // Not enough credit this turn, keep it for the next one
+                    flow.fresh = true;
+                    active.addLast(active.removeFirst());
+                    continue;
+                }
+            }
+            // Measure outside the lock, senders may be waiting on it
+            long cost = SendAdmission.sizeOf(head);
+            synchronized (this) {
+                Flow flow = flows.get(originatorOf(head));
+                if (flow != null && !flow.messages.isEmpty() && flow.messages.getFirst() == head) {
+                    flow.costed = head;
+                    flow.cost = cost;
+                }
+            }
+        }
+    }
+
+    // Caller holds the lock and flow is first in the active list
+    private AttributedMessage take(Flow flow) {
+        AttributedMessage message = flow.messages.removeFirst();
+        --count;
+        if (flow.messages.isEmpty()) {
+            active.removeFirst();
+            flows.remove(flow.originator);
+        }
+        return message;
+    }
+
+    public synchronized void removeMatching(UnaryPredicate pred, List<Message> removed) {
+        Iterator<Flow> flowItr = active.iterator();
+        while (flowItr.hasNext()) {
+            Flow flow = flowItr.next();
+            Iterator<AttributedMessage> itr = flow.messages.iterator();
+            while (itr.hasNext()) {
+                AttributedMessage msg = itr.next();
+                if (pred.execute(msg)) {
+                    removed.add(msg);
+                    itr.remove();
+                    --count;
+                }
+            }
+            if (flow.messages.isEmpty()) {
+                flowItr.remove();
+                flows.remove(flow.originator);
+            }
+        }
+    }
+
+    /**
+     * Add the queued messages to the given list, one agent's at a time in the
+     * order the agents will next be served.
+     */
+    public synchronized void snapshot(List<AttributedMessage> into) {
+        for (Flow flow : active) {
+            into.addAll(flow.messages);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * One agent's waiting messages and its credit.
+     */
+    private static final class Flow {
+        private final MessageAddress originator;
+        private final LinkedList<AttributedMessage> messages = new LinkedList<AttributedMessage>();
+        private long deficit;
+        // Whether the credit for the current turn is still to be added
+        private boolean fresh = true;
+        // The head message whose size has been measured, and that size
+        private AttributedMessage costed;
+        private long cost;
+
+        Flow(MessageAddress originator) {
+            this.originator = originator;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import org.cougaar.core.mts.MessageAttributes;
+
+/**
+ * Receives the outcome of a message forwarded with
+ * {@link AsyncDestinationLink#forwardMessageAsync}. Exactly one of the two methods
+ * is called for each message, possibly in a thread belonging to the link
+ * protocol, so implementations should return quickly.
+ */
+public interface ForwardCallback {
+
+    /**
+     * The message was forwarded; the reply is what
+     * {@link DestinationLink#forwardMessage} would have returned.
+     */
+    void forwarded(AttributedMessage message, MessageAttributes reply);
+
+    /**
+     * Forwarding failed. The cause is one of the exceptions
+     * {@link DestinationLink#forwardMessage} can throw.
+     */
+    void failed(AttributedMessage message, Exception cause);
+}
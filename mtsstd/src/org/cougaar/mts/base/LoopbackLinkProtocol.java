@@ -77,7 +77,7 @@ public class LoopbackLinkProtocol
     }
 
     private class Link
-            implements DestinationLink {
+            implements BatchDestinationLink {
         MessageAddress address;
 
         Link(MessageAddress address) {
@@ -102,6 +102,32 @@ public class LoopbackLinkProtocol
             return getDeliverer().deliverMessage(message, message.getTarget());
         }
 
+        public boolean supportsBatchForwarding() {
+            return true;
+        }
+
+        /**
+         * Deliver each message in turn, stopping at the first one that can't
+         * be delivered.
+         */
+        public MessageAttributes[] forwardMessages(AttributedMessage[] messages)
+                throws MisdeliveredMessageException {
+            MessageAttributes[] replies = new MessageAttributes[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                try {
+                    replies[i] = forwardMessage(messages[i]);
+                } catch (MisdeliveredMessageException e) {
+                    if (i == 0) {
+                        throw e;
+                    }
+                    MessageAttributes[] delivered = new MessageAttributes[i];
+                    System.arraycopy(replies, 0, delivered, 0, i);
+                    return delivered;
+                }
+            }
+            return replies;
+        }
+
         public boolean retryFailedMessage(AttributedMessage message, int retryCount) {
             return true;
         }
@@ -58,14 +58,18 @@ public class MessageDelivererImpl
         if (message == null) {
             return null;
         }
-        synchronized (registry) {
-            // This is locked to prevent the receiver from
-            // unregistering between the lookup and the delivery.
-            // The corresponding unregister lock is on a private
-            // method in MesageTransportRegistry, removeLocalClient.
-            ReceiveLink link = registry.findLocalReceiveLink(addr);
-            if (link != null) {
-                return link.deliverMessage(message);
+        // The lookup doesn't lock. Delivery locks only the agent's own
+        // ReceiveLink: agents and ReceiveLink aspects expect one message at a
+        // time, but messages to different agents are delivered in parallel.
+        // The receiver may unregister between the lookup and the lock, so
+        // check again under the lock that the link is still the registered
+        // one. Unregistering takes the same lock after dropping the link.
+        ReceiveLink link = registry.findLocalReceiveLink(addr);
+        if (link != null) {
+            synchronized (link) {
+                if (registry.findLocalReceiveLink(addr) == link) {
+                    return link.deliverMessage(message);
+                }
             }
         }
         throw new MisdeliveredMessageException(message);
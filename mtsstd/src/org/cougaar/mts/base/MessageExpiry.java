@@ -0,0 +1,151 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+
+package org.cougaar.mts.base;
+
+import org.cougaar.core.mts.AttributeConstants;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+
+/**
+ * An index of the deadlines of queued messages, by which the queues drop each
+ * message as soon as its
+ * {@link AttributeConstants#MESSAGE_SEND_DEADLINE_ATTRIBUTE} has passed. A
+ * queue adds a message to the index when the message is queued and takes it
+ * out again when the message leaves, and the deadlines are kept in a
+ * {@link TimerWheel}, so the cost is per message that comes and goes or
+ * expires rather than per message waiting in the queues.
+ * <p>
+ * An expired message is reported straight away, to the queue's listeners, but
+ * it's only marked as such in its queue. The queue skips it when it comes to
+ * it, and clears out the expired messages in one pass once they make up most
+ * of the queue.
+ * 
+ * @see QueueProviderService#expireMessages
+ */
+public final class MessageExpiry {
+    private static final String ENTRY_ATTRIBUTE = "MessageExpiryEntry";
+
+    private final TimerWheel wheel;
+    private final Schedulable ticker;
+
+    /**
+     * @param consumer the owner of the expiry thread
+     * @param tickMillis how often to look for expired messages
+     * @param wheelSize the number of ticks the wheel holds before deadlines
+     *        wrap around
+     */
+    public MessageExpiry(ThreadService threadService,
+                         Object consumer,
+                         long tickMillis,
+                         int wheelSize) {
+        wheel = new TimerWheel(tickMillis, wheelSize);
+        ticker = threadService.getThread(consumer, new Runnable() {
+            public void run() {
+                wheel.advance(System.currentTimeMillis());
+            }
+        }, "Message Expiry");
+        ticker.schedule(tickMillis, tickMillis);
+    }
+
+    /**
+     * Stop expiring messages. Messages already in the index stay queued
+     * until they're dispatched or removed some other way.
+     */
+    public void stop() {
+        ticker.cancelTimer();
+    }
+
+    /**
+     * The number of queued messages waiting for their deadlines.
+     */
+    public int size() {
+        return wheel.size();
+    }
+
+    /**
+     * Index the message, which is being added to the given queue, if it has a
+     * deadline.
+     */
+    void track(MessageQueue queue, AttributedMessage message) {
+        long deadline = DeadlineMessageQueueEngine.deadlineOf(message);
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        Entry entry = new Entry(queue, message, deadline);
+        message.setLocalAttribute(ENTRY_ATTRIBUTE, entry);
+        // A message is timed out once its deadline is in the past
+        entry.timeout = wheel.schedule(entry, deadline + 1);
+    }
+
+    /**
+     * The message is leaving its queue, other than by expiring.
+     * 
+     * @return false if it has already expired, in which case it's already
+     *         been reported and should be dropped
+     */
+    static boolean take(AttributedMessage message) {
+        Object attr = message.getAttribute(ENTRY_ATTRIBUTE);
+        if (!(attr instanceof Entry)) {
+            return true;
+        }
+        Entry entry = (Entry) attr;
+        synchronized (entry) {
+            if (entry.expired) {
+                return false;
+            }
+            entry.taken = true;
+        }
+        entry.timeout.cancel();
+        message.removeLocalAttribute(ENTRY_ATTRIBUTE);
+        return true;
+    }
+
+    /**
+     * Whether the message has expired, but is still in its queue.
+     */
+    static boolean isExpired(Object message) {
+        Object attr = ((AttributedMessage) message).getAttribute(ENTRY_ATTRIBUTE);
+        if (!(attr instanceof Entry)) {
+            return false;
+        }
+        Entry entry = (Entry) attr;
+        synchronized (entry) {
+            return entry.expired;
+        }
+    }
+
+    /**
+     * A queued message's deadline. It runs when the deadline has passed.
+     */
+    private static final class Entry
+            implements Runnable {
+        private final MessageQueue queue;
+        private final AttributedMessage message;
+        private final long deadline;
+        private volatile TimerWheel.Timeout timeout;
+        // Guarded by this
+        private boolean taken;
+        private boolean expired;
+
+        Entry(MessageQueue queue, AttributedMessage message, long deadline) {
+            this.queue = queue;
+            this.message = message;
+            this.deadline = deadline;
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (taken) {
+                    return;
+                }
+                expired = true;
+            }
+            queue.expired(message, deadline);
+        }
+    }
+}
@@ -26,49 +26,82 @@
 
 package org.cougaar.mts.base;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import org.cougaar.bootstrap.SystemProperties;
+import org.cougaar.core.mts.AttributeConstants;
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.service.ThreadService;
 import org.cougaar.core.thread.Schedulable;
 import org.cougaar.util.UnaryPredicate;
 
 /**
- * An abstract class which manages a circular queue of messages, and runs its
- * own thread to pop messages off that queue. The method
- * <strong>dispatch</strong>, provided by instantiable subclasses, is invoked on
- * each message as it's popped off.
+ * An abstract class which manages a queue of messages, and runs its own thread
+ * to pop messages off that queue. The method <strong>dispatch</strong>,
+ * provided by instantiable subclasses, is invoked on each message as it's
+ * popped off.
+ * <p>
+ * The queue storage itself is a {@link MessageQueueEngine}, chosen by the
+ * property <code>org.cougaar.core.mts.queue.engine</code>.
+ * <p>
+ * If the queue has been given a {@link MessageExpiry}, messages whose
+ * deadlines pass while they're queued are dropped and reported to the queue's
+ * factory.
+ * 
+ * @property org.cougaar.core.mts.queue.engine Which queue engine to use,
+ *           either <code>synchronized</code> or <code>mpsc</code> (lock-free
+ *           multi-producer, single-consumer). Default is
+ *           <code>synchronized</code>.
  */
 abstract class MessageQueue
         extends BoundComponent
         implements Runnable {
 
-    // Simplified queue
-    private static class SimpleQueue<T>
-            extends LinkedList<T> {
-        /**
-       * 
-       */
-      private static final long serialVersionUID = 1L;
-
-      T next() {
-            return removeFirst();
-        }
-    }
+    static final String ENGINE_PROPERTY = "org.cougaar.core.mts.queue.engine";
+    static final String SYNCHRONIZED_ENGINE = "synchronized";
+    static final String MPSC_ENGINE = "mpsc";
+    private static final String ENGINE =
+            SystemProperties.getProperty(ENGINE_PROPERTY, SYNCHRONIZED_ENGINE);
 
-    private final SimpleQueue<AttributedMessage> queue;
+    private final MessageQueueEngine queue;
     private Schedulable thread;
     private final String name;
-    private AttributedMessage in_progress;
+    private volatile AttributedMessage in_progress;
+    // Messages taken off the queue by takeBatch, to be dispatched along with
+    // in_progress. They precede everything still in the queue. Only the
+    // queue's own thread adds or takes messages, removeMessages filters it
+    // while holding in_progress_lock.
+    private final LinkedList<AttributedMessage> in_progress_batch;
     private final Object in_progress_lock, queue_processing;
+    private volatile QueueFactory owner;
+    private volatile MessageExpiry expiry;
+    // Messages that expired but are still in the queue
+    private final AtomicInteger expiredCount = new AtomicInteger();
 
     MessageQueue(String name) {
         this.name = name;
         in_progress_lock = new Object();
         queue_processing = new Object();
-        queue = new SimpleQueue<AttributedMessage>();
+        in_progress_batch = new LinkedList<AttributedMessage>();
+        queue = makeEngine();
+    }
+
+    /**
+     * Make the storage for this queue. The default is to use the engine
+     * specified by the property <code>org.cougaar.core.mts.queue.engine</code>.
+     */
+    MessageQueueEngine makeEngine() {
+        if (MPSC_ENGINE.equals(ENGINE)) {
+            return new MpscMessageQueueEngine();
+        } else {
+            return new SynchronizedMessageQueueEngine();
+        }
     }
 
     int getLane() {
@@ -79,13 +112,105 @@ abstract class MessageQueue
    public void load() {
         super.load();
         thread = threadService.getThread(this, this, name, getLane());
+        if (!MPSC_ENGINE.equals(ENGINE) && !SYNCHRONIZED_ENGINE.equals(ENGINE)
+                && loggingService.isWarnEnabled()) {
+            loggingService.warn("Unknown value " + ENGINE + " for " + ENGINE_PROPERTY
+                    + ", using " + SYNCHRONIZED_ENGINE);
+        }
     }
 
     String getName() {
         return name;
     }
 
+    /**
+     * Set the factory whose listeners are told about messages this queue
+     * drops by itself.
+     */
+    void setOwner(QueueFactory owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Drop messages from now on as their deadlines pass, reporting them to the
+     * owner's listeners.
+     */
+    void setExpiry(MessageExpiry expiry) {
+        this.expiry = expiry;
+    }
+
+    // Expired messages are only cleared out in a pass over the queue once
+    // there are at least this many, and they're at least half of it.
+    private static final int MIN_EXPIRED_TO_CLEAR = 64;
+
+    private static final UnaryPredicate NO_MESSAGES = new UnaryPredicate() {
+        private static final long serialVersionUID = 1L;
+
+        public boolean execute(Object x) {
+            return false;
+        }
+    };
+
+    /**
+     * Called by the engine, without holding its lock, when it had to drop a
+     * queued message, for instance because its contents were spilled and
+     * couldn't be read back. The message fails as if it had been removed: it
+     * no longer counts against its sender or waits for its deadline, and the
+     * owner's listeners are told, with the message's
+     * {@link AttributeConstants#DELIVERY_ATTRIBUTE} set to dropped.
+     * 
+     * @return false if the message had already expired, and was reported then
+     */
+    boolean lost(AttributedMessage message) {
+        if (expiry != null && !MessageExpiry.take(message)) {
+            expiredCount.decrementAndGet();
+            return false;
+        }
+        SendAdmission.release(message);
+        message.setLocalAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
+                                  AttributeConstants.DELIVERY_STATUS_DROPPED);
+        notifyOwner(message);
+        return true;
+    }
+
+    private void notifyOwner(AttributedMessage message) {
+        QueueFactory factory = owner;
+        if (factory != null) {
+            factory.notifyListeners(Collections.<Message>singletonList(message));
+        }
+    }
+
+    /**
+     * Called by the MessageExpiry, in its own thread, when a queued message
+     * has passed its deadline.
+     */
+    void expired(AttributedMessage message, long deadline) {
+        SendAdmission.release(message);
+        if (loggingService.isWarnEnabled()) {
+            loggingService.warn(name + " threw away a message=" + message.logString()
+                    + " Beyond deadline=" + (System.currentTimeMillis() - deadline) + " ms");
+        }
+        notifyOwner(message);
+        int count = expiredCount.incrementAndGet();
+        if (count >= MIN_EXPIRED_TO_CLEAR && 2 * count >= queue.size()) {
+            // Removing nothing still clears out expired messages, and since
+            // at least half of what's looked at goes, the pass pays for itself
+            removeMatching(NO_MESSAGES, new ArrayList<Message>());
+        }
+    }
+
     public void removeMessages(UnaryPredicate pred, List<Message> removed) {
+        int start = removed.size();
+        try {
+            removeMatching(pred, removed);
+        } finally {
+            for (Message msg : removed.subList(start, removed.size())) {
+                SendAdmission.release((AttributedMessage) msg);
+            }
+        }
+    }
+
+    private void removeMatching(final UnaryPredicate pred, List<Message> removed) {
         // only one remove can be examining the queue at a time,
         // even if they are looking for orthogonal messages
         synchronized (queue_processing) {
@@ -118,19 +243,167 @@ abstract class MessageQueue
                     }
                 }
             }
-            synchronized (queue) {
-                Iterator<AttributedMessage> itr = queue.iterator();
+            if (batchMatches(pred)) {
+                // As above, wait for the in-progress batch to complete or
+                // fail before removing the part that's still pending.
+                synchronized (in_progress_lock) {
+                    synchronized (in_progress_batch) {
+                        Iterator<AttributedMessage> itr = in_progress_batch.iterator();
+                        while (itr.hasNext()) {
+                            msg = itr.next();
+                            if (pred.execute(msg)) {
+                                removed.add(msg);
+                                itr.remove();
+                            }
+                        }
+                    }
+                }
+            }
+            if (expiry == null) {
+                queue.removeMatching(pred, removed);
+            } else {
+                // Expired messages go too, but they've already been reported
+                List<Message> matched = new ArrayList<Message>();
+                queue.removeMatching(new UnaryPredicate() {
+                    private static final long serialVersionUID = 1L;
+
+                    public boolean execute(Object x) {
+                        return MessageExpiry.isExpired(x) || pred.execute(x);
+                    }
+                }, matched);
+                for (Message match : matched) {
+                    if (MessageExpiry.take((AttributedMessage) match)) {
+                        removed.add(match);
+                    } else {
+                        expiredCount.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the next message off the queue, skipping expired ones.
+     */
+    private AttributedMessage poll() {
+        while (true) {
+            AttributedMessage next = queue.next();
+            if (next == null || expiry == null || MessageExpiry.take(next)) {
+                return next;
+            }
+            expiredCount.decrementAndGet();
+        }
+    }
+
+    private boolean batchMatches(UnaryPredicate pred) {
+        synchronized (in_progress_batch) {
+            for (AttributedMessage msg : in_progress_batch) {
+                if (pred.execute(msg)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Pending batch messages come before anything in the queue
+    private AttributedMessage nextMessage() {
+        synchronized (in_progress_batch) {
+            if (!in_progress_batch.isEmpty()) {
+                return in_progress_batch.removeFirst();
+            }
+        }
+        return poll();
+    }
+
+    private static final long LINGER_POLL_NANOS = 10 * 1000;
+
+    /**
+     * Take up to <code>max</code> more messages off the queue, to be
+     * dispatched along with the in-progress message. Messages taken by an
+     * earlier call but not yet dispatched come first. If fewer than
+     * <code>max</code> are available, wait up to <code>lingerNanos</code> for
+     * more to arrive.
+     * <p>
+     * Only called by subclasses from <strong>dispatch</strong>. The messages
+     * remain part of this queue, ahead of anything else, until they're passed
+     * to {@link #batchDispatched}.
+     */
+    List<AttributedMessage> takeBatch(int max, long lingerNanos) {
+        long deadline = System.nanoTime() + lingerNanos;
+        while (true) {
+            synchronized (in_progress_batch) {
+                if (in_progress_batch.size() >= max) {
+                    break;
+                }
+            }
+            AttributedMessage next = poll();
+            if (next != null) {
+                synchronized (in_progress_batch) {
+                    in_progress_batch.add(next);
+                }
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(Math.min(remaining, LINGER_POLL_NANOS));
+        }
+        synchronized (in_progress_batch) {
+            int count = Math.min(max, in_progress_batch.size());
+            return new ArrayList<AttributedMessage>(in_progress_batch.subList(0, count));
+        }
+    }
+
+    /**
+     * The given messages, previously returned by {@link #takeBatch}, have been
+     * dispatched successfully.
+     */
+    void batchDispatched(List<AttributedMessage> dispatched) {
+        synchronized (in_progress_batch) {
+            for (AttributedMessage msg : dispatched) {
+                // Compare identity, AttributedMessage may redefine equals
+                Iterator<AttributedMessage> itr = in_progress_batch.iterator();
                 while (itr.hasNext()) {
-                    msg = itr.next();
-                    if (pred.execute(msg)) {
-                        removed.add(msg);
+                    if (itr.next() == msg) {
                         itr.remove();
+                        break;
                     }
                 }
             }
         }
     }
 
+    /**
+     * Put messages that were dispatched earlier back at the head of the queue,
+     * in order, ahead of anything else. Only called by subclasses from
+     * {@link #readyForNext}.
+     */
+    void requeue(List<AttributedMessage> messages) {
+        synchronized (in_progress_batch) {
+            in_progress_batch.addAll(0, messages);
+        }
+    }
+
+    /**
+     * Called by the queue thread before it takes another message off the
+     * queue. Returning false stops processing for now, in which case the
+     * subclass must already have scheduled a restart. The default is to
+     * always proceed.
+     */
+    boolean readyForNext() {
+        return true;
+    }
+
+    /**
+     * Run the queue thread again as soon as possible, for example because
+     * something other than a new message needs its attention.
+     */
+    void restart() {
+        thread.start();
+    }
+
     private static final long HOLD_TIME = 500;
 
     // Process the last failed message, if any, followed by as many
@@ -141,14 +414,17 @@ abstract class MessageQueue
         // Now process the queued items.
         while (System.currentTimeMillis() <= endTime) {
             if (in_progress == null) {
+                if (!readyForNext()) {
+                    // The subclass has scheduled the thread to run again
+                    return;
+                }
                 synchronized (queue_processing) {
-                    synchronized (queue) {
-                        if (queue.isEmpty()) {
-                            break; // done for now
-                        }
-                        synchronized (in_progress_lock) {
-                            in_progress = queue.next();
-                        }
+                    AttributedMessage next = nextMessage();
+                    if (next == null) {
+                        break; // done for now
+                    }
+                    synchronized (in_progress_lock) {
+                        in_progress = next;
                     }
                 }
             }
@@ -181,10 +457,8 @@ abstract class MessageQueue
 
     // Restart the thread immediately if the queue is not empty.
     private void restartIfNotEmpty() {
-        synchronized (queue) {
-            if (!queue.isEmpty()) {
-                thread.start();
-            }
+        if (size() > 0) {
+            thread.start();
         }
     }
 
@@ -196,30 +470,25 @@ abstract class MessageQueue
      * Enqueue a message.
      */
     void add(AttributedMessage message) {
-        synchronized (queue) {
-            queue.add(message);
+        MessageExpiry current = expiry;
+        if (current != null) {
+            current.track(this, message);
         }
+        queue.add(message);
         thread.start();
     }
 
     public AttributedMessage[] snapshot() {
-        synchronized (queue) {
-            AttributedMessage head = in_progress;
-            int size = queue.size();
-            if (head != null) {
-                size++;
-            }
-            AttributedMessage[] ret = new AttributedMessage[size];
-            int i = 0;
-            Iterator<AttributedMessage> iter = queue.iterator();
-            if (head != null) {
-                ret[i++] = head;
-            }
-            while (i < size) {
-                ret[i++] = iter.next();
-            }
-            return ret;
+        List<AttributedMessage> contents = new ArrayList<AttributedMessage>();
+        AttributedMessage head = in_progress;
+        if (head != null) {
+            contents.add(head);
+        }
+        synchronized (in_progress_batch) {
+            contents.addAll(in_progress_batch);
         }
+        queue.snapshot(contents);
+        return contents.toArray(new AttributedMessage[contents.size()]);
     }
 
     /**
@@ -233,7 +502,9 @@ abstract class MessageQueue
      * Number of messages waiting in the queue.
      */
     public int size() {
-        return queue.size();
+        synchronized (in_progress_batch) {
+            return in_progress_batch.size() + queue.size();
+        }
     }
 
 }
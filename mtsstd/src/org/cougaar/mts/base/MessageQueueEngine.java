@@ -0,0 +1,55 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.List;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.util.UnaryPredicate;
+
+/**
+ * The storage underlying a {@link MessageQueue}. An engine holds the messages
+ * that have been added to the queue but not yet popped off by the queue's
+ * thread. Any number of threads may add messages concurrently, but only the
+ * queue's own thread pops them off.
+ * <p>
+ * The engine in use is selected with the property
+ * <code>org.cougaar.core.mts.queue.engine</code>, whose value is either
+ * <code>synchronized</code> (the default) or <code>mpsc</code>.
+ * 
+ * @see SynchronizedMessageQueueEngine
+ * @see MpscMessageQueueEngine
+ */
+interface MessageQueueEngine {
+
+    /**
+     * Add a message to the tail of the queue. Safe to call from any thread.
+     */
+    void add(AttributedMessage message);
+
+    /**
+     * Remove and return the head of the queue, or null if the queue is empty.
+     * Only called by the single consumer.
+     */
+    AttributedMessage next();
+
+    /**
+     * Remove every queued message that satisfies the predicate, adding each
+     * one to the given list.
+     */
+    void removeMatching(UnaryPredicate pred, List<Message> removed);
+
+    /**
+     * Add the currently queued messages, in order, to the given list.
+     */
+    void snapshot(List<AttributedMessage> into);
+
+    boolean isEmpty();
+
+    int size();
+
+}
@@ -26,6 +26,7 @@
 
 package org.cougaar.mts.base;
 
+import org.cougaar.core.mts.AttributeConstants;
 
 /**
  * This simple extension of {@link AttributedMessage} should be used only for
@@ -43,6 +44,20 @@ public class MessageReply
         super(source, MessageReply.class);
     }
 
+    /**
+     * Make the reply for a message that was delivered, or accepted for
+     * delivery, on this node. Besides the delivery status, it advertises the
+     * header formats this node can read.
+     */
+    static MessageReply delivered(AttributedMessage source) {
+        MessageReply reply = new MessageReply(source);
+        reply.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
+                           AttributeConstants.DELIVERY_STATUS_DELIVERED);
+        reply.setAttribute(CompactHeaderCodec.READABLE_FORMATS_ATTRIBUTE,
+                           CompactHeaderCodec.FORMAT);
+        return reply;
+    }
+
     @Override
    protected boolean replyOnly() {
         return true;
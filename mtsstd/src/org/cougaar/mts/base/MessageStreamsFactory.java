@@ -39,6 +39,11 @@ public final class MessageStreamsFactory
         extends AspectFactory {
     private static MessageStreamsFactory factory;
 
+    // MessageReaderImpl and MessageWriterImpl keep no state, so one of each
+    // can be the base of every chain.
+    private final MessageReader baseReader;
+    private final MessageWriter baseWriter;
+
     public static synchronized MessageStreamsFactory makeFactory() {
         factory = new MessageStreamsFactory();
         return factory;
@@ -49,16 +54,28 @@ public final class MessageStreamsFactory
     }
 
     private MessageStreamsFactory() {
+        baseReader = new MessageReaderImpl();
+        baseWriter = new MessageWriterImpl();
     }
 
+    /**
+     * Return a MessageReader with delegates from the given aspects. The
+     * chain is shared between messages when every aspect in it allows that.
+     * 
+     * @see ReusableDelegates
+     */
     public MessageReader getMessageReader(List<String> aspectNames) {
-        MessageReader rdr = new MessageReaderImpl();
-        return attachAspects(rdr, MessageReader.class, aspectNames);
+        return attachSharedAspects(baseReader, MessageReader.class, aspectNames);
     }
 
+    /**
+     * Return a MessageWriter with delegates from the given aspects. The
+     * chain is shared between messages when every aspect in it allows that.
+     * 
+     * @see ReusableDelegates
+     */
     public MessageWriter getMessageWriter(List<String> aspectNames) {
-        MessageWriter wtr = new MessageWriterImpl();
-        return attachAspects(wtr, MessageWriter.class, aspectNames);
+        return attachSharedAspects(baseWriter, MessageWriter.class, aspectNames);
     }
 
     /**
@@ -34,6 +34,8 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceProvider;
@@ -79,12 +81,15 @@ public final class MessageTransportRegistry
             implements MessageTransportRegistryService, IncarnationService.Callback {
 
         private final String name;
-        private final Map<MessageAddress,ReceiveLink> receiveLinks = 
-            new HashMap<MessageAddress,ReceiveLink>();
-        private final Map<MessageAddress,AgentState> agentStates = 
-            new HashMap<MessageAddress,AgentState>();
-        private final Map<MessageAddress,MessageTransportClient> localClients = 
-            new HashMap<MessageAddress,MessageTransportClient>();
+        // Lookups in these maps don't lock, so that deliveries to different
+        // agents don't contend. Changes that involve more than one of them
+        // are made while holding the instance lock.
+        private final ConcurrentMap<MessageAddress,ReceiveLink> receiveLinks = 
+            new ConcurrentHashMap<MessageAddress,ReceiveLink>();
+        private final ConcurrentMap<MessageAddress,AgentState> agentStates = 
+            new ConcurrentHashMap<MessageAddress,AgentState>();
+        private final ConcurrentMap<MessageAddress,MessageTransportClient> localClients = 
+            new ConcurrentHashMap<MessageAddress,MessageTransportClient>();
         private final List<LinkProtocol> linkProtocols = new ArrayList<LinkProtocol>();
         private ReceiveLinkProviderService receiveLinkProvider;
         private NameSupport nameSupport;
@@ -180,12 +185,22 @@ public final class MessageTransportRegistry
             }
         }
 
-        private synchronized void removeLocalClient(MessageTransportClient client) {
+        private void removeLocalClient(MessageTransportClient client) {
             MessageAddress key = client.getMessageAddress();
-            try {
-                receiveLinks.remove(key);
-                localClients.remove(key.getPrimary());
-            } catch (Exception e) {
+            ReceiveLink link = null;
+            synchronized (this) {
+                try {
+                    link = receiveLinks.remove(key);
+                    localClients.remove(key.getPrimary());
+                } catch (Exception e) {
+                }
+            }
+            if (link != null) {
+                // Wait out a delivery that found the link before it was
+                // removed. Deliveries re-check the registration under this
+                // lock, so none can reach the client once we have it.
+                synchronized (link) {
+                }
             }
         }
 
@@ -205,30 +220,26 @@ public final class MessageTransportRegistry
             return name;
         }
 
-        public synchronized AgentState getAgentState(MessageAddress id) {
+        public AgentState getAgentState(MessageAddress id) {
             MessageAddress canonical_id = id.getPrimary();
-            Object raw = agentStates.get(canonical_id);
-            if (raw == null) {
-                AgentState state = new SimpleMessageAttributes();
-                agentStates.put(canonical_id, state);
-                return state;
-            } else if (raw instanceof AgentState) {
-                return (AgentState) raw;
-            } else {
-                throw new RuntimeException("Cached state for " + id + "=" + raw
-                        + " which is not an AgentState instance");
+            AgentState state = agentStates.get(canonical_id);
+            if (state == null) {
+                AgentState fresh = new SimpleMessageAttributes();
+                state = agentStates.putIfAbsent(canonical_id, fresh);
+                if (state == null) {
+                    state = fresh;
+                }
             }
+            return state;
         }
 
-        public synchronized void removeAgentState(MessageAddress id) {
+        public void removeAgentState(MessageAddress id) {
             agentStates.remove(id.getPrimary());
         }
 
         public boolean isLocalClient(MessageAddress id) {
-            synchronized (this) {
-                return receiveLinks.get(id.getPrimary()) != null
-                        || id.equals(MessageAddress.MULTICAST_LOCAL);
-            }
+            return receiveLinks.get(id.getPrimary()) != null
+                    || id.equals(MessageAddress.MULTICAST_LOCAL);
         }
 
         public ReceiveLink findLocalReceiveLink(MessageAddress id) {
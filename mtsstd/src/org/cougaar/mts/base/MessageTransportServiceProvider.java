@@ -67,6 +67,9 @@ public final class MessageTransportServiceProvider
 
     private MessageStreamsFactory msgFactory;
 
+    // Limits on waiting messages, or null if there are none
+    private SendAdmission admission;
+
     @Override
    protected String specifyContainmentPoint() {
         return Agent.INSERTION_POINT + ".MessageTransport";
@@ -240,6 +243,8 @@ public final class MessageTransportServiceProvider
         add(sendQFactory);
         csb.addService(SendQueueProviderService.class, sendQFactory);
 
+        admission = SendAdmission.makeFromProperties(csb);
+
         // load LinkProtocols
         new LinkProtocolFactory(this, csb);
     }
@@ -260,7 +265,7 @@ public final class MessageTransportServiceProvider
         link = aspectSupport.attachAspects(link, c);
 
         // Make proxy
-        proxy = new MessageTransportServiceProxy(client, link, csb);
+        proxy = new MessageTransportServiceProxy(client, link, csb, admission);
         proxies.put(addr, proxy);
         if (loggingService.isDebugEnabled()) {
             loggingService.debug("Created MessageTransportServiceProxy for " + requestor
@@ -46,15 +46,25 @@ import org.cougaar.core.service.MessageTransportService;
 public class MessageTransportServiceProxy
         implements MessageTransportService {
     private final ServiceBroker sb;
+    private final SendAdmission admission;
     private SendLink link;
     private MessageTransportClient client;
     private boolean registered = false;
 
     public MessageTransportServiceProxy(MessageTransportClient client, SendLink link,
                                         ServiceBroker sb) {
+        this(client, link, sb, null);
+    }
+
+    /**
+     * @param admission limits on waiting messages, or null for none
+     */
+    MessageTransportServiceProxy(MessageTransportClient client, SendLink link,
+                                 ServiceBroker sb, SendAdmission admission) {
         this.client = client;
         this.link = link;
         this.sb = sb;
+        this.admission = admission;
     }
 
     synchronized long getIncarnationNumber() {
@@ -73,12 +83,18 @@ public class MessageTransportServiceProxy
     }
 
     /**
-     * Redirects the sendMessage to the SendQueue.
+     * Redirects the sendMessage to the SendQueue. If there are limits on
+     * waiting messages, this may wait for room, or drop the message; the
+     * outcome is in the {@link #getAgentState agent state}, as described in
+     * {@link SendAdmission}.
      */
     public void sendMessage(Message rawMessage) {
         MessageAttributes attrs = rawMessage.getTarget().getMessageAttributes();
         AttributedMessage message = new AttributedMessage(rawMessage, attrs);
         if (link.okToSend(message)) {
+            if (admission != null && !admission.admit(message, link.getAgentState())) {
+                return;
+            }
             link.sendMessage(message);
         }
     }
@@ -0,0 +1,120 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.util.UnaryPredicate;
+
+/**
+ * A lock-free multi-producer, single-consumer {@link MessageQueueEngine}.
+ * Producers append by swapping the tail pointer, so adding a message never
+ * blocks on a monitor. The consumer owns the head.
+ * <p>
+ * Removal of arbitrary messages (see
+ * {@link MessageQueue#removeMessages(UnaryPredicate, List)}) is done by
+ * claiming the message out of its node, leaving an empty node behind which
+ * the consumer skips. Both the consumer and the removers claim a message with
+ * a compare-and-set, so a given message is either dispatched or removed, never
+ * both.
+ * <p>
+ * A snapshot is weakly consistent: it reflects the queue at some point during
+ * the call.
+ */
+final class MpscMessageQueueEngine
+        implements MessageQueueEngine {
+
+    private static final class Node {
+        volatile AttributedMessage message;
+        volatile Node next;
+
+        Node(AttributedMessage message) {
+            this.message = message;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, AttributedMessage> MESSAGE =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, AttributedMessage.class, "message");
+
+    // The head is a sentinel whose message has already been claimed.
+    private volatile Node head;
+    private final AtomicReference<Node> tail;
+    private final AtomicInteger count = new AtomicInteger();
+
+    MpscMessageQueueEngine() {
+        Node sentinel = new Node(null);
+        head = sentinel;
+        tail = new AtomicReference<Node>(sentinel);
+    }
+
+    private boolean claim(Node node, AttributedMessage message) {
+        if (message != null && MESSAGE.compareAndSet(node, message, null)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void add(AttributedMessage message) {
+        Node node = new Node(message);
+        count.incrementAndGet();
+        Node previous = tail.getAndSet(node);
+        // Between the swap and this link the new node is not yet reachable
+        // from the head. The consumer sees the queue as empty until then,
+        // which is fine since the producer restarts the queue thread after
+        // the add.
+        previous.next = node;
+    }
+
+    public AttributedMessage next() {
+        Node node = head;
+        while (true) {
+            Node next = node.next;
+            if (next == null) {
+                return null;
+            }
+            head = next;
+            node = next;
+            AttributedMessage message = next.message;
+            if (claim(next, message)) {
+                return message;
+            }
+            // Removed while queued, skip it
+        }
+    }
+
+    public void removeMatching(UnaryPredicate pred, List<Message> removed) {
+        for (Node node = head.next; node != null; node = node.next) {
+            AttributedMessage message = node.message;
+            if (message != null && pred.execute(message) && claim(node, message)) {
+                removed.add(message);
+            }
+        }
+    }
+
+    public void snapshot(List<AttributedMessage> into) {
+        for (Node node = head.next; node != null; node = node.next) {
+            AttributedMessage message = node.message;
+            if (message != null) {
+                into.add(message);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+}
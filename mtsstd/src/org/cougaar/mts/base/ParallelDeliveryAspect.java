@@ -0,0 +1,315 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.mts.MessageAttributes;
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.util.PropertyParser;
+
+/**
+ * This Aspect takes inbound messages off the link protocol's thread. Its
+ * {@link MessageDeliverer} delegate puts each message for a local agent in
+ * that agent's lane and replies straight away; a fixed number of worker
+ * threads take turns draining the lanes into the rest of the deliverer and
+ * the agents' {@link ReceiveLink}s. Each lane is drained by one worker at a
+ * time, in order, so every agent still gets its messages one at a time and in
+ * the order they arrived from each originator. A slow agent ties up at most
+ * one worker, and never the network reader.
+ * <p>
+ * Since the reply is sent before the agent sees the message, senders are told
+ * the message was delivered even if a ReceiveLink aspect later drops it, and
+ * MessageDeliverer delegates of aspects loaded before this one run in the
+ * lane rather than in the network thread. When a lane is full the network
+ * thread waits for room; if it's interrupted while waiting, the message is
+ * refused as misdelivered so that the sender tries again.
+ * <p>
+ * A message whose agent has left the node by the time its lane gets to it has
+ * already been acknowledged, so rather than being dropped it's handed to the
+ * {@link Router}, which sends it on to wherever the agent is now.
+ * <p>
+ * A lane is dropped once it's empty and its agent is no longer local. When
+ * the aspect is unloaded the workers stop after the lane they're on, and
+ * whatever is still queued is delivered by the unloading thread, or by the
+ * thread that queued it if it comes in later. Those messages have already
+ * been acknowledged, so they're delivered rather than failed.
+ * 
+ * @property org.cougaar.core.mts.delivery.workers The number of threads
+ *           delivering to agents. The default is 4.
+ * @property org.cougaar.core.mts.delivery.laneCapacity The number of
+ *           messages that can wait for any one agent. The default is 1000.
+ */
+public class ParallelDeliveryAspect
+        extends StandardAspect {
+    private static final int WORKERS =
+            PropertyParser.getInt("org.cougaar.core.mts.delivery.workers", 4);
+    private static final int LANE_CAPACITY =
+            PropertyParser.getInt("org.cougaar.core.mts.delivery.laneCapacity", 1000);
+    // How many messages a worker delivers from one lane before letting other
+    // lanes have a turn
+    private static final int TURN = 16;
+
+    private final ConcurrentMap<MessageAddress, Lane> lanes =
+            new ConcurrentHashMap<MessageAddress, Lane>();
+    // Lanes with messages, not being drained by any worker
+    private final ConcurrentLinkedQueue<Lane> ready = new ConcurrentLinkedQueue<Lane>();
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+    private volatile boolean stopped;
+    private volatile Router router;
+
+    @Override
+   public void load() {
+        super.load();
+        for (int i = 0; i < WORKERS; i++) {
+            Worker worker = new Worker();
+            worker.thread = threadService.getThread(this, worker, "Delivery Worker " + i,
+                                                    ThreadService.WILL_BLOCK_LANE);
+            idle.add(worker);
+        }
+    }
+
+    @Override
+   public void unload() {
+        stopped = true;
+        drainReady();
+        super.unload();
+    }
+
+    @Override
+   public Object getDelegate(Object delegatee, Class<?> type) {
+        if (type == MessageDeliverer.class) {
+            return new LaneDeliverer((MessageDeliverer) delegatee);
+        }
+        return null;
+    }
+
+    private Lane getLane(MessageAddress address, MessageDeliverer deliverer) {
+        MessageAddress key = address.getPrimary();
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            Lane fresh = new Lane(key, address, deliverer);
+            lane = lanes.putIfAbsent(key, fresh);
+            if (lane == null) {
+                lane = fresh;
+                pruneLanes();
+            }
+        }
+        return lane;
+    }
+
+    // Drop the idle lanes of agents that have gone. A lane drops itself if
+    // it's drained after its agent has gone; this catches those that were
+    // already empty, each time the map grows.
+    private void pruneLanes() {
+        MessageTransportRegistryService registry = getRegistry();
+        for (Lane lane : lanes.values()) {
+            if (lane.isIdle() && !registry.isLocalClient(lane.address)) {
+                lanes.remove(lane.key, lane);
+            }
+        }
+    }
+
+    // Called whenever a lane that wasn't scheduled gets a message
+    private void laneReady(Lane lane) {
+        ready.add(lane);
+        if (stopped) {
+            // There are no workers any more. Checking after adding means
+            // either we see the flag or unload sees the lane.
+            drainReady();
+            return;
+        }
+        Worker worker = idle.poll();
+        if (worker != null) {
+            worker.thread.start();
+        }
+        // else every worker is busy, and will look at the ready queue when
+        // it's done with its current lane
+    }
+
+    // The Router is made after the aspects are loaded, so look it up the
+    // first time a message needs rerouting
+    private Router getRouter() {
+        Router result = router;
+        if (result == null) {
+            result = getServiceBroker().getService(this, Router.class, null);
+            router = result;
+        }
+        return result;
+    }
+
+    // Deliver everything in the ready lanes in this thread, once stopped
+    private void drainReady() {
+        Lane lane;
+        while ((lane = ready.poll()) != null) {
+            lane.drain();
+        }
+    }
+
+    private class LaneDeliverer
+            extends MessageDelivererDelegateImplBase {
+
+        LaneDeliverer(MessageDeliverer deliverer) {
+            super(deliverer);
+        }
+
+        @Override
+      public MessageAttributes deliverMessage(AttributedMessage message, MessageAddress dest)
+                throws MisdeliveredMessageException {
+            if (message == null) {
+                return null;
+            }
+            if (!getRegistry().isLocalClient(dest)) {
+                // Fail now, while the sender can still be told
+                throw new MisdeliveredMessageException(message);
+            }
+            getLane(dest, deliverer).add(message);
+            return MessageReply.delivered(message);
+        }
+    }
+
+    /**
+     * The messages waiting for one agent. A lane is either scheduled, meaning
+     * it's in the ready queue or being drained by a worker, or it's not, in
+     * which case the next message to arrive schedules it.
+     */
+    private class Lane {
+        private final MessageAddress key;
+        private final MessageAddress address;
+        private final MessageDeliverer deliverer;
+        private final BlockingQueue<AttributedMessage> messages =
+                new LinkedBlockingQueue<AttributedMessage>(LANE_CAPACITY);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(MessageAddress key, MessageAddress address, MessageDeliverer deliverer) {
+            this.key = key;
+            this.address = address;
+            this.deliverer = deliverer;
+        }
+
+        boolean isIdle() {
+            return !scheduled.get() && messages.isEmpty();
+        }
+
+        void add(AttributedMessage message)
+                throws MisdeliveredMessageException {
+            if (!messages.offer(message)) {
+                try {
+                    SchedulableStatus.beginWait("Delivery lane full");
+                    messages.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (loggingService.isWarnEnabled()) {
+                        loggingService.warn("Interrupted while waiting to queue " + message);
+                    }
+                    // Not queued, so don't let the sender think it was
+                    throw new MisdeliveredMessageException(message);
+                } finally {
+                    SchedulableStatus.endBlocking();
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                laneReady(this);
+            }
+        }
+
+        /**
+         * Deliver up to a turn's worth of messages, or all of them once the
+         * aspect is stopped. Only called by the thread that took this lane
+         * off the ready queue.
+         */
+        void drain() {
+            do {
+                deliverTurn();
+            } while (stopped && !messages.isEmpty());
+            scheduled.set(false);
+            if (messages.isEmpty()) {
+                if (!getRegistry().isLocalClient(address)) {
+                    lanes.remove(key, this);
+                }
+                // A message could have arrived after the last drainTo, while
+                // this lane still looked scheduled
+                if (messages.isEmpty()) {
+                    return;
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                laneReady(this);
+            }
+        }
+
+        private void deliverTurn() {
+            List<AttributedMessage> turn = new ArrayList<AttributedMessage>(TURN);
+            messages.drainTo(turn, TURN);
+            for (AttributedMessage message : turn) {
+                try {
+                    deliverer.deliverMessage(message, address);
+                } catch (MisdeliveredMessageException e) {
+                    // Already acknowledged, so follow the agent
+                    if (loggingService.isInfoEnabled()) {
+                        loggingService.info("Rerouting " + message + ", " + address
+                                + " is no longer local");
+                    }
+                    reroute(message);
+                } catch (RuntimeException e) {
+                    if (loggingService.isErrorEnabled()) {
+                        loggingService.error("Delivery of " + message + " failed", e);
+                    }
+                }
+            }
+        }
+
+        private void reroute(AttributedMessage message) {
+            Router router = getRouter();
+            if (router == null) {
+                if (loggingService.isWarnEnabled()) {
+                    loggingService.warn("No Router, dropped " + message);
+                }
+                return;
+            }
+            try {
+                router.routeMessage(message);
+            } catch (RuntimeException e) {
+                if (loggingService.isErrorEnabled()) {
+                    loggingService.error("Rerouting " + message + " failed", e);
+                }
+            }
+        }
+    }
+
+    private class Worker
+            implements Runnable {
+        private Schedulable thread;
+
+        public void run() {
+            while (!stopped) {
+                Lane lane = ready.poll();
+                if (lane != null) {
+                    lane.drain();
+                    continue;
+                }
+                idle.add(this);
+                // A lane could have become ready before we were idle, in
+                // which case nobody has started us. If somebody already has,
+                // we'll simply run again.
+                if (ready.isEmpty() || !idle.remove(this)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -45,6 +45,13 @@ public interface QueueProviderService
      */
     void removeMessages(UnaryPredicate predicate, List<Message> removed);
 
+    /**
+     * Start dropping messages from the queues as their deadlines pass, using
+     * the given index. Each dropped message is reported to the listeners as if
+     * it had been removed.
+     */
+    void expireMessages(MessageExpiry expiry);
+
     /**
      * Add the given listener to the list of those receiving callbacks for queue
      * events. Listeners will be notified of queue events via callback.
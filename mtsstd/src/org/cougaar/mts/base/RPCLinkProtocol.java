@@ -399,7 +399,7 @@ abstract public class RPCLinkProtocol
     }
 
     abstract protected class Link
-            implements DestinationLink, IncarnationService.Callback {
+            implements BatchDestinationLink, AsyncDestinationLink, IncarnationService.Callback {
 
         private final MessageAddress target;
         private boolean lookup_pending = false;
@@ -409,6 +409,8 @@ abstract public class RPCLinkProtocol
         private final Callback lookup_cb = new WPCallback(this);
         private final Object remote_lock = new Object();
         private Object remote_ref; // URI, URL etc
+        // Learned from delivery replies, forgotten when the remote ref is
+        private volatile boolean compactHeaders = false;
 
         protected Link(MessageAddress destination) {
             this.target = destination;
@@ -448,6 +450,7 @@ abstract public class RPCLinkProtocol
             synchronized (remote_lock) {
                 remote_ref = null;
             }
+            compactHeaders = false;
             synchronized (lookup_lock) {
                 if (!lookup_pending) {
                     lookup_result = null;
@@ -522,9 +525,95 @@ abstract public class RPCLinkProtocol
             }
         }
 
+        /**
+         * Forward a batch of messages in one protocol operation, following the
+         * contract of {@link BatchDestinationLink#forwardMessages}. Links which
+         * return true from {@link #supportsBatchForwarding} must override
+         * this. The default forwards only the first message.
+         */
+        protected MessageAttributes[] forwardBatchByProtocol(Object remote,
+                                                             AttributedMessage[] messages)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            return new MessageAttributes[] {forwardByProtocol(remote, messages[0])};
+        }
+
+        /**
+         * Start forwarding a message without waiting for the reply, following
+         * the contract of {@link AsyncDestinationLink#forwardMessageAsync}. Links
+         * which return true from {@link #supportsAsyncForwarding} must
+         * override this. The default forwards synchronously and then invokes
+         * the callback.
+         */
+        protected void forwardAsyncByProtocol(Object remote,
+                                              AttributedMessage message,
+                                              ForwardCallback callback)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            callback.forwarded(message, forwardByProtocol(remote, message));
+        }
+
         public MessageAttributes forwardMessage(AttributedMessage message)
                 throws NameLookupException, UnregisteredNameException, CommFailureException,
                 MisdeliveredMessageException {
+            return noteReply(forwardByProtocol(commitRemoteRef(), message));
+        }
+
+        // Does the remote node read compact headers?
+        private MessageAttributes noteReply(MessageAttributes reply) {
+            // Replies made by aspects rather than by delivery don't say
+            Object formats =
+                    reply == null ? null
+                            : reply.getAttribute(CompactHeaderCodec.READABLE_FORMATS_ATTRIBUTE);
+            if (formats != null) {
+                compactHeaders = CompactHeaderCodec.FORMAT.equals(formats);
+            }
+            return reply;
+        }
+
+        public boolean supportsAsyncForwarding() {
+            return false;
+        }
+
+        public void forwardMessageAsync(AttributedMessage message, ForwardCallback callback)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            forwardAsyncByProtocol(commitRemoteRef(), message, new ReplyNoter(callback));
+        }
+
+        private class ReplyNoter
+                implements ForwardCallback {
+            private final ForwardCallback callback;
+
+            ReplyNoter(ForwardCallback callback) {
+                this.callback = callback;
+            }
+
+            public void forwarded(AttributedMessage message, MessageAttributes reply) {
+                callback.forwarded(message, noteReply(reply));
+            }
+
+            public void failed(AttributedMessage message, Exception cause) {
+                callback.failed(message, cause);
+            }
+        }
+
+        public boolean supportsBatchForwarding() {
+            return false;
+        }
+
+        public MessageAttributes[] forwardMessages(AttributedMessage[] messages)
+                throws NameLookupException, UnregisteredNameException, CommFailureException,
+                MisdeliveredMessageException {
+            MessageAttributes[] replies = forwardBatchByProtocol(commitRemoteRef(), messages);
+            if (replies != null && replies.length > 0) {
+                noteReply(replies[replies.length - 1]);
+            }
+            return replies;
+        }
+
+        private Object commitRemoteRef()
+                throws NameLookupException, UnregisteredNameException {
             cacheRemote();
             // Ordinarily cacheRemote either throws an Exception or
             // caches a non-null reference. But with the addition of
@@ -547,7 +636,7 @@ abstract public class RPCLinkProtocol
                 Exception cause = new Exception("Inconsistent remote reference cache");
                 throw new NameLookupException(cause);
             } else {
-                return forwardByProtocol(committedRemoteRef, message);
+                return committedRemoteRef;
             }
 
         }
@@ -599,6 +688,12 @@ abstract public class RPCLinkProtocol
         public void addMessageAttributes(MessageAttributes attrs) {
             attrs.addValue(AttributeConstants.IS_STREAMING_ATTRIBUTE, Boolean.TRUE);
             attrs.addValue(AttributeConstants.ENCRYPTED_SOCKET_ATTRIBUTE, usesEncryptedSocket());
+            if (compactHeaders) {
+                attrs.setLocalAttribute(CompactHeaderCodec.HEADER_FORMAT_ATTRIBUTE,
+                                        CompactHeaderCodec.FORMAT);
+            } else {
+                attrs.removeLocalAttribute(CompactHeaderCodec.HEADER_FORMAT_ATTRIBUTE);
+            }
         }
     }
 
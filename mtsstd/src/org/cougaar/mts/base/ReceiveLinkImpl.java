@@ -48,17 +48,15 @@ public class ReceiveLinkImpl
     }
 
     public MessageAttributes deliverMessage(AttributedMessage message) {
-        MessageAttributes metadata = new MessageReply(message);
         try {
             client.receiveMessage(message.getRawMessage());
-            metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
-                                  AttributeConstants.DELIVERY_STATUS_DELIVERED);
-            return metadata;
+            return MessageReply.delivered(message);
         } catch (Throwable th) {
             if (loggingService.isErrorEnabled()) {
                 loggingService.error("MessageTransportClient threw an exception in receiveMessage, not retrying.",
                                      th);
             }
+            MessageAttributes metadata = new MessageReply(message);
             metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
                                   AttributeConstants.DELIVERY_STATUS_CLIENT_ERROR);
             return metadata;
@@ -0,0 +1,238 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.core.thread.SchedulableStatus;
+
+/**
+ * Matches replies to requests for link protocols that make an rpc out of
+ * one-way messages, such as the stream and JMS protocols. Each request is
+ * {@link #register}ed for an id to send with it, and the reply carrying that
+ * id {@link #complete}s the request's {@link ReplyFuture}. A request that
+ * isn't answered in time is completed with {@link #TIMED_OUT} by a
+ * {@link TimerWheel}, driven by one thread from the {@link ThreadService},
+ * so the senders needn't time their own waits. The thread only runs while
+ * some request is waiting.
+ * <p>
+ * Once {@link #stop}ped, requests are timed out as soon as they're
+ * registered. Requests and replies can come from any number of threads at
+ * once.
+ */
+public class ReplyCorrelator {
+    /**
+     * The result of a request that wasn't answered in time.
+     */
+    public static final Object TIMED_OUT = new Object() {
+        @Override
+      public String toString() {
+            return "TIMED_OUT";
+        }
+    };
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 1024;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentMap<Integer, ReplyFuture> pending =
+            new ConcurrentHashMap<Integer, ReplyFuture>();
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, WHEEL_SIZE);
+    private final Schedulable ticker;
+    // Whether the ticker is scheduled
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private volatile boolean stopped;
+
+    /**
+     * @param consumer the owner of the timeout thread
+     */
+    public ReplyCorrelator(ThreadService threadService, Object consumer) {
+        ticker = threadService.getThread(consumer, new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, "Reply Timeouts");
+    }
+
+    private void tick() {
+        wheel.advance(System.currentTimeMillis());
+        if (stopped) {
+            return;
+        }
+        if (wheel.size() > 0) {
+            ticker.schedule(TICK_MILLIS);
+            return;
+        }
+        ticking.set(false);
+        // A timeout may have been scheduled since the wheel was looked at
+        if (wheel.size() > 0) {
+            startTicking();
+        }
+    }
+
+    private void startTicking() {
+        if (!stopped && ticking.compareAndSet(false, true)) {
+            ticker.schedule(TICK_MILLIS);
+        }
+    }
+
+    /**
+     * Start waiting for a reply, which must come within the timeout.
+     */
+    public ReplyFuture register(long timeoutMillis) {
+        int id = nextId.incrementAndGet();
+        final ReplyFuture future = new ReplyFuture(id);
+        pending.put(id, future);
+        if (stopped) {
+            // Nothing would time it out
+            if (pending.remove(id, future)) {
+                future.set(TIMED_OUT);
+            }
+            return future;
+        }
+        future.timeout = wheel.schedule(new Runnable() {
+            public void run() {
+                if (pending.remove(future.id, future)) {
+                    future.set(TIMED_OUT);
+                }
+            }
+        }, System.currentTimeMillis() + timeoutMillis);
+        startTicking();
+        return future;
+    }
+
+    /**
+     * Hand over the reply to the request with the given id.
+     * 
+     * @return false if there's no such request, usually because it timed out
+     */
+    public boolean complete(int id, Object reply) {
+        ReplyFuture future = pending.remove(id);
+        if (future == null) {
+            return false;
+        }
+        future.cancelTimeout();
+        future.set(reply);
+        return true;
+    }
+
+    /**
+     * Stop waiting for the request's reply, for instance because it couldn't
+     * be sent.
+     */
+    public void cancel(ReplyFuture future) {
+        if (pending.remove(future.id, future)) {
+            future.cancelTimeout();
+        }
+    }
+
+    /**
+     * The number of requests waiting for replies.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stop the timeout thread. Requests still waiting, and any registered
+     * from now on, are timed out.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.cancelTimer();
+        for (Integer id : pending.keySet()) {
+            ReplyFuture future = pending.remove(id);
+            if (future != null) {
+                future.cancelTimeout();
+                future.set(TIMED_OUT);
+            }
+        }
+    }
+
+    /**
+     * The eventual reply to one request.
+     */
+    public static final class ReplyFuture {
+        private static final AtomicReferenceFieldUpdater<ReplyFuture, Object> RESULT =
+                AtomicReferenceFieldUpdater.newUpdater(ReplyFuture.class, Object.class, "result");
+        private static final Object NULL_REPLY = new Object();
+
+        private final int id;
+        private volatile Object result;
+        private volatile Thread waiter;
+        private volatile TimerWheel.Timeout timeout;
+
+        private ReplyFuture(int id) {
+            this.id = id;
+        }
+
+        /**
+         * The id to send with the request, for the reply to carry back.
+         */
+        public int getId() {
+            return id;
+        }
+
+        public boolean isDone() {
+            return result != null;
+        }
+
+        /**
+         * Wait for the reply, or {@link ReplyCorrelator#TIMED_OUT}. Only one
+         * thread may wait.
+         * <p>
+         * The wait is bounded by the request's timeout, so an interrupt
+         * doesn't end it. It's noted, so that parking doesn't return at once
+         * and spin, and the thread's interrupt status is set again on return.
+         */
+        public Object get() {
+            if (result == null) {
+                boolean interrupted = false;
+                waiter = Thread.currentThread();
+                SchedulableStatus.beginWait("Waiting for reply");
+                try {
+                    while (result == null) {
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) {
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    SchedulableStatus.endBlocking();
+                    waiter = null;
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            return result == NULL_REPLY ? null : result;
+        }
+
+        private void cancelTimeout() {
+            TimerWheel.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        private void set(Object reply) {
+            if (RESULT.compareAndSet(this, null, reply == null ? NULL_REPLY : reply)) {
+                Thread thread = waiter;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+/**
+ * An aspect implements this interface to say that some of its delegates keep
+ * no per-use state, so that a single delegate chain built on them can be
+ * shared by every caller, concurrently. At the moment only the
+ * {@link MessageWriter} and {@link MessageReader} chains made by
+ * {@link MessageStreamsFactory} are shared this way.
+ * 
+ * @see AspectSupport#attachSharedAspects(Object, Class, java.util.List)
+ */
+public interface ReusableDelegates {
+    /**
+     * Return true if the delegates this aspect attaches at the cut-point
+     * indicated by the given type are stateless.
+     */
+    boolean isReusableDelegate(Class<?> type);
+}
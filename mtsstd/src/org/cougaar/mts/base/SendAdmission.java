@@ -0,0 +1,470 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.cougaar.bootstrap.SystemProperties;
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.mts.AgentState;
+import org.cougaar.core.mts.Message;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.thread.SchedulableStatus;
+import org.cougaar.util.PropertyParser;
+import org.cougaar.util.UnaryPredicate;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * Limits how many messages, and how many bytes of messages, each agent and
+ * the node as a whole can have waiting in the send and destination queues.
+ * A message counts against the limits from the time it's sent until a
+ * destination queue hands it to a link, or it's removed from the queues.
+ * <p>
+ * When a message would go over a limit, the policy decides what happens:
+ * <ul>
+ * <li><code>block</code>: the sending thread waits for room, up to the
+ * timeout, and the message is rejected if there's still none. While it
+ * waits it also looks for room freed by messages that were garbage
+ * collected without being released.
+ * <li><code>reject</code>: the message is rejected straight away.
+ * <li><code>dropOldest</code>: the sending agent's oldest waiting messages are
+ * removed from the queues to make room. If the agent has none, the message is
+ * rejected.
+ * </ul>
+ * A message that goes over a limit on its own is still accepted when nothing
+ * else is waiting at that level, so it can't be refused forever.
+ * <p>
+ * Rejected messages are dropped. Since sendMessage doesn't return a result,
+ * the outcome of the agent's last send and its running totals are kept in its
+ * {@link AgentState}, under the attribute names defined here.
+ * <p>
+ * Byte counts are only known by serializing a message, so each message is
+ * serialized once more when it's sent if there's a byte limit.
+ * 
+ * @property org.cougaar.core.mts.admission.agent.messages The most messages
+ *           one agent can have waiting. Default is 0, no limit.
+ * @property org.cougaar.core.mts.admission.agent.bytes The most bytes of
+ *           messages one agent can have waiting. Default is 0, no limit.
+ * @property org.cougaar.core.mts.admission.node.messages The most messages
+ *           the node can have waiting. Default is 0, no limit.
+ * @property org.cougaar.core.mts.admission.node.bytes The most bytes of
+ *           messages the node can have waiting. Default is 0, no limit.
+ * @property org.cougaar.core.mts.admission.policy What to do with a message
+ *           that would go over a limit: <code>block</code>,
+ *           <code>reject</code> or <code>dropOldest</code>. Default is
+ *           <code>block</code>.
+ * @property org.cougaar.core.mts.admission.timeout How long the
+ *           <code>block</code> policy waits for room, in milliseconds.
+ *           Default is 5000.
+ */
+public final class SendAdmission {
+    /**
+     * AgentState attribute: outcome of the agent's last send, one of
+     * {@link #STATUS_ACCEPTED}, {@link #STATUS_DELAYED} or
+     * {@link #STATUS_REJECTED}.
+     */
+    public static final String STATUS_ATTRIBUTE = "SendAdmissionStatus";
+    /** AgentState attribute: Integer count of the agent's waiting messages */
+    public static final String QUEUED_MESSAGES_ATTRIBUTE = "SendAdmissionQueuedMessages";
+    /** AgentState attribute: Long byte count of the agent's waiting messages */
+    public static final String QUEUED_BYTES_ATTRIBUTE = "SendAdmissionQueuedBytes";
+    /** AgentState attribute: Long count of the agent's rejected messages */
+    public static final String REJECTED_ATTRIBUTE = "SendAdmissionRejected";
+    /** AgentState attribute: Long count of the agent's messages dropped to make room */
+    public static final String DROPPED_ATTRIBUTE = "SendAdmissionDropped";
+
+    public static final String STATUS_ACCEPTED = "accepted";
+    public static final String STATUS_DELAYED = "delayed";
+    public static final String STATUS_REJECTED = "rejected";
+
+    static final String BLOCK_POLICY = "block";
+    static final String REJECT_POLICY = "reject";
+    static final String DROP_OLDEST_POLICY = "dropOldest";
+
+    private static final String TICKET_ATTRIBUTE = "SendAdmissionTicket";
+    // Longest a blocked sender waits before looking for tickets of messages
+    // that were garbage collected, since nothing wakes it for those
+    private static final long RECLAIM_SLICE = 100;
+
+    private static final int AGENT_MESSAGES =
+            PropertyParser.getInt("org.cougaar.core.mts.admission.agent.messages", 0);
+    private static final long AGENT_BYTES =
+            PropertyParser.getLong("org.cougaar.core.mts.admission.agent.bytes", 0);
+    private static final int NODE_MESSAGES =
+            PropertyParser.getInt("org.cougaar.core.mts.admission.node.messages", 0);
+    private static final long NODE_BYTES =
+            PropertyParser.getLong("org.cougaar.core.mts.admission.node.bytes", 0);
+    private static final String POLICY =
+            SystemProperties.getProperty("org.cougaar.core.mts.admission.policy", BLOCK_POLICY);
+    private static final long TIMEOUT =
+            PropertyParser.getLong("org.cougaar.core.mts.admission.timeout", 5000);
+
+    /**
+     * Make the node's admission control from the properties, or return null
+     * if no limits are set.
+     */
+    static SendAdmission makeFromProperties(ServiceBroker sb) {
+        if (AGENT_MESSAGES <= 0 && AGENT_BYTES <= 0 && NODE_MESSAGES <= 0 && NODE_BYTES <= 0) {
+            return null;
+        }
+        return new SendAdmission(sb, AGENT_MESSAGES, AGENT_BYTES, NODE_MESSAGES, NODE_BYTES,
+                                 POLICY, TIMEOUT);
+    }
+
+    /**
+     * Release the message's hold on the limits, if it has one. Called when
+     * the message leaves the queues. Releasing a message more than once is
+     * harmless.
+     */
+    static void release(AttributedMessage message) {
+        Object ticket = message.getAttribute(TICKET_ATTRIBUTE);
+        if (ticket instanceof Ticket) {
+            ((Ticket) ticket).release();
+        }
+    }
+
+    private final ServiceBroker sb;
+    private final int agentMessages;
+    private final long agentBytes;
+    private final int nodeMessages;
+    private final long nodeBytes;
+    private final String policy;
+    private final long timeout;
+    private final Logger log;
+
+    // Tickets whose messages were garbage collected without being released,
+    // because something between the client and the queues dropped them
+    private final ReferenceQueue<AttributedMessage> collected =
+            new ReferenceQueue<AttributedMessage>();
+
+    // Guarded by this
+    private final Map<MessageAddress, Account> accounts = new HashMap<MessageAddress, Account>();
+    private int queuedMessages;
+    private long queuedBytes;
+
+    private SendQueueProviderService sendq_factory;
+    private DestinationQueueProviderService destq_factory;
+
+    SendAdmission(ServiceBroker sb,
+                  int agentMessages,
+                  long agentBytes,
+                  int nodeMessages,
+                  long nodeBytes,
+                  String policy,
+                  long timeout) {
+        this.sb = sb;
+        this.agentMessages = agentMessages;
+        this.agentBytes = agentBytes;
+        this.nodeMessages = nodeMessages;
+        this.nodeBytes = nodeBytes;
+        this.log = Logging.getLogger(getClass().getName());
+        if (!BLOCK_POLICY.equals(policy) && !REJECT_POLICY.equals(policy)
+                && !DROP_OLDEST_POLICY.equals(policy)) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unknown send admission policy " + policy + ", using " + BLOCK_POLICY);
+            }
+            policy = BLOCK_POLICY;
+        }
+        this.policy = policy;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Decide whether a message from a local agent may be queued, waiting or
+     * making room for it as the policy says. If it may, it holds its place
+     * against the limits until it's released.
+     * 
+     * @param state the sending agent's state, where the outcome is recorded
+     * @return true if the message should be queued, false if it's rejected
+     */
+    boolean admit(AttributedMessage message, AgentState state) {
+        reclaimCollected();
+        long bytes = agentBytes > 0 || nodeBytes > 0 ? sizeOf(message.getRawMessage()) : 0;
+        MessageAddress agent = message.getOriginator().getPrimary();
+        List<AttributedMessage> evicted = null;
+        boolean admitted = true;
+        boolean delayed = false;
+        Account account;
+        synchronized (this) {
+            account = accounts.get(agent);
+            if (account == null) {
+                account = new Account(agent);
+                accounts.put(agent, account);
+            }
+            account.state = state;
+            long deadline = 0;
+            while (!fits(account, bytes)) {
+                if (DROP_OLDEST_POLICY.equals(policy)) {
+                    Ticket oldest = account.oldest();
+                    if (oldest == null) {
+                        admitted = false;
+                        break;
+                    }
+                    oldest.releaseLocked();
+                    ++account.dropped;
+                    AttributedMessage victim = oldest.get();
+                    if (victim != null) {
+                        if (evicted == null) {
+                            evicted = new ArrayList<AttributedMessage>();
+                        }
+                        evicted.add(victim);
+                    }
+                } else if (BLOCK_POLICY.equals(policy)) {
+                    if (reclaimCollected()) {
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) {
+                        deadline = now + timeout;
+                    }
+                    if (now >= deadline) {
+                        admitted = false;
+                        break;
+                    }
+                    delayed = true;
+                    SchedulableStatus.beginWait("MTS send admission");
+                    try {
+                        wait(Math.min(deadline - now, RECLAIM_SLICE));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        admitted = false;
+                        break;
+                    } finally {
+                        SchedulableStatus.endBlocking();
+                    }
+                } else {
+                    admitted = false;
+                    break;
+                }
+            }
+            if (admitted) {
+                Ticket ticket = new Ticket(message, account, bytes);
+                message.setLocalAttribute(TICKET_ATTRIBUTE, ticket);
+                account.tickets.add(ticket);
+                account.messages++;
+                account.bytes += bytes;
+                queuedMessages++;
+                queuedBytes += bytes;
+            } else {
+                ++account.rejected;
+            }
+            account.publish(admitted ? (delayed ? STATUS_DELAYED : STATUS_ACCEPTED)
+                    : STATUS_REJECTED);
+        }
+        if (!admitted && log.isWarnEnabled()) {
+            log.warn("Rejected message from " + agent + ", too many messages waiting: "
+                    + message.logString());
+        }
+        if (evicted != null) {
+            removeFromQueues(evicted);
+        }
+        return admitted;
+    }
+
+    // Caller holds the lock
+    private boolean fits(Account account, long bytes) {
+        return fits(account.messages, account.bytes, bytes, agentMessages, agentBytes)
+                && fits(queuedMessages, queuedBytes, bytes, nodeMessages, nodeBytes);
+    }
+
+    private static boolean fits(int messages,
+                                long queued,
+                                long bytes,
+                                int maxMessages,
+                                long maxBytes) {
+        if (maxMessages > 0 && messages >= maxMessages) {
+            return false;
+        }
+        // A message can go over the byte limit if nothing else is waiting
+        return maxBytes <= 0 || messages == 0 || queued + bytes <= maxBytes;
+    }
+
+    private void removeFromQueues(final List<AttributedMessage> evicted) {
+        synchronized (this) {
+            if (sendq_factory == null) {
+                sendq_factory = sb.getService(this, SendQueueProviderService.class, null);
+                destq_factory = sb.getService(this, DestinationQueueProviderService.class, null);
+            }
+        }
+        UnaryPredicate predicate = new UnaryPredicate() {
+            private static final long serialVersionUID = 1L;
+
+            public boolean execute(Object x) {
+                for (AttributedMessage message : evicted) {
+                    if (message == x) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+        List<Message> removed = new ArrayList<Message>();
+        if (sendq_factory != null) {
+            sendq_factory.removeMessages(predicate, removed);
+        }
+        if (destq_factory != null) {
+            destq_factory.removeMessages(predicate, removed);
+        }
+        if (log.isWarnEnabled()) {
+            for (Message message : removed) {
+                AttributedMessage dropped = (AttributedMessage) message;
+                log.warn("Dropped message to make room: " + dropped.logString());
+            }
+        }
+    }
+
+    /**
+     * @return true if any tickets were released
+     */
+    private boolean reclaimCollected() {
+        boolean reclaimed = false;
+        Ticket ticket = (Ticket) collected.poll();
+        while (ticket != null) {
+            reclaimed |= ticket.release();
+            ticket = (Ticket) collected.poll();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * The serialized size of a message's contents, as measured when it was
+     * admitted if it was, otherwise measured now.
+     */
+    static long sizeOf(AttributedMessage message) {
+        Object ticket = message.getAttribute(TICKET_ATTRIBUTE);
+        if (ticket instanceof Ticket && ((Ticket) ticket).bytes > 0) {
+            return ((Ticket) ticket).bytes;
+        }
+        return sizeOf(message.getRawMessage());
+    }
+
+    private static long sizeOf(Message contents) {
+        if (contents == null) {
+            return 0;
+        }
+        CountingOutputStream counter = new CountingOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(counter);
+            out.writeObject(contents);
+            out.close();
+        } catch (IOException e) {
+            // Count what was written
+        }
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream
+            extends OutputStream {
+        private long count;
+
+        @Override
+      public void write(int b) {
+            ++count;
+        }
+
+        @Override
+      public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * One agent's waiting messages, oldest first, and its totals.
+     */
+    private final class Account {
+        private final MessageAddress agent;
+        private final LinkedHashSet<Ticket> tickets = new LinkedHashSet<Ticket>();
+        private AgentState state;
+        private int messages;
+        private long bytes;
+        private long rejected;
+        private long dropped;
+
+        Account(MessageAddress agent) {
+            this.agent = agent;
+        }
+
+        Ticket oldest() {
+            Iterator<Ticket> itr = tickets.iterator();
+            return itr.hasNext() ? itr.next() : null;
+        }
+
+        // Caller holds the SendAdmission lock
+        void publish(String status) {
+            if (state == null) {
+                return;
+            }
+            synchronized (state) {
+                if (status != null) {
+                    state.setAttribute(STATUS_ATTRIBUTE, status);
+                }
+                state.setAttribute(QUEUED_MESSAGES_ATTRIBUTE, messages);
+                state.setAttribute(QUEUED_BYTES_ATTRIBUTE, bytes);
+                state.setAttribute(REJECTED_ATTRIBUTE, rejected);
+                state.setAttribute(DROPPED_ATTRIBUTE, dropped);
+            }
+        }
+
+        @Override
+      public String toString() {
+            return "Send admission for " + agent;
+        }
+    }
+
+    /**
+     * A waiting message's hold on the limits.
+     */
+    private final class Ticket
+            extends WeakReference<AttributedMessage> {
+        private final Account account;
+        private final long bytes;
+        // Guarded by the SendAdmission
+        private boolean released;
+
+        Ticket(AttributedMessage message, Account account, long bytes) {
+            super(message, collected);
+            this.account = account;
+            this.bytes = bytes;
+        }
+
+        boolean release() {
+            synchronized (SendAdmission.this) {
+                if (!releaseLocked()) {
+                    return false;
+                }
+                account.publish(null);
+                SendAdmission.this.notifyAll();
+                return true;
+            }
+        }
+
+        // Caller holds the SendAdmission lock
+        boolean releaseLocked() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            account.tickets.remove(this);
+            account.messages--;
+            account.bytes -= bytes;
+            queuedMessages--;
+            queuedBytes -= bytes;
+            return true;
+        }
+    }
+}
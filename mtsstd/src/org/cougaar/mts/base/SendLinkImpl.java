@@ -40,7 +40,9 @@ import org.cougaar.util.UnaryPredicate;
 /**
  * The only implementation of {@link SendLink}, instantiated once per
  * MessageTransportClient. It's main job is simply to place outgoing messages on
- * the (singleton) {@link SendQueue}.
+ * the (singleton) {@link SendQueue}. In direct mode the SendQueue routes each
+ * message in the sending thread, so this is where the message reaches its
+ * DestinationQueue.
  */
 final public class SendLinkImpl
         implements SendLink {
@@ -32,19 +32,30 @@ import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceProvider;
 import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.util.PropertyParser;
 import org.cougaar.util.UnaryPredicate;
 
 /**
  * This {@link ServiceProvider} provides and implements the
  * {@link SendQueueProviderService}. Its jobs is to find or make a
- * {@link SendQueue} for a given address. For now all addresses use a singleton
- * queue, in order to enforce ordering across senders.
+ * {@link SendQueue} for a given address. By default all addresses use a
+ * singleton queue, in order to enforce ordering across senders.
+ * <p>
+ * The queue can instead be split into shards, each with its own thread, so
+ * that routing runs in parallel. Each agent always uses the same shard, chosen
+ * by its address, so its own messages stay in order.
+ * 
+ * @property org.cougaar.core.mts.sendq.shards The number of SendQueues, each
+ *           serving the agents whose addresses hash to it. Default is 1.
  */
 public class SendQueueFactory
         extends QueueFactory
         implements ServiceProvider, SendQueueProviderService {
-    private SendQueue queue; // singleton
-    private SendQueueImpl impl;
+    private static final int SHARDS =
+            Math.max(1, PropertyParser.getInt("org.cougaar.core.mts.sendq.shards", 1));
+
+    private SendQueue[] queues;
+    private SendQueueImpl[] impls;
     private final String id;
 
     SendQueueFactory(String id, MessageTransportServiceProvider container) {
@@ -55,20 +66,38 @@ public class SendQueueFactory
     @Override
    public void load() {
         super.load();
-        impl = new SendQueueImpl(id + "/OutQ");
-        addComponent(impl);
-        queue = attachAspects(impl, SendQueue.class);
+        impls = new SendQueueImpl[SHARDS];
+        queues = new SendQueue[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            String name = SHARDS == 1 ? id + "/OutQ" : id + "/OutQ-" + i;
+            impls[i] = new SendQueueImpl(name);
+            impls[i].setOwner(this);
+            addComponent(impls[i]);
+            queues[i] = attachAspects(impls[i], SendQueue.class);
+        }
     }
 
     public SendQueue getSendQueue(MessageAddress sender) {
-        return queue;
+        if (queues.length == 1 || sender == null) {
+            return queues[0];
+        }
+        int hash = sender.getPrimary().hashCode();
+        return queues[(hash & Integer.MAX_VALUE) % queues.length];
     }
 
     public void removeMessages(UnaryPredicate pred, List<Message> removed) {
-        impl.removeMessages(pred, removed);
+        for (SendQueueImpl impl : impls) {
+            impl.removeMessages(pred, removed);
+        }
         notifyListeners(removed);
     }
 
+    public void expireMessages(MessageExpiry expiry) {
+        for (SendQueueImpl impl : impls) {
+            impl.setExpiry(expiry);
+        }
+    }
+
     public Object getService(ServiceBroker sb, Object requestor, Class<?> serviceClass) {
         if (serviceClass == SendQueueProviderService.class) {
             return this;
@@ -26,7 +26,9 @@
 
 package org.cougaar.mts.base;
 
+import org.cougaar.bootstrap.SystemProperties;
 import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.util.PropertyParser;
 
 /**
  * The default, and for now only, implementation of {@link SendQueue}. The
@@ -35,15 +37,62 @@ import org.cougaar.core.component.ServiceBroker;
  * <strong>dispatch</strong> as each message is popped off the queue. This, in
  * turn, requests the {@link Router} to route the message to the appropriate
  * {@link DestinationQueue}.
+ * <p>
+ * In direct mode the queue and its thread are skipped: <strong>sendMessage</strong>
+ * calls the Router itself, in the sender's thread. Aspect delegates on the
+ * SendQueue still see every message, since the SendLink still sends through
+ * them, but a message reaches its DestinationQueue without a thread handoff.
+ * <p>
+ * The queue is first in, first out unless fairness between agents is asked
+ * for, in which case it's a {@link FairMessageQueueEngine}.
  * 
+ * @property org.cougaar.core.mts.sendq.direct If true, route each message to
+ *           its DestinationQueue in the sender's thread rather than queuing
+ *           it for the SendQueue thread. Default is false.
+ * @property org.cougaar.core.mts.sendq.fairness How the queue orders messages
+ *           from different agents: <code>fifo</code> (in arrival order),
+ *           <code>rr</code> (round robin, a message from each agent in turn)
+ *           or <code>drr</code> (deficit round robin, by bytes). Default is
+ *           <code>fifo</code>.
+ * @property org.cougaar.core.mts.sendq.quantum The bytes of credit each agent
+ *           gets per turn with <code>drr</code> fairness. Default is 16384.
  */
 public final class SendQueueImpl
         extends MessageQueue
         implements SendQueue {
+    private static final boolean DIRECT =
+            PropertyParser.getBoolean("org.cougaar.core.mts.sendq.direct", false);
+
+    static final String FAIRNESS_PROPERTY = "org.cougaar.core.mts.sendq.fairness";
+    static final String FIFO_FAIRNESS = "fifo";
+    static final String ROUND_ROBIN_FAIRNESS = "rr";
+    static final String DEFICIT_ROUND_ROBIN_FAIRNESS = "drr";
+    private static final String FAIRNESS =
+            SystemProperties.getProperty(FAIRNESS_PROPERTY, FIFO_FAIRNESS);
+    private static final long QUANTUM =
+            PropertyParser.getLong("org.cougaar.core.mts.sendq.quantum", 16384);
+
     private Router router;
+    private final boolean direct;
 
     public SendQueueImpl(String name) {
+        this(name, DIRECT);
+    }
+
+    SendQueueImpl(String name, boolean direct) {
         super(name);
+        this.direct = direct;
+    }
+
+    @Override
+   MessageQueueEngine makeEngine() {
+        if (ROUND_ROBIN_FAIRNESS.equals(FAIRNESS)) {
+            return new FairMessageQueueEngine(0);
+        } else if (DEFICIT_ROUND_ROBIN_FAIRNESS.equals(FAIRNESS)) {
+            return new FairMessageQueueEngine(Math.max(1, QUANTUM));
+        } else {
+            return super.makeEngine();
+        }
     }
 
     @Override
@@ -51,6 +100,12 @@ public final class SendQueueImpl
         super.load();
         ServiceBroker sb = getServiceBroker();
         router = sb.getService(this, Router.class, null);
+        if (!FIFO_FAIRNESS.equals(FAIRNESS) && !ROUND_ROBIN_FAIRNESS.equals(FAIRNESS)
+                && !DEFICIT_ROUND_ROBIN_FAIRNESS.equals(FAIRNESS)
+                && loggingService.isWarnEnabled()) {
+            loggingService.warn("Unknown value " + FAIRNESS + " for " + FAIRNESS_PROPERTY
+                    + ", using " + FIFO_FAIRNESS);
+        }
     }
 
     @Override
@@ -64,10 +119,14 @@ public final class SendQueueImpl
 
     /**
      * The implementation of this SendQueue method simply adds the message to
-     * the internal queue (a CircularQueue).
+     * the internal queue, or in direct mode hands it straight to the Router.
      */
     public void sendMessage(AttributedMessage message) {
-        add(message);
+        if (direct) {
+            router.routeMessage(message);
+        } else {
+            add(message);
+        }
     }
 
     /**
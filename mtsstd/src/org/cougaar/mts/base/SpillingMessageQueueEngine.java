@@ -0,0 +1,404 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.util.UnaryPredicate;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * A {@link MessageQueueEngine} that keeps only so many messages in memory.
+ * Once the queue holds more than <code>maxResident</code> messages, or the
+ * contents of the messages it holds come to more than
+ * <code>maxResidentBytes</code> bytes, the contents of each message added to
+ * the tail are serialized to an append-only spill file instead, until the
+ * spilled messages have all been taken off the queue again. They're read
+ * back in order, a page at a time, as they reach the head.
+ * <p>
+ * Only a message's contents are spilled. Its envelope and attributes stay in
+ * memory, so the message keeps its place and identity in the queue, and
+ * {@link #removeMatching} can test it without reading the spill file. While
+ * a message is spilled, its {@link AttributedMessage#getRawMessage} is null;
+ * its contents are read back before it's handed out by {@link #next},
+ * {@link #removeMatching} or {@link #snapshot}.
+ * <p>
+ * Byte sizes are only known for messages that have been serialized, so with
+ * a byte limit the contents of each message added to a non-empty queue are
+ * serialized to measure them. A message whose contents can't be serialized
+ * stays in memory.
+ * <p>
+ * If the contents of a spilled message can't be read back, the message is
+ * dropped from the queue and handed to the queue's
+ * {@link MessageQueue#lost} to be failed. It's never handed out with its
+ * contents missing.
+ */
+final class SpillingMessageQueueEngine
+        implements MessageQueueEngine {
+    // Most spilled messages to read back at once
+    private static final int PAGE_SIZE = 64;
+    private static final int MAX_PAGE_BYTES = 1 << 20;
+
+    private final MessageQueue owner;
+    private final String name;
+    private final int maxResident;
+    private final long maxResidentBytes;
+    private final File directory;
+    private final Logger log;
+
+    // Guarded by this
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private int spilled;
+    private long residentBytes;
+    private RandomAccessFile file;
+    private File spillFile;
+    private long end;
+
+    /**
+     * @param owner the queue this is the storage for, whose name is used in
+     *        the name of the spill file
+     * @param maxResident most messages to keep in memory, or 0 for no limit
+     * @param maxResidentBytes most bytes of message contents to keep in
+     *        memory, or 0 for no limit
+     * @param directory where to make the spill file
+     */
+    SpillingMessageQueueEngine(MessageQueue owner,
+                               int maxResident,
+                               long maxResidentBytes,
+                               File directory) {
+        this.owner = owner;
+        this.name = owner.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        this.maxResident = maxResident;
+        this.maxResidentBytes = maxResidentBytes;
+        this.directory = directory;
+        this.log = Logging.getLogger(getClass().getName());
+    }
+
+    public synchronized void add(AttributedMessage message) {
+        Entry entry = new Entry(message);
+        Message contents = message.getRawMessage();
+        if (contents == null || queue.isEmpty()) {
+            // Nothing to spill, or it's about to be dispatched anyway
+            queue.add(entry);
+            return;
+        }
+        // Once anything has been spilled, everything behind it is too, so
+        // spilled messages are read back in one sequential pass
+        boolean spill = spilled > 0 || (maxResident > 0 && queue.size() - spilled >= maxResident);
+        byte[] bytes = null;
+        if (spill || maxResidentBytes > 0) {
+            bytes = serialize(message);
+        }
+        if (bytes != null && !spill && maxResidentBytes > 0) {
+            if (residentBytes + bytes.length > maxResidentBytes) {
+                spill = true;
+            } else {
+                entry.size = bytes.length;
+                residentBytes += bytes.length;
+            }
+        }
+        if (spill && bytes != null) {
+            spill(entry, bytes);
+        }
+        queue.add(entry);
+    }
+
+    public AttributedMessage next() {
+        List<AttributedMessage> lost = new ArrayList<AttributedMessage>(0);
+        try {
+            synchronized (this) {
+                while (!queue.isEmpty()) {
+                    Entry head = queue.getFirst();
+                    if (head.isSpilled()) {
+                        pageIn();
+                    }
+                    queue.removeFirst();
+                    residentBytes -= head.size;
+                    if (spilled == 0) {
+                        truncate();
+                    }
+                    if (head.lost) {
+                        lost.add(head.message);
+                        continue;
+                    }
+                    return head.message;
+                }
+                return null;
+            }
+        } finally {
+            reportLost(lost);
+        }
+    }
+
+    /**
+     * Messages whose contents can't be read back go too, whether or not
+     * they match, but they're reported as lost rather than removed.
+     */
+    public void removeMatching(UnaryPredicate pred, List<Message> removed) {
+        List<AttributedMessage> lost = new ArrayList<AttributedMessage>(0);
+        try {
+            synchronized (this) {
+                Iterator<Entry> itr = queue.iterator();
+                while (itr.hasNext()) {
+                    Entry entry = itr.next();
+                    if (!entry.lost && !pred.execute(entry.message)) {
+                        continue;
+                    }
+                    if (entry.isSpilled()) {
+                        restore(entry, read(entry));
+                    }
+                    residentBytes -= entry.size;
+                    itr.remove();
+                    if (entry.lost) {
+                        lost.add(entry.message);
+                    } else {
+                        removed.add(entry.message);
+                    }
+                }
+                if (spilled == 0) {
+                    truncate();
+                }
+            }
+        } finally {
+            reportLost(lost);
+        }
+    }
+
+    /**
+     * Messages whose contents can't be read back are left out.
+     */
+    public synchronized void snapshot(List<AttributedMessage> into) {
+        for (Entry entry : queue) {
+            if (entry.lost) {
+                continue;
+            } else if (entry.isSpilled()) {
+                Message contents = read(entry);
+                if (contents == null) {
+                    continue;
+                }
+                // Copy, so the message itself stays spilled
+                AttributedMessage message = entry.message;
+                message.setRawMessage(contents);
+                into.add(new AttributedMessage(message));
+                message.setRawMessage(null);
+            } else {
+                into.add(entry.message);
+            }
+        }
+    }
+
+    // Called without the lock, since the queue tells its listeners
+    private void reportLost(List<AttributedMessage> lost) {
+        for (AttributedMessage message : lost) {
+            log.error(name + " lost the contents of spilled message " + message.logString());
+            owner.lost(message);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Number of messages whose contents are on disk.
+     */
+    synchronized int spilledCount() {
+        return spilled;
+    }
+
+    private byte[] serialize(AttributedMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(message.getRawMessage());
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(name + " can't serialize " + message.logString()
+                        + ", keeping it in memory: " + e);
+            }
+            return null;
+        }
+    }
+
+    private Message deserialize(byte[] data, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        return (Message) in.readObject();
+    }
+
+    private void spill(Entry entry, byte[] bytes) {
+        try {
+            if (file == null) {
+                directory.mkdirs();
+                spillFile = File.createTempFile(name + "-", ".spill", directory);
+                spillFile.deleteOnExit();
+                file = new RandomAccessFile(spillFile, "rw");
+                if (log.isInfoEnabled()) {
+                    log.info(name + " is spilling messages to " + spillFile);
+                }
+            }
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = end;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(name + " can't spill to " + spillFile + ", keeping "
+                        + entry.message.logString() + " in memory: " + e);
+            }
+            return;
+        }
+        entry.offset = end;
+        entry.length = bytes.length;
+        end += bytes.length;
+        entry.message.setRawMessage(null);
+        ++spilled;
+    }
+
+    /**
+     * Read back the contents of the spilled messages at the head of the
+     * queue, up to a page of them, in one read.
+     */
+    private void pageIn() {
+        List<Entry> page = new LinkedList<Entry>();
+        long start = queue.getFirst().offset;
+        long next = start;
+        for (Entry entry : queue) {
+            if (!entry.isSpilled() || entry.offset != next || page.size() >= PAGE_SIZE
+                    || (!page.isEmpty() && next + entry.length - start > MAX_PAGE_BYTES)) {
+                break;
+            }
+            page.add(entry);
+            next += entry.length;
+        }
+        byte[] data = new byte[(int) (next - start)];
+        try {
+            readFully(data, start);
+        } catch (IOException e) {
+            log.error(name + " can't read " + spillFile + ": " + e.getMessage(), e);
+            data = null;
+        }
+        int offset = 0;
+        for (Entry entry : page) {
+            Message contents = null;
+            if (data != null) {
+                try {
+                    contents = deserialize(data, offset, entry.length);
+                } catch (Exception e) {
+                    log.error(name + " can't read spilled message " + entry.message.logString()
+                            + ": " + e, e);
+                }
+            }
+            offset += entry.length;
+            restore(entry, contents);
+        }
+    }
+
+    /**
+     * Read the contents of one spilled message, leaving it spilled.
+     */
+    private Message read(Entry entry) {
+        byte[] data = new byte[entry.length];
+        try {
+            readFully(data, entry.offset);
+            return deserialize(data, 0, data.length);
+        } catch (Exception e) {
+            log.error(name + " can't read spilled message " + entry.message.logString() + ": "
+                    + e, e);
+            return null;
+        }
+    }
+
+    private void readFully(byte[] data, long position)
+            throws IOException {
+        FileChannel channel = file.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position());
+            if (count < 0) {
+                throw new IOException("Unexpected end of " + spillFile);
+            }
+        }
+    }
+
+    private void restore(Entry entry, Message contents) {
+        entry.offset = -1;
+        --spilled;
+        if (contents == null) {
+            entry.lost = true;
+            return;
+        }
+        entry.message.setRawMessage(contents);
+        if (maxResidentBytes > 0) {
+            entry.size = entry.length;
+            residentBytes += entry.length;
+        }
+    }
+
+    /**
+     * Nothing is spilled, so start the file over.
+     */
+    private void truncate() {
+        if (file == null || end == 0) {
+            return;
+        }
+        try {
+            file.getChannel().truncate(0);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(name + " can't truncate " + spillFile + ": " + e.getMessage());
+            }
+        }
+        end = 0;
+    }
+
+    /**
+     * A queued message and, while its contents are spilled, where they are.
+     */
+    private static final class Entry {
+        private final AttributedMessage message;
+        // Position of the contents in the spill file, or -1 if they're in
+        // memory
+        private long offset = -1;
+        private int length;
+        // Bytes counted against maxResidentBytes
+        private long size;
+        // The contents couldn't be read back
+        private boolean lost;
+
+        Entry(AttributedMessage message) {
+            this.message = message;
+        }
+
+        boolean isSpilled() {
+            return offset >= 0;
+        }
+    }
+}
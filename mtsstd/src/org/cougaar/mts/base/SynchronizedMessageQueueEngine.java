@@ -0,0 +1,67 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.cougaar.core.mts.Message;
+import org.cougaar.util.UnaryPredicate;
+
+/**
+ * The default {@link MessageQueueEngine}: a simple linked list, guarded by its
+ * own monitor.
+ */
+final class SynchronizedMessageQueueEngine
+        implements MessageQueueEngine {
+    private final LinkedList<AttributedMessage> queue = new LinkedList<AttributedMessage>();
+
+    public void add(AttributedMessage message) {
+        synchronized (queue) {
+            queue.add(message);
+        }
+    }
+
+    public AttributedMessage next() {
+        synchronized (queue) {
+            return queue.isEmpty() ? null : queue.removeFirst();
+        }
+    }
+
+    public void removeMatching(UnaryPredicate pred, List<Message> removed) {
+        synchronized (queue) {
+            Iterator<AttributedMessage> itr = queue.iterator();
+            while (itr.hasNext()) {
+                AttributedMessage msg = itr.next();
+                if (pred.execute(msg)) {
+                    removed.add(msg);
+                    itr.remove();
+                }
+            }
+        }
+    }
+
+    public void snapshot(List<AttributedMessage> into) {
+        synchronized (queue) {
+            into.addAll(queue);
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (queue) {
+            return queue.isEmpty();
+        }
+    }
+
+    public int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+}
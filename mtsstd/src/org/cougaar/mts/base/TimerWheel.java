@@ -0,0 +1,181 @@
+/*
+ *
+ * Copyright 2008 by BBN Technologies Corporation
+ *
+ */
+
+package org.cougaar.mts.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.Logging;
+
+/**
+ * A hashed timer wheel: timeouts are kept in a ring of buckets, one per tick,
+ * so scheduling and cancelling cost the same however many timeouts there
+ * are, and each tick only looks at one bucket. A timeout more than a full
+ * turn of the wheel away just stays in its bucket until its tick comes round.
+ * <p>
+ * The wheel has no thread of its own. Whoever owns it calls
+ * {@link #advance} every tick or so, typically from a
+ * {@link org.cougaar.core.thread.Schedulable}, and due tasks are run in that
+ * thread, outside the wheel's lock. A task fires no earlier than its
+ * deadline and at most about a tick after it.
+ */
+public class TimerWheel {
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Logger log;
+
+    // Guarded by this
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int n = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        if (n == 0) {
+            n = 1;
+        }
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.log = Logging.getLogger(getClass().getName());
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Run the task once the given time (in milliseconds, as from
+     * {@link System#currentTimeMillis}) has passed.
+     */
+    public Timeout schedule(Runnable task, long deadline) {
+        // Round up, so a task never fires early
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        Timeout timeout = new Timeout(task, tick);
+        synchronized (this) {
+            if (tick <= currentTick) {
+                // Due at the next advance
+                timeout.tick = currentTick + 1;
+            }
+            link(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * The number of timeouts scheduled and not yet fired or cancelled.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Run every task whose deadline is no later than the given time.
+     */
+    public void advance(long now) {
+        long nowTick = now / tickMillis;
+        List<Timeout> due = null;
+        synchronized (this) {
+            if (nowTick <= currentTick) {
+                return;
+            }
+            // After a full turn every bucket has been looked at
+            long last = Math.min(nowTick, currentTick + buckets.length);
+            for (long tick = currentTick + 1; tick <= last; tick++) {
+                Timeout timeout = buckets[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.tick <= nowTick) {
+                        unlink(timeout);
+                        if (due == null) {
+                            due = new ArrayList<Timeout>();
+                        }
+                        due.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            currentTick = nowTick;
+        }
+        if (due != null) {
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    log.error("Timeout task " + timeout.task + " failed", e);
+                }
+            }
+        }
+    }
+
+    // Must hold the lock
+    private void link(Timeout timeout) {
+        int index = (int) (timeout.tick & mask);
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.scheduled = true;
+        size++;
+    }
+
+    // Must hold the lock
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.next = null;
+        timeout.previous = null;
+        timeout.scheduled = false;
+        size--;
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it fires.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        // All guarded by the wheel
+        private long tick;
+        private Timeout next;
+        private Timeout previous;
+        private boolean scheduled;
+
+        private Timeout(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * Stop the task from running.
+         * 
+         * @return false if it already ran, or was already cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!scheduled) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+    }
+}
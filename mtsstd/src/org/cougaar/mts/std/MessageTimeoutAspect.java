@@ -26,19 +26,16 @@
 
 package org.cougaar.mts.std;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.mts.AttributeConstants;
-import org.cougaar.core.mts.Message;
 import org.cougaar.core.mts.MessageAttributes;
-import org.cougaar.core.thread.Schedulable;
 import org.cougaar.mts.base.AttributedMessage;
 import org.cougaar.mts.base.CommFailureException;
 import org.cougaar.mts.base.DestinationLink;
 import org.cougaar.mts.base.DestinationLinkDelegateImplBase;
 import org.cougaar.mts.base.DestinationQueueProviderService;
+import org.cougaar.mts.base.ForwardCallback;
+import org.cougaar.mts.base.MessageExpiry;
 import org.cougaar.mts.base.MessageReply;
 import org.cougaar.mts.base.MisdeliveredMessageException;
 import org.cougaar.mts.base.NameLookupException;
@@ -50,14 +47,20 @@ import org.cougaar.mts.base.SendQueueProviderService;
 import org.cougaar.mts.base.StandardAspect;
 import org.cougaar.mts.base.UnregisteredNameException;
 import org.cougaar.util.PropertyParser;
-import org.cougaar.util.UnaryPredicate;
 
 /**
  * Aspect to throw out a timed out message. Necessary for MsgLog et. al. Checks
  * every thread in MTS for timed out attributes on a message:
+ * <p>
+ * Queued messages are dropped as their deadlines pass, by way of a
+ * {@link MessageExpiry} shared by the send and destination queues, so the
+ * cost doesn't grow with the number of messages waiting.
  * 
  * @property org.cougaar.syncClock Is NTP clock synchronization guaranteed?
  *           default is false.
+ * @property org.cougaar.core.mts.timeout.tickMillis How often to drop queued
+ *           messages that have passed their deadlines, in milliseconds.
+ *           Default is 100.
  */
 public final class MessageTimeoutAspect
         extends StandardAspect
@@ -66,57 +69,41 @@ public final class MessageTimeoutAspect
     private static final boolean SYNC_CLOCK_AVAILABLE =
         PropertyParser.getBoolean("org.cougaar.syncClock", false);
     
-    private static final long RECLAIM_PERIOD =
-        PropertyParser.getLong("org.cougaar.core.mts.timout.reclaim", 60000);
-    
-    private SendQueueProviderService sendq_factory;
-    
-    private DestinationQueueProviderService destq_factory;
-    
-    private final UnaryPredicate timeoutPredicate = new UnaryPredicate() {
-        /**
-       * 
-       */
-      private static final long serialVersionUID = 1L;
+    private static final long EXPIRY_TICK =
+        PropertyParser.getLong("org.cougaar.core.mts.timeout.tickMillis", 100);
 
-      public boolean execute(Object x) {
-            AttributedMessage msg = (AttributedMessage) x;
-            return timedOut(msg, "Message Timeout Reclaimer");
-        }
-    };
+    // With the default tick, deadlines up to about 100 seconds away go
+    // straight to their bucket
+    private static final int EXPIRY_WHEEL_SIZE = 1024;
 
-    @Override
-   public void load() {
-        super.load();
-        Runnable reclaimer = new Runnable() {
-            public void run() {
-                reclaim();
-            }
-        };
-        Schedulable sched = threadService.getThread(this, reclaimer, "Message Timeout Reclaimer");
-        sched.schedule(RECLAIM_PERIOD, RECLAIM_PERIOD);
-
-    }
+    private MessageExpiry expiry;
 
     @Override
    public void start() {
         super.start();
         ServiceBroker sb = getServiceBroker();
-        sendq_factory = sb.getService(this, SendQueueProviderService.class, null);
-        destq_factory = sb.getService(this, DestinationQueueProviderService.class, null);
-    }
-
-    private void reclaim() {
-        // Keep track of the messages we deleted.  Not using this yet.
-        List<Message> droppedMessages = new LinkedList<Message>();
+        SendQueueProviderService sendq_factory =
+            sb.getService(this, SendQueueProviderService.class, null);
+        DestinationQueueProviderService destq_factory =
+            sb.getService(this, DestinationQueueProviderService.class, null);
+        expiry = new MessageExpiry(threadService, this, Math.max(1, EXPIRY_TICK),
+                                   EXPIRY_WHEEL_SIZE);
         if (sendq_factory != null) {
-            sendq_factory.removeMessages(timeoutPredicate, droppedMessages);
+            sendq_factory.expireMessages(expiry);
         }
         if (destq_factory != null) {
-            destq_factory.removeMessages(timeoutPredicate, droppedMessages);
+            destq_factory.expireMessages(expiry);
         }
     }
 
+    @Override
+   public void stop() {
+        if (expiry != null) {
+            expiry.stop();
+        }
+        super.stop();
+    }
+
     private long getTimeout(AttributedMessage message) {
         Object attr = message.getAttribute(MESSAGE_SEND_DEADLINE_ATTRIBUTE);
         if (attr instanceof Long) {
@@ -230,14 +217,51 @@ public final class MessageTimeoutAspect
                 throws UnregisteredNameException, NameLookupException, CommFailureException,
                 MisdeliveredMessageException {
             if (timedOut(message, "DestinationLink")) {
-                // drop message, set delivery status to dropped
-                MessageAttributes metadata = new MessageReply(message);
-                metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
-                                      AttributeConstants.DELIVERY_STATUS_DROPPED);
-                return metadata;
+                return dropped(message);
             }
             return super.forwardMessage(message);
         }
+
+        @Override
+      public void forwardMessageAsync(AttributedMessage message, ForwardCallback callback)
+                throws UnregisteredNameException, NameLookupException, CommFailureException,
+                MisdeliveredMessageException {
+            if (timedOut(message, "DestinationLink")) {
+                callback.forwarded(message, dropped(message));
+                return;
+            }
+            super.forwardMessageAsync(message, callback);
+        }
+
+        // drop message, set delivery status to dropped
+        private MessageAttributes dropped(AttributedMessage message) {
+            MessageAttributes metadata = new MessageReply(message);
+            metadata.setAttribute(AttributeConstants.DELIVERY_ATTRIBUTE,
+                                  AttributeConstants.DELIVERY_STATUS_DROPPED);
+            return metadata;
+        }
+
+        /**
+         * Forward the messages ahead of the first timed out one. That one and
+         * the rest will be dispatched again later, at which point the timed
+         * out message is dropped by <tt>forwardMessage</tt>.
+         */
+        @Override
+      public MessageAttributes[] forwardMessages(AttributedMessage[] messages)
+                throws UnregisteredNameException, NameLookupException, CommFailureException,
+                MisdeliveredMessageException {
+            for (int i = 0; i < messages.length; i++) {
+                if (timedOut(messages[i], "DestinationLink")) {
+                    if (i == 0) {
+                        return new MessageAttributes[] {forwardMessage(messages[0])};
+                    }
+                    AttributedMessage[] timely = new AttributedMessage[i];
+                    System.arraycopy(messages, 0, timely, 0, i);
+                    return super.forwardMessages(timely);
+                }
+            }
+            return super.forwardMessages(messages);
+        }
     }
 
     /**
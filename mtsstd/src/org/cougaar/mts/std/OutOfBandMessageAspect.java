@@ -62,15 +62,17 @@ public final class OutOfBandMessageAspect
         
         public boolean sendOutOfBandMessage(Message message, MessageAttributes attrs, 
                                             MessageAddress destinaion) {
-            synchronized (registry) {
-                ReceiveLink link = registry.findLocalReceiveLink(destinaion);
-                if (link != null) {
-                    link.deliverMessage(new OutOfBandMessage(message, attrs));
-                    return true;
-                } else {
-                    return false;
+            // As in MessageDelivererImpl, lock only the agent's ReceiveLink
+            ReceiveLink link = registry.findLocalReceiveLink(destinaion);
+            if (link != null) {
+                synchronized (link) {
+                    if (registry.findLocalReceiveLink(destinaion) == link) {
+                        link.deliverMessage(new OutOfBandMessage(message, attrs));
+                        return true;
+                    }
                 }
             }
+            return false;
         }
         
     }
@@ -54,6 +54,7 @@ import org.cougaar.mts.base.StandardAspect;
  */
 public class SequenceAspect
         extends StandardAspect {
+    // DeadlineMessageQueueEngine keeps messages with this attribute in order
     private static final String SEQ = "org.cougaar.message.transport.sequencenumber";
     private static final String SEQ_SEND_MAP_ATTR = "org.cougaar.message.transport.sequence.send";
     private static final String SEQ_RECV_MAP_ATTR = "org.cougaar.message.transport.sequence.recv";
@@ -37,6 +37,7 @@ import org.cougaar.mts.base.MessageReader;
 import org.cougaar.mts.base.MessageReaderDelegateImplBase;
 import org.cougaar.mts.base.MessageWriter;
 import org.cougaar.mts.base.MessageWriterDelegateImplBase;
+import org.cougaar.mts.base.ReusableDelegates;
 import org.cougaar.mts.base.StandardAspect;
 
 /**
@@ -44,7 +45,13 @@ import org.cougaar.mts.base.StandardAspect;
  * {@link MessageWriter}.
  */
 public class BufferedStreamsAspect
-        extends StandardAspect {
+        extends StandardAspect
+        implements ReusableDelegates {
+
+    // The delegates just wrap the streams they're given
+    public boolean isReusableDelegate(Class<?> type) {
+        return type == MessageWriter.class || type == MessageReader.class;
+    }
 
     @Override
    public Object getDelegate(Object delegatee, Class<?> type) {